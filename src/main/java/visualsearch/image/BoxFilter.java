@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.image;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Downscales an image to a small gray grid by averaging all pixels of each cell. Reads the backing array of the
+ * decoded image directly and keeps the cell sums in a per thread scratch buffer, so nothing is allocated per call.
+ * Gray is computed with the same weights and rounding Java2D uses when drawing to a TYPE_BYTE_GRAY image.
+ * Alpha is ignored. Images whose layout is not supported are drawn with Graphics2D instead, which samples one pixel
+ * per cell.
+ */
+public final class BoxFilter {
+
+    private static final ThreadLocal<long[]> CELL_SUMS = ThreadLocal.withInitial(() -> new long[32 * 32]);
+
+    private BoxFilter() {
+    }
+
+    /**
+     * Writes the average gray value of every cell of a cols x rows grid over the image to averages, row by row.
+     */
+    public static void cellAverages(BufferedImage img, int cols, int rows, int[] averages) {
+        long[] sums = CELL_SUMS.get();
+        if (sums.length < cols * rows) {
+            sums = new long[cols * rows];
+            CELL_SUMS.set(sums);
+        }
+        Arrays.fill(sums, 0, cols * rows, 0);
+        if (!cellSums(img, cols, rows, sums)) {
+            drawGray(img, cols, rows, averages);
+            return;
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        for (int y = 0; y < rows; y++) {
+            int cellHeight = cellEnd(y, height, rows) - cellStart(y, height, rows);
+            for (int x = 0; x < cols; x++) {
+                int cellWidth = cellEnd(x, width, cols) - cellStart(x, width, cols);
+                averages[y * cols + x] = (int) (sums[y * cols + x] / (cellWidth * cellHeight));
+            }
+        }
+    }
+
+    static int cellStart(int cell, int size, int numCells) {
+        return Math.min(cell * size / numCells, size - 1);
+    }
+
+    static int cellEnd(int cell, int size, int numCells) {
+        return Math.max((cell + 1) * size / numCells, cellStart(cell, size, numCells) + 1);
+    }
+
+    // same rounding as Java2D uses when converting rgb to ByteGray
+    static int gray(int r, int g, int b) {
+        return (77 * r + 150 * g + 29 * b + 128) >> 8;
+    }
+
+    private static void drawGray(BufferedImage img, int cols, int rows, int[] averages) {
+        BufferedImage outputImage = new BufferedImage(cols, rows, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g2d = outputImage.createGraphics();
+        g2d.drawImage(img, 0, 0, cols, rows, null);
+        g2d.dispose();
+        outputImage.getRaster().getSamples(0, 0, cols, rows, 0, averages);
+    }
+
+    private static boolean cellSums(BufferedImage img, int cols, int rows, long[] sums) {
+        WritableRaster raster = img.getRaster();
+        ColorModel colorModel = img.getColorModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer.getNumBanks() != 1) {
+            return false;
+        }
+        if (dataBuffer instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && colorModel instanceof ComponentColorModel) {
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            int colorSpaceType = colorModel.getColorSpace().getType();
+            if (sampleModel.getNumBands() == 1 && colorSpaceType == ColorSpace.TYPE_GRAY) {
+                byteSums(img, ((DataBufferByte) dataBuffer).getData(), sampleModel, true, cols, rows, sums);
+                return true;
+            } else if (sampleModel.getNumBands() >= 3 && colorModel.getColorSpace().isCS_sRGB()) {
+                byteSums(img, ((DataBufferByte) dataBuffer).getData(), sampleModel, false, cols, rows, sums);
+                return true;
+            }
+        } else if (dataBuffer instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && colorModel instanceof DirectColorModel
+                && colorModel.getColorSpace().isCS_sRGB()) {
+            DirectColorModel directColorModel = (DirectColorModel) colorModel;
+            if (Integer.bitCount(directColorModel.getRedMask()) == 8
+                    && Integer.bitCount(directColorModel.getGreenMask()) == 8
+                    && Integer.bitCount(directColorModel.getBlueMask()) == 8) {
+                intSums(img, ((DataBufferInt) dataBuffer).getData(), (SinglePixelPackedSampleModel) raster.getSampleModel(), directColorModel, cols, rows, sums);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void byteSums(BufferedImage img, byte[] data, ComponentSampleModel sampleModel, boolean isGray, int cols, int rows, long[] sums) {
+        WritableRaster raster = img.getRaster();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int base = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX() * pixelStride;
+        int r = bandOffsets[0];
+        int g = isGray ? r : bandOffsets[1];
+        int b = isGray ? r : bandOffsets[2];
+        for (int cellY = 0; cellY < rows; cellY++) {
+            for (int y = cellStart(cellY, height, rows); y < cellEnd(cellY, height, rows); y++) {
+                int rowStart = base + y * scanlineStride;
+                for (int cellX = 0; cellX < cols; cellX++) {
+                    long sum = 0;
+                    int end = rowStart + cellEnd(cellX, width, cols) * pixelStride;
+                    for (int i = rowStart + cellStart(cellX, width, cols) * pixelStride; i < end; i += pixelStride) {
+                        if (isGray) {
+                            sum += data[i + r] & 0xff;
+                        } else {
+                            sum += gray(data[i + r] & 0xff, data[i + g] & 0xff, data[i + b] & 0xff);
+                        }
+                    }
+                    sums[cellY * cols + cellX] += sum;
+                }
+            }
+        }
+    }
+
+    private static void intSums(BufferedImage img, int[] data, SinglePixelPackedSampleModel sampleModel, DirectColorModel colorModel, int cols, int rows, long[] sums) {
+        WritableRaster raster = img.getRaster();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int base = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX();
+        int redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+        int greenShift = Integer.numberOfTrailingZeros(colorModel.getGreenMask());
+        int blueShift = Integer.numberOfTrailingZeros(colorModel.getBlueMask());
+        for (int cellY = 0; cellY < rows; cellY++) {
+            for (int y = cellStart(cellY, height, rows); y < cellEnd(cellY, height, rows); y++) {
+                int rowStart = base + y * scanlineStride;
+                for (int cellX = 0; cellX < cols; cellX++) {
+                    long sum = 0;
+                    int end = rowStart + cellEnd(cellX, width, cols);
+                    for (int i = rowStart + cellStart(cellX, width, cols); i < end; i++) {
+                        int pixel = data[i];
+                        sum += gray((pixel >>> redShift) & 0xff, (pixel >>> greenShift) & 0xff, (pixel >>> blueShift) & 0xff);
+                    }
+                    sums[cellY * cols + cellX] += sum;
+                }
+            }
+        }
+    }
+}
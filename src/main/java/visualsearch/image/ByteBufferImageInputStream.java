@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.nio.ByteBuffer;
+
+/**
+ * Lets an ImageReader read directly from a ByteBuffer. Unlike MemoryCacheImageInputStream nothing is copied.
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() {
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        bitOffset = 0;
+        return buffer.get((int) streamPos++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        bitOffset = 0;
+        int toRead = (int) Math.min(len, buffer.limit() - streamPos);
+        buffer.position((int) streamPos);
+        buffer.get(b, off, toRead);
+        streamPos += toRead;
+        return toRead;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+}
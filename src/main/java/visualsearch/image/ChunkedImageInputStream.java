@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * An ImageInputStream that is filled chunk by chunk while an ImageReader is already reading from it, so that decoding
+ * can start before the whole image was received. Reads block until enough bytes arrived, the stream was finished or
+ * it failed. Chunks that lie completely before the flushed position are dropped.
+ * <p>
+ * The producer calls {@link #append(ByteBuffer)}, {@link #finish()} and {@link #fail(Throwable)}. The reader closes the
+ * stream once it has what it needs; the producer can check {@link #isClosed()} or register a callback with
+ * {@link #onClose(Runnable)} to stop receiving.
+ */
+public class ChunkedImageInputStream extends ImageInputStreamImpl {
+
+    private final Object lock = new Object();
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private final long length;
+    // stream position of the first byte of the first chunk in chunks
+    private long chunksStart = 0;
+    private long received = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private Throwable failure;
+    private Runnable onClose;
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * @param length the number of bytes that will be appended or -1 if not known
+     */
+    public ChunkedImageInputStream(long length) {
+        this.length = length;
+    }
+
+    public void append(ByteBuffer chunk) {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        if (bytes.length == 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            chunks.addLast(bytes);
+            received += bytes.length;
+            lock.notifyAll();
+        }
+    }
+
+    public void finish() {
+        synchronized (lock) {
+            finished = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void fail(Throwable t) {
+        synchronized (lock) {
+            if (failure == null) {
+                failure = t;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void onClose(Runnable onClose) {
+        boolean alreadyClosed;
+        synchronized (lock) {
+            alreadyClosed = closed;
+            this.onClose = onClose;
+        }
+        if (alreadyClosed) {
+            onClose.run();
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    public long received() {
+        synchronized (lock) {
+            return received;
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (lock) {
+            while (streamPos >= received && !finished && failure == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for image data.", e);
+                }
+            }
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+            if (failure instanceof ImageLimitExceededException) {
+                throw (ImageLimitExceededException) failure;
+            }
+            if (failure != null) {
+                throw new IOException("Could not receive image: " + failure, failure);
+            }
+            if (streamPos >= received) {
+                return -1;
+            }
+            bitOffset = 0;
+            int read = 0;
+            long chunkStart = chunksStart;
+            for (byte[] chunk : chunks) {
+                long chunkEnd = chunkStart + chunk.length;
+                if (streamPos + read < chunkEnd) {
+                    int from = (int) (streamPos + read - chunkStart);
+                    int toCopy = Math.min(len - read, chunk.length - from);
+                    System.arraycopy(chunk, from, b, off + read, toCopy);
+                    read += toCopy;
+                    if (read == len) {
+                        break;
+                    }
+                }
+                chunkStart = chunkEnd;
+            }
+            streamPos += read;
+            return read;
+        }
+    }
+
+    @Override
+    public void flushBefore(long pos) throws IOException {
+        super.flushBefore(pos);
+        synchronized (lock) {
+            while (!chunks.isEmpty() && chunksStart + chunks.peekFirst().length <= pos) {
+                chunksStart += chunks.pollFirst().length;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Runnable toRun;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            toRun = onClose;
+            lock.notifyAll();
+        }
+        // ImageInputStreamImpl throws if it is closed twice
+        super.close();
+        if (toRun != null) {
+            toRun.run();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.image;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Computes the dHash directly from the backing array of the decoded image: every cell of the 8x9 grid is the average
+ * gray value of the pixels it covers, see {@link BoxFilter}. Nothing is allocated per call, the cells live in a per
+ * thread scratch buffer.
+ * <p>
+ * For images that are exactly 8x9 pixels or consist of uniform blocks the result is identical to
+ * {@code pixelDiffsLeftToRight(shrinkImage(img))}. For other images Graphics2D samples one pixel per cell (nearest
+ * neighbour) while this kernel averages all of them, so hashes of real photos differ in a few bits.
+ */
+public final class DHashKernel {
+
+    public static final int WIDTH = 8;
+    public static final int HEIGHT = 9;
+
+    private static final ThreadLocal<int[]> CELLS = ThreadLocal.withInitial(() -> new int[WIDTH * HEIGHT]);
+
+    private DHashKernel() {
+    }
+
+    public static long dHash(BufferedImage img) {
+        int[] cells = CELLS.get();
+        BoxFilter.cellAverages(img, WIDTH, HEIGHT, cells);
+        long result = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            for (int j = 0; j < WIDTH; j++) {
+                if (cells[j * WIDTH + i] < cells[(j + 1) * WIDTH + i]) {
+                    result |= 1L << (i * 8 + j);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+/**
+ * Limits that protect the decoder from huge images and decompression bombs. The pixel limit is checked against the
+ * dimensions in the image header before any raster is allocated.
+ */
+public class DecodeLimits {
+
+    public static final String MAX_IMAGE_PIXELS = "MAX_IMAGE_PIXELS";
+    public static final String MAX_DECODE_MILLIS = "MAX_DECODE_MILLIS";
+
+    public static final DecodeLimits UNLIMITED = new DecodeLimits(Long.MAX_VALUE, 0);
+
+    public final long maxPixels;
+    // 0 means no limit
+    public final long maxDecodeMillis;
+
+    public DecodeLimits(long maxPixels, long maxDecodeMillis) {
+        this.maxPixels = maxPixels;
+        this.maxDecodeMillis = maxDecodeMillis;
+    }
+
+    public static DecodeLimits fromSystemProperties() {
+        return new DecodeLimits(Long.getLong(MAX_IMAGE_PIXELS, 50_000_000L), Long.getLong(MAX_DECODE_MILLIS, 10_000L));
+    }
+
+    public void checkPixels(int width, int height) throws ImageLimitExceededException {
+        if ((long) width * height > maxPixels) {
+            throw new ImageLimitExceededException(ImageLimitExceededException.Limit.PIXELS,
+                    "Image has " + width + "x" + height + " pixels, the limit is " + maxPixels + ".");
+        }
+    }
+}
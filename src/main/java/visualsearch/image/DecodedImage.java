@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import java.awt.image.BufferedImage;
+
+public class DecodedImage {
+    // may be subsampled, so the dimensions can be smaller than width and height
+    public final BufferedImage image;
+    // dimensions of the original image as stored in the header
+    public final int width;
+    public final int height;
+    public final ImageFormat format;
+
+    public DecodedImage(BufferedImage image, int width, int height, ImageFormat format) {
+        this.image = image;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+}
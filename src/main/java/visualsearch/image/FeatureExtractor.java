@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Derives a configurable set of 64 bit hashes from one decoded image. The dHash is always computed because index and
+ * search rely on it. It keeps its own 8x9 grid so that already indexed values do not change, all other hashes are
+ * computed from one shared 32x32 gray plane.
+ */
+public class FeatureExtractor {
+    // comma separated list of additional hashes to compute, for example "ahash,phash,whash"
+    public static final String IMAGE_HASHES = "IMAGE_HASHES";
+    public static final int PLANE_SIZE = 32;
+
+    private static final int HASH_SIZE = 8;
+    private static final int BLOCK_SIZE = PLANE_SIZE / HASH_SIZE;
+    // unnormalized DCT-II basis, only the 8 lowest frequencies are needed
+    private static final double[][] DCT_BASIS = new double[HASH_SIZE][PLANE_SIZE];
+
+    static {
+        for (int u = 0; u < HASH_SIZE; u++) {
+            for (int x = 0; x < PLANE_SIZE; x++) {
+                DCT_BASIS[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * PLANE_SIZE));
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final EnumSet<HashType> hashTypes;
+
+    public FeatureExtractor(EnumSet<HashType> hashTypes) {
+        this.hashTypes = EnumSet.of(HashType.DHASH);
+        this.hashTypes.addAll(hashTypes);
+    }
+
+    public static FeatureExtractor fromSystemProperties() {
+        return new FeatureExtractor(parseHashTypes(System.getProperty(IMAGE_HASHES, "")));
+    }
+
+    static EnumSet<HashType> parseHashTypes(String hashTypes) {
+        EnumSet<HashType> result = EnumSet.noneOf(HashType.class);
+        for (String hashType : hashTypes.split(",")) {
+            if (!hashType.trim().isEmpty()) {
+                result.add(HashType.valueOf(hashType.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return result;
+    }
+
+    public EnumSet<HashType> hashTypes() {
+        return hashTypes;
+    }
+
+    public void extract(BufferedImage img, ProcessedImage.Builder builder) {
+        builder.dHash(DHashKernel.dHash(img));
+        if (hashTypes.contains(HashType.AHASH) || hashTypes.contains(HashType.PHASH) || hashTypes.contains(HashType.WHASH)) {
+            Scratch scratch = SCRATCH.get();
+            BoxFilter.cellAverages(img, PLANE_SIZE, PLANE_SIZE, scratch.plane);
+            if (hashTypes.contains(HashType.AHASH)) {
+                builder.aHash(aHash(scratch));
+            }
+            if (hashTypes.contains(HashType.PHASH)) {
+                builder.pHash(pHash(scratch));
+            }
+            if (hashTypes.contains(HashType.WHASH)) {
+                builder.wHash(wHash(scratch));
+            }
+        }
+    }
+
+    static long aHash(Scratch scratch) {
+        double[] blocks = blockMeans(scratch);
+        double mean = 0;
+        for (double block : blocks) {
+            mean += block;
+        }
+        return aboveThreshold(blocks, mean / blocks.length);
+    }
+
+    /**
+     * The haar low pass band at 8x8 is the mean of each 4x4 block. Removing the lowest frequency band first, like
+     * imagehash's whash does, subtracts a constant and does not change the comparison with the median.
+     */
+    static long wHash(Scratch scratch) {
+        double[] blocks = blockMeans(scratch);
+        return aboveThreshold(blocks, median(blocks, scratch.sorted));
+    }
+
+    static long pHash(Scratch scratch) {
+        int[] plane = scratch.plane;
+        double[] rows = scratch.rowCoefficients;
+        for (int y = 0; y < PLANE_SIZE; y++) {
+            for (int u = 0; u < HASH_SIZE; u++) {
+                double sum = 0;
+                for (int x = 0; x < PLANE_SIZE; x++) {
+                    sum += plane[y * PLANE_SIZE + x] * DCT_BASIS[u][x];
+                }
+                rows[y * HASH_SIZE + u] = sum;
+            }
+        }
+        double[] coefficients = scratch.coefficients;
+        for (int v = 0; v < HASH_SIZE; v++) {
+            for (int u = 0; u < HASH_SIZE; u++) {
+                double sum = 0;
+                for (int y = 0; y < PLANE_SIZE; y++) {
+                    sum += rows[y * HASH_SIZE + u] * DCT_BASIS[v][y];
+                }
+                coefficients[v * HASH_SIZE + u] = sum;
+            }
+        }
+        return aboveThreshold(coefficients, median(coefficients, scratch.sorted));
+    }
+
+    private static double[] blockMeans(Scratch scratch) {
+        int[] plane = scratch.plane;
+        double[] blocks = scratch.coefficients;
+        Arrays.fill(blocks, 0);
+        for (int y = 0; y < PLANE_SIZE; y++) {
+            for (int x = 0; x < PLANE_SIZE; x++) {
+                blocks[(y / BLOCK_SIZE) * HASH_SIZE + x / BLOCK_SIZE] += plane[y * PLANE_SIZE + x];
+            }
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] /= BLOCK_SIZE * BLOCK_SIZE;
+        }
+        return blocks;
+    }
+
+    private static double median(double[] values, double[] sorted) {
+        System.arraycopy(values, 0, sorted, 0, values.length);
+        Arrays.sort(sorted);
+        return (sorted[values.length / 2 - 1] + sorted[values.length / 2]) / 2;
+    }
+
+    private static long aboveThreshold(double[] values, double threshold) {
+        long result = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] > threshold) {
+                result |= 1L << i;
+            }
+        }
+        return result;
+    }
+
+    static class Scratch {
+        final int[] plane = new int[PLANE_SIZE * PLANE_SIZE];
+        final double[] rowCoefficients = new double[PLANE_SIZE * HASH_SIZE];
+        final double[] coefficients = new double[HASH_SIZE * HASH_SIZE];
+        final double[] sorted = new double[HASH_SIZE * HASH_SIZE];
+    }
+}
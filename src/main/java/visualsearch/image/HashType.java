@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+public enum HashType {
+    // difference of vertically neighbouring cells on an 8x9 grid
+    DHASH,
+    // 8x8 block means compared to their mean
+    AHASH,
+    // low 8x8 frequencies of a 32x32 DCT compared to their median
+    PHASH,
+    // 8x8 haar low pass band compared to its median
+    WHASH
+}
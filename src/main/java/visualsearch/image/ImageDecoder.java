@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes images with one ImageReader per format and thread. Readers are reused instead of created per image, the
+ * format is sniffed from the magic bytes and images are subsampled while decoding, so only a small multiple of the
+ * pixels the features need is ever allocated.
+ */
+public final class ImageDecoder {
+
+    private static final ThreadLocal<Map<ImageFormat, ImageReader>> READERS = ThreadLocal.withInitial(() -> new EnumMap<>(ImageFormat.class));
+
+    // aborts readers that take longer than DecodeLimits.maxDecodeMillis
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-decode-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * Decodes the image in full resolution.
+     */
+    public static DecodedImage decode(ByteBuffer b) throws IOException {
+        return decode(b, 0, 0);
+    }
+
+    /**
+     * Decodes the image with the largest subsampling that still yields at least minWidth x minHeight pixels.
+     */
+    public static DecodedImage decode(ByteBuffer b, int minWidth, int minHeight) throws IOException {
+        return decode(b, minWidth, minHeight, DecodeLimits.UNLIMITED);
+    }
+
+    public static DecodedImage decode(ByteBuffer b, int minWidth, int minHeight, DecodeLimits limits) throws IOException {
+        ImageFormat format = ImageFormat.sniff(b);
+        if (format == null) {
+            throw new UnsupportedImageFormatException("Unknown image format.");
+        }
+        try (ImageInputStream input = new ByteBufferImageInputStream(b)) {
+            return decode(format, input, minWidth, minHeight, limits);
+        }
+    }
+
+    /**
+     * Decodes the image from a stream that may still be receiving data, for example a {@link ChunkedImageInputStream}.
+     * The stream is not closed.
+     */
+    public static DecodedImage decode(ImageInputStream input, int minWidth, int minHeight, DecodeLimits limits) throws IOException {
+        ImageFormat format = ImageFormat.sniff(input);
+        if (format == null) {
+            throw new UnsupportedImageFormatException("Unknown image format.");
+        }
+        return decode(format, input, minWidth, minHeight, limits);
+    }
+
+    private static DecodedImage decode(ImageFormat format, ImageInputStream input, int minWidth, int minHeight, DecodeLimits limits) throws IOException {
+        ImageReader reader = reader(format);
+        Deadline deadline = new Deadline(reader, input, limits.maxDecodeMillis);
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            limits.checkPixels(width, height);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = subsampling(width, height, minWidth, minHeight);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            BufferedImage image = reader.read(0, param);
+            deadline.check();
+            return new DecodedImage(image, width, height, format);
+        } catch (IOException e) {
+            deadline.check();
+            throw e;
+        } finally {
+            // the deadline must not abort the reader once it is reset and used for the next image
+            deadline.cancel();
+            reader.reset();
+        }
+    }
+
+    /**
+     * Aborts the reader when the time is up. Readers check for the abort after every row, a stream that is waiting for
+     * data is closed instead.
+     */
+    private static class Deadline {
+        private final ImageReader reader;
+        private final ImageInputStream input;
+        private final long millis;
+        private final ScheduledFuture<?> future;
+        private boolean done = false;
+        private boolean expired = false;
+
+        Deadline(ImageReader reader, ImageInputStream input, long millis) {
+            this.reader = reader;
+            this.input = input;
+            this.millis = millis;
+            this.future = millis > 0 ? DEADLINES.schedule(this::expire, millis, TimeUnit.MILLISECONDS) : null;
+        }
+
+        private synchronized void expire() {
+            if (done) {
+                return;
+            }
+            expired = true;
+            reader.abort();
+            if (input instanceof ChunkedImageInputStream) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // the reader fails either way
+                }
+            }
+        }
+
+        synchronized void check() throws ImageLimitExceededException {
+            if (expired) {
+                throw new ImageLimitExceededException(ImageLimitExceededException.Limit.DECODE_TIME,
+                        "Decoding the image took longer than " + millis + "ms.");
+            }
+        }
+
+        synchronized void cancel() {
+            done = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    static int subsampling(int width, int height, int minWidth, int minHeight) {
+        if (minWidth <= 0 || minHeight <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.min(width / minWidth, height / minHeight));
+    }
+
+    private static ImageReader reader(ImageFormat format) throws UnsupportedImageFormatException {
+        Map<ImageFormat, ImageReader> readers = READERS.get();
+        ImageReader reader = readers.get(format);
+        if (reader == null) {
+            Iterator<ImageReader> available = ImageIO.getImageReadersByFormatName(format.formatName);
+            if (!available.hasNext()) {
+                throw new UnsupportedImageFormatException("No reader for image format " + format.formatName + ".");
+            }
+            reader = available.next();
+            readers.put(format, reader);
+        }
+        return reader;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Image formats we can decode, detected from the first bytes of the image rather than content type or file name.
+ */
+public enum ImageFormat {
+    JPEG("jpeg", new int[]{0xFF, 0xD8, 0xFF}),
+    PNG("png", new int[]{0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}),
+    GIF("gif", new int[]{'G', 'I', 'F', '8'}),
+    BMP("bmp", new int[]{'B', 'M'});
+
+    public final String formatName;
+    private final int[] magic;
+
+    ImageFormat(String formatName, int[] magic) {
+        this.formatName = formatName;
+        this.magic = magic;
+    }
+
+    private boolean matches(ByteBuffer b) {
+        if (b.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((b.get(b.position() + i) & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the format or null if the bytes do not start with any of the known signatures
+     */
+    public static ImageFormat sniff(ByteBuffer b) {
+        for (ImageFormat format : values()) {
+            if (format.matches(b)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #sniff(ByteBuffer)} but reads the first bytes from the stream and then resets it to where it was.
+     */
+    public static ImageFormat sniff(ImageInputStream input) throws IOException {
+        byte[] header = new byte[8];
+        input.mark();
+        try {
+            int read = 0;
+            int n;
+            while (read < header.length && (n = input.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+            return sniff(ByteBuffer.wrap(header, 0, read));
+        } finally {
+            input.reset();
+        }
+    }
+}
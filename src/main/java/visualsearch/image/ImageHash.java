@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.image;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helpers for 64 bit image hashes packed into a long. Bit i of the hash is stored at {@code 1L << i}.
+ */
+public final class ImageHash {
+
+    public static final int NUM_BITS = 64;
+    // for multi-index hashing the hash is split into NUM_CHUNKS chunks of CHUNK_BITS bits
+    public static final int NUM_CHUNKS = 4;
+    public static final int CHUNK_BITS = NUM_BITS / NUM_CHUNKS;
+
+    private ImageHash() {
+    }
+
+    public static int hammingDistance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    public static boolean bit(long hash, int i) {
+        return ((hash >>> i) & 1L) != 0;
+    }
+
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        StringBuilder builder = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            builder.append('0');
+        }
+        return builder.append(hex).toString();
+    }
+
+    public static long fromHex(String hex) {
+        if (hex.length() == 0 || hex.length() > 16) {
+            throw new IllegalArgumentException("Hash must be 1 to 16 hex characters but was [" + hex + "]");
+        }
+        return Long.parseUnsignedLong(hex, 16);
+    }
+
+    public static long fromBits(boolean[] bits) {
+        if (bits.length > NUM_BITS) {
+            throw new IllegalArgumentException("Cannot pack " + bits.length + " bits into a long");
+        }
+        long hash = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    public static boolean[] toBits(long hash) {
+        boolean[] bits = new boolean[NUM_BITS];
+        for (int i = 0; i < NUM_BITS; i++) {
+            bits[i] = bit(hash, i);
+        }
+        return bits;
+    }
+
+    /**
+     * The layout that was used before the hash was packed into a long: one boolean field per bit, named dh_0 to dh_63.
+     */
+    public static Map<String, Boolean> toLegacyFields(long hash) {
+        Map<String, Boolean> fields = new HashMap<>();
+        for (int i = 0; i < NUM_BITS; i++) {
+            fields.put("dh_" + i, bit(hash, i));
+        }
+        return fields;
+    }
+
+    public static int chunk(long hash, int i) {
+        return (int) (hash >>> (i * CHUNK_BITS)) & ((1 << CHUNK_BITS) - 1);
+    }
+
+    /**
+     * The chunks of the hash as terms that also encode the chunk position, {@code i << CHUNK_BITS | chunk(hash, i)}, so
+     * that all chunks can be stored in one field.
+     */
+    public static int[] chunkTerms(long hash) {
+        return chunkTerms(hash, 0);
+    }
+
+    /**
+     * All chunk terms that differ from a chunk of the hash in at most chunkRadius bits. Two hashes within distance
+     * {@code NUM_CHUNKS * (chunkRadius + 1) - 1} share at least one of them.
+     */
+    public static int[] chunkTerms(long hash, int chunkRadius) {
+        int perChunk = 0;
+        for (int flips = 0; flips <= chunkRadius; flips++) {
+            perChunk += binomial(CHUNK_BITS, flips);
+        }
+        int[] terms = new int[perChunk * NUM_CHUNKS];
+        int n = 0;
+        for (int i = 0; i < NUM_CHUNKS; i++) {
+            n = variants(i << CHUNK_BITS | chunk(hash, i), chunkRadius, 0, terms, n);
+        }
+        return terms;
+    }
+
+    private static int variants(int term, int flips, int fromBit, int[] terms, int n) {
+        terms[n++] = term;
+        if (flips > 0) {
+            for (int bit = fromBit; bit < CHUNK_BITS; bit++) {
+                n = variants(term ^ (1 << bit), flips - 1, bit + 1, terms, n);
+            }
+        }
+        return n;
+    }
+
+    private static int binomial(int n, int k) {
+        long result = 1;
+        for (int i = 0; i < k; i++) {
+            result = result * (n - i) / (i + 1);
+        }
+        return (int) result;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.image;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an image is rejected before it could use up too much memory or cpu.
+ */
+public class ImageLimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Limit {
+        BYTES, PIXELS, DECODE_TIME
+    }
+
+    public final Limit limit;
+
+    public ImageLimitExceededException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+}
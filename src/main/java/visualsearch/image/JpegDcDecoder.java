@@ -0,0 +1,555 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes only the DC coefficients of the luminance component of a JPEG. The DC coefficient of a block is 8 times the
+ * average of its 64 pixels, so the result is a 1/8 scale gray image without any IDCT. AC coefficients of baseline
+ * images still have to be entropy decoded to find the next block but are thrown away. For progressive images only the
+ * first DC scan is decoded and the rest of the file is never looked at.
+ * <p>
+ * Supports 8 bit baseline, extended sequential and progressive Huffman coded images with one (gray) or three (YCbCr)
+ * components. Returns null for everything else (arithmetic coding, lossless, 12 bit, CMYK, Adobe RGB) so that the
+ * caller can fall back to ImageIO.
+ */
+public final class JpegDcDecoder {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int SOF2 = 0xC2;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int APP14 = 0xEE;
+
+    private final ByteBuffer b;
+    private final int limit;
+    private int pos;
+
+    private final int[] quantDc = new int[4];
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+    private int restartInterval = 0;
+    private int adobeTransform = -1;
+    private Frame frame;
+
+    private long bitBuffer;
+    private int bitCount;
+    private boolean hitMarker;
+    private final DecodeLimits limits;
+
+    private JpegDcDecoder(ByteBuffer b, DecodeLimits limits) {
+        this.b = b;
+        this.limits = limits;
+        this.pos = b.position();
+        this.limit = b.limit();
+    }
+
+    /**
+     * @return the 1/8 scale luminance plane, with width and height of the full image, or null if this JPEG variant
+     * is not supported or too small to give at least one pixel per dHash cell
+     * @throws IOException if the image is corrupt
+     */
+    public static DecodedImage decode(ByteBuffer b) throws IOException {
+        return decode(b, DecodeLimits.UNLIMITED);
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)} but fails before allocating anything if the frame header exceeds the pixel limit.
+     * The DC scan is a small fraction of the work of a full decode, so there is no time limit.
+     */
+    public static DecodedImage decode(ByteBuffer b, DecodeLimits limits) throws IOException {
+        return new JpegDcDecoder(b, limits).decode();
+    }
+
+    private DecodedImage decode() throws IOException {
+        if (readByte() != 0xFF || readByte() != SOI) {
+            return null;
+        }
+        while (true) {
+            int marker = nextMarker();
+            switch (marker) {
+                case SOF0:
+                case SOF1:
+                case SOF2:
+                    frame = readFrame(marker == SOF2);
+                    if (frame == null) {
+                        return null;
+                    }
+                    break;
+                case DHT:
+                    readHuffmanTables();
+                    break;
+                case DQT:
+                    readQuantizationTables();
+                    break;
+                case DRI:
+                    readShort();
+                    restartInterval = readShort();
+                    break;
+                case APP14:
+                    readAdobe();
+                    break;
+                case SOS:
+                    if (frame == null || (frame.components.length == 3 && adobeTransform == 0)) {
+                        return null;
+                    }
+                    Scan scan = readScan();
+                    if (scan.containsLuminance() && scan.spectralStart == 0 && scan.successiveHigh == 0) {
+                        return decodeScan(scan);
+                    }
+                    skipEntropyCodedData();
+                    break;
+                case EOI:
+                    throw new IOException("JPEG has no DC scan for luminance.");
+                default:
+                    if ((marker >= 0xC3 && marker <= 0xCF) && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                        // lossless, hierarchical or arithmetic coded
+                        return null;
+                    }
+                    if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                        break;
+                    }
+                    skip(readShort() - 2);
+            }
+        }
+    }
+
+    private Frame readFrame(boolean progressive) throws IOException {
+        int length = readShort();
+        int precision = readByte();
+        int height = readShort();
+        int width = readShort();
+        int numComponents = readByte();
+        if (precision != 8 || height == 0 || (numComponents != 1 && numComponents != 3)) {
+            skip(length - 8);
+            return null;
+        }
+        limits.checkPixels(width, height);
+        Frame frame = new Frame(progressive, width, height, numComponents);
+        for (int i = 0; i < numComponents; i++) {
+            Component component = new Component();
+            component.id = readByte();
+            int sampling = readByte();
+            component.h = sampling >> 4;
+            component.v = sampling & 0x0F;
+            component.quantTable = readByte() & 0x03;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+                throw new IOException("Invalid sampling factors in JPEG frame header.");
+            }
+            frame.components[i] = component;
+            frame.maxH = Math.max(frame.maxH, component.h);
+            frame.maxV = Math.max(frame.maxV, component.v);
+        }
+        for (Component component : frame.components) {
+            int componentWidth = ceilDiv(width * component.h, frame.maxH);
+            int componentHeight = ceilDiv(height * component.v, frame.maxV);
+            component.blocksPerLine = ceilDiv(componentWidth, 8);
+            component.blocksPerColumn = ceilDiv(componentHeight, 8);
+        }
+        frame.mcusPerLine = ceilDiv(width, 8 * frame.maxH);
+        frame.mcusPerColumn = ceilDiv(height, 8 * frame.maxV);
+        return frame;
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int end = pos + readShort();
+        while (pos < end) {
+            int classAndId = readByte();
+            int[] counts = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                counts[i] = readByte();
+                total += counts[i];
+            }
+            if (total > 256) {
+                throw new IOException("JPEG Huffman table has " + total + " symbols.");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = readByte();
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if ((classAndId >> 4) == 0) {
+                dcTables[classAndId & 0x03] = table;
+            } else {
+                acTables[classAndId & 0x03] = table;
+            }
+        }
+    }
+
+    private void readQuantizationTables() throws IOException {
+        int end = pos + readShort();
+        while (pos < end) {
+            int precisionAndId = readByte();
+            boolean sixteenBit = (precisionAndId >> 4) != 0;
+            // the table is stored in zigzag order, so the DC entry comes first
+            quantDc[precisionAndId & 0x03] = sixteenBit ? readShort() : readByte();
+            skip(sixteenBit ? 126 : 63);
+        }
+    }
+
+    private void readAdobe() throws IOException {
+        int length = readShort();
+        int end = pos + length - 2;
+        if (length >= 14 && readByte() == 'A' && readByte() == 'd' && readByte() == 'o' && readByte() == 'b' && readByte() == 'e') {
+            skip(6);
+            adobeTransform = readByte();
+        }
+        pos = end;
+    }
+
+    private Scan readScan() throws IOException {
+        readShort();
+        Scan scan = new Scan();
+        int numComponents = readByte();
+        scan.components = new Component[numComponents];
+        for (int i = 0; i < numComponents; i++) {
+            int id = readByte();
+            int tables = readByte();
+            Component component = frame.byId(id);
+            if (component == null) {
+                throw new IOException("JPEG scan references unknown component " + id + ".");
+            }
+            component.dcTable = tables >> 4;
+            component.acTable = tables & 0x0F;
+            scan.components[i] = component;
+        }
+        scan.luminance = frame.components[0];
+        scan.spectralStart = readByte();
+        scan.spectralEnd = readByte();
+        int successive = readByte();
+        scan.successiveHigh = successive >> 4;
+        scan.successiveLow = successive & 0x0F;
+        return scan;
+    }
+
+    private DecodedImage decodeScan(Scan scan) throws IOException {
+        Component luminance = scan.luminance;
+        if (luminance.blocksPerLine < DHashKernel.WIDTH || luminance.blocksPerColumn < DHashKernel.HEIGHT) {
+            return null;
+        }
+        for (Component component : scan.components) {
+            component.predictor = 0;
+            if (dcTables[component.dcTable & 0x03] == null || (!frame.progressive && acTables[component.acTable & 0x03] == null)) {
+                throw new IOException("JPEG scan references undefined Huffman table.");
+            }
+        }
+        BufferedImage image = new BufferedImage(luminance.blocksPerLine, luminance.blocksPerColumn, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] plane = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int quant = quantDc[luminance.quantTable];
+        boolean interleaved = scan.components.length > 1;
+        int numMcus = interleaved ? frame.mcusPerLine * frame.mcusPerColumn : luminance.blocksPerLine * luminance.blocksPerColumn;
+        bitBuffer = 0;
+        bitCount = 0;
+        hitMarker = false;
+        for (int mcu = 0; mcu < numMcus; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                restart(scan);
+            }
+            if (interleaved) {
+                int mcuX = mcu % frame.mcusPerLine;
+                int mcuY = mcu / frame.mcusPerLine;
+                for (Component component : scan.components) {
+                    for (int v = 0; v < component.v; v++) {
+                        for (int h = 0; h < component.h; h++) {
+                            int dc = decodeBlock(component, scan);
+                            if (component == luminance) {
+                                store(plane, luminance, mcuX * component.h + h, mcuY * component.v + v, dc * quant);
+                            }
+                        }
+                    }
+                }
+            } else {
+                int dc = decodeBlock(luminance, scan);
+                store(plane, luminance, mcu % luminance.blocksPerLine, mcu / luminance.blocksPerLine, dc * quant);
+            }
+        }
+        return new DecodedImage(image, frame.width, frame.height, ImageFormat.JPEG);
+    }
+
+    private static void store(byte[] plane, Component luminance, int blockX, int blockY, int dcCoefficient) {
+        if (blockX < luminance.blocksPerLine && blockY < luminance.blocksPerColumn) {
+            int value = Math.round(dcCoefficient / 8.0f) + 128;
+            plane[blockY * luminance.blocksPerLine + blockX] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    private int decodeBlock(Component component, Scan scan) throws IOException {
+        int size = dcTables[component.dcTable & 0x03].decode(this);
+        component.predictor += receiveExtend(size);
+        if (frame.progressive) {
+            return component.predictor << scan.successiveLow;
+        }
+        HuffmanTable acTable = acTables[component.acTable & 0x03];
+        for (int k = 1; k < 64; k++) {
+            int runSize = acTable.decode(this);
+            int run = runSize >> 4;
+            int acSize = runSize & 0x0F;
+            if (acSize == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 15;
+            } else {
+                k += run;
+                readBits(acSize);
+            }
+        }
+        return component.predictor;
+    }
+
+    private void restart(Scan scan) throws IOException {
+        bitBuffer = 0;
+        bitCount = 0;
+        hitMarker = false;
+        while (pos + 1 < limit && !(unsigned(pos) == 0xFF && unsigned(pos + 1) >= 0xD0 && unsigned(pos + 1) <= 0xD7)) {
+            pos++;
+        }
+        if (pos + 1 >= limit) {
+            throw new IOException("JPEG restart marker missing.");
+        }
+        pos += 2;
+        for (Component component : scan.components) {
+            component.predictor = 0;
+        }
+    }
+
+    private int receiveExtend(int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int value = readBits(size);
+        if (value < (1 << (size - 1))) {
+            value += (-1 << size) + 1;
+        }
+        return value;
+    }
+
+    private void fillBits() {
+        while (bitCount <= 56) {
+            int next = 0;
+            if (!hitMarker) {
+                if (pos >= limit) {
+                    hitMarker = true;
+                } else if (unsigned(pos) == 0xFF) {
+                    if (pos + 1 < limit && unsigned(pos + 1) == 0) {
+                        next = 0xFF;
+                        pos += 2;
+                    } else {
+                        hitMarker = true;
+                    }
+                } else {
+                    next = unsigned(pos);
+                    pos++;
+                }
+            }
+            bitBuffer |= ((long) next) << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    int peekBits(int n) {
+        if (bitCount < n) {
+            fillBits();
+        }
+        return (int) (bitBuffer >>> (64 - n));
+    }
+
+    void skipBits(int n) {
+        bitBuffer <<= n;
+        bitCount -= n;
+    }
+
+    private int readBits(int n) {
+        int value = peekBits(n);
+        skipBits(n);
+        return value;
+    }
+
+    private void skipEntropyCodedData() {
+        while (pos + 1 < limit) {
+            if (unsigned(pos) == 0xFF) {
+                int next = unsigned(pos + 1);
+                if (next != 0 && (next < 0xD0 || next > 0xD7)) {
+                    return;
+                }
+            }
+            pos++;
+        }
+        pos = limit;
+    }
+
+    private int nextMarker() throws IOException {
+        int c = readByte();
+        while (c != 0xFF) {
+            c = readByte();
+        }
+        while (c == 0xFF) {
+            c = readByte();
+        }
+        return c;
+    }
+
+    private int unsigned(int index) {
+        return b.get(index) & 0xFF;
+    }
+
+    private int readByte() throws IOException {
+        if (pos >= limit) {
+            throw new IOException("Unexpected end of JPEG.");
+        }
+        return unsigned(pos++);
+    }
+
+    private int readShort() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private void skip(int n) throws IOException {
+        if (n < 0 || pos + n > limit) {
+            throw new IOException("Unexpected end of JPEG.");
+        }
+        pos += n;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private static class Frame {
+        final boolean progressive;
+        final int width;
+        final int height;
+        final Component[] components;
+        int maxH = 1;
+        int maxV = 1;
+        int mcusPerLine;
+        int mcusPerColumn;
+
+        Frame(boolean progressive, int width, int height, int numComponents) {
+            this.progressive = progressive;
+            this.width = width;
+            this.height = height;
+            this.components = new Component[numComponents];
+        }
+
+        Component byId(int id) {
+            for (Component component : components) {
+                if (component.id == id) {
+                    return component;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int blocksPerLine;
+        int blocksPerColumn;
+        int predictor;
+    }
+
+    private static class Scan {
+        Component[] components;
+        Component luminance;
+        int spectralStart;
+        int spectralEnd;
+        int successiveHigh;
+        int successiveLow;
+
+        boolean containsLuminance() {
+            for (Component component : components) {
+                if (component == luminance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Canonical Huffman table with a lookup table for codes of up to 9 bits, which covers almost all DC symbols and
+     * the frequent AC symbols.
+     */
+    static class HuffmanTable {
+        private static final int LOOKUP_BITS = 9;
+
+        // (code length << 8) | symbol, 0 if the code is longer than LOOKUP_BITS
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[17];
+        private final int[] minCode = new int[17];
+        private final int[] valueOffset = new int[17];
+        private final int[] values;
+
+        HuffmanTable(int[] counts, int[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k;
+                minCode[length] = code;
+                // more codes than fit in length bits or than there are symbols would index past the tables
+                if (code + counts[length] > (1 << length) || k + counts[length] > values.length) {
+                    throw new IOException("Invalid Huffman table in JPEG.");
+                }
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            lookup[(code << shift) | fill] = (length << 8) | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = counts[length] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+        }
+
+        int decode(JpegDcDecoder decoder) throws IOException {
+            int entry = lookup[decoder.peekBits(LOOKUP_BITS)];
+            if (entry != 0) {
+                decoder.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                int code = decoder.peekBits(length);
+                if (code <= maxCode[length]) {
+                    decoder.skipBits(length);
+                    return values[valueOffset[length] + code - minCode[length]];
+                }
+            }
+            throw new IOException("Invalid Huffman code in JPEG.");
+        }
+    }
+}
@@ -17,45 +17,86 @@
 package visualsearch.image;
 
 
-import com.sun.imageio.plugins.jpeg.JPEGImageReader;
-import com.sun.imageio.plugins.jpeg.JPEGImageReaderSpi;
-
-import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class ProcessImage {
+    // images are subsampled while decoding but never below this size, so that every dHash cell still averages 8x8 pixels
+    // and the 32x32 plane of FeatureExtractor 2x2 pixels
+    public static final int DECODE_MIN_WIDTH = DHashKernel.WIDTH * 8;
+    public static final int DECODE_MIN_HEIGHT = DHashKernel.HEIGHT * 8;
+
+    // set to true to hash JPEGs from their DC coefficients only, see JpegDcDecoder
+    public static final String JPEG_DC_FAST_PATH = "JPEG_DC_FAST_PATH";
+
+    private static final FeatureExtractor FEATURE_EXTRACTOR = FeatureExtractor.fromSystemProperties();
+    private static final DecodeLimits DECODE_LIMITS = DecodeLimits.fromSystemProperties();
+
     public static ProcessedImage getProcessingResult(ByteBuffer b, ProcessedImage.Builder builder) throws IOException {
-        BufferedImage img = byteBufferToBufferedImage(b);
+        return getProcessingResult(b, builder, FEATURE_EXTRACTOR);
+    }
+
+    /**
+     * Decodes the image once and computes all features the extractor is configured for.
+     */
+    public static ProcessedImage getProcessingResult(ByteBuffer b, ProcessedImage.Builder builder, FeatureExtractor featureExtractor) throws IOException {
+        DecodedImage decodedImage = decode(b, Boolean.getBoolean(JPEG_DC_FAST_PATH));
         builder.capacity(b.capacity()).build();
-        builder.numPixels(img.getWidth() * img.getHeight());
-        builder.dHash(dHash(img));
+        builder.numPixels(decodedImage.width * decodedImage.height);
+        featureExtractor.extract(decodedImage.image, builder);
         return builder.build();
     }
 
-    public static boolean[] dHash(BufferedImage img) {
-        return pixelDiffsLeftToRight(shrinkImage(img));
+    /**
+     * Decodes the image while it is still being received. receivedBytes is the length of the stream if known and
+     * otherwise the number of bytes the decoder consumed. The JPEG DC fast path needs the whole image and is not used.
+     */
+    public static ProcessedImage getProcessingResult(ImageInputStream input, ProcessedImage.Builder builder) throws IOException {
+        DecodedImage decodedImage = ImageDecoder.decode(input, DECODE_MIN_WIDTH, DECODE_MIN_HEIGHT, DECODE_LIMITS);
+        long length = input.length();
+        builder.capacity((int) (length >= 0 ? length : input.getStreamPosition()));
+        builder.numPixels(decodedImage.width * decodedImage.height);
+        FEATURE_EXTRACTOR.extract(decodedImage.image, builder);
+        return builder.build();
+    }
+
+    public static DecodedImage decode(ByteBuffer b, boolean jpegDcFastPath) throws IOException {
+        if (jpegDcFastPath && ImageFormat.sniff(b) == ImageFormat.JPEG) {
+            try {
+                DecodedImage decodedImage = JpegDcDecoder.decode(b, DECODE_LIMITS);
+                if (decodedImage != null) {
+                    return decodedImage;
+                }
+            } catch (ImageLimitExceededException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                // let the full decoder decide whether the image is really broken
+            }
+        }
+        return ImageDecoder.decode(b, DECODE_MIN_WIDTH, DECODE_MIN_HEIGHT, DECODE_LIMITS);
+    }
+
+    public static long dHash(BufferedImage img) {
+        return DHashKernel.dHash(img);
     }
 
     public static BufferedImage byteBufferToBufferedImage(ByteBuffer b) throws IOException {
-        JPEGImageReaderSpi spi = new JPEGImageReaderSpi();
-        JPEGImageReader imageReader = new JPEGImageReader(spi);
-        MemoryCacheImageInputStream memoryCacheImageInputStream = new MemoryCacheImageInputStream(new ByteArrayInputStream(b.array()));
-        imageReader.setInput(memoryCacheImageInputStream);
-        return imageReader.read(0);
+        return ImageDecoder.decode(b).image;
     }
 
 
-    public static boolean[] pixelDiffsLeftToRight(BufferedImage outputImage) {
-        boolean[] result = new boolean[64];
+    public static long pixelDiffsLeftToRight(BufferedImage outputImage) {
+        long result = 0;
         for (int i = 0; i < 8; i++) {
             for (int j = 0; j < 8; j++) {
                 int current = outputImage.getRaster().getSample(i, j, 0);
                 int next = outputImage.getRaster().getSample(i, j + 1, 0);
-                result[i * 8 + j] = current < next;
+                if (current < next) {
+                    result |= 1L << (i * 8 + j);
+                }
             }
         }
         return result;
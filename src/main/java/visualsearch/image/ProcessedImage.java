@@ -16,32 +16,62 @@
 
 package visualsearch.image;
 
-import java.util.HashMap;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.Map;
 
 public class ProcessedImage {
+    public static final String LEGACY_DHASH_FIELDS = "LEGACY_DHASH_FIELDS";
+    public static final String HASH_CHUNKS = "HASH_CHUNKS";
+
     public final int receivedBytes;
     public final String imageUrl;
     public int numPixels = 0;
+    public final long dHashLong;
+    public final String dHashHex;
+    // only set if the hash is enabled in FeatureExtractor.IMAGE_HASHES
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final Long aHashLong;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final Long pHashLong;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final Long wHashLong;
+    // one boolean per bit, only written if LEGACY_DHASH_FIELDS is set so that old indices can still be queried
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public final Map<String, Boolean> dHash;
+    // the dHash split into chunks for multi-index hashing, see ImageHash.chunkTerms, only written if HASH_CHUNKS is set
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final int[] dHashChunks;
 
 
-    protected ProcessedImage(int receivedBytes, String imageUrl, int numPixels, Map<String,Boolean> dHash) {
+    protected ProcessedImage(int receivedBytes, String imageUrl, int numPixels, long dHashLong, Long aHashLong, Long pHashLong, Long wHashLong, Map<String, Boolean> dHash, int[] dHashChunks) {
         this.receivedBytes = receivedBytes;
         this.imageUrl = imageUrl;
         this.numPixels = numPixels;
+        this.dHashLong = dHashLong;
+        this.dHashHex = ImageHash.toHex(dHashLong);
+        this.aHashLong = aHashLong;
+        this.pHashLong = pHashLong;
+        this.wHashLong = wHashLong;
         this.dHash = dHash;
+        this.dHashChunks = dHashChunks;
     }
 
     public static class Builder {
         int capacity = 0;
         String imageUrl;
         int numPixels;
-        Map<String, Boolean> dHash = new HashMap();
+        long dHash;
+        Long aHash;
+        Long pHash;
+        Long wHash;
+        boolean legacyDHashFields = Boolean.getBoolean(LEGACY_DHASH_FIELDS);
+        boolean hashChunks = Boolean.getBoolean(HASH_CHUNKS);
 
         public ProcessedImage build() {
             assert (imageUrl != null);
-            return new ProcessedImage(capacity, imageUrl, numPixels, dHash);
+            return new ProcessedImage(capacity, imageUrl, numPixels, dHash, aHash, pHash, wHash, legacyDHashFields ? ImageHash.toLegacyFields(dHash) : null,
+                    hashChunks ? ImageHash.chunkTerms(dHash) : null);
         }
 
         public Builder capacity(int capacity) {
@@ -59,10 +89,34 @@ public class ProcessedImage {
             return this;
         }
 
-        public void dHash(boolean[] hashBits) {
-            for (int i = 0; i < hashBits.length; i++) {
-                dHash.put("dh_" + i, hashBits[i]);
-            }
+        public Builder dHash(long dHash) {
+            this.dHash = dHash;
+            return this;
+        }
+
+        public Builder aHash(long aHash) {
+            this.aHash = aHash;
+            return this;
+        }
+
+        public Builder pHash(long pHash) {
+            this.pHash = pHash;
+            return this;
+        }
+
+        public Builder wHash(long wHash) {
+            this.wHash = wHash;
+            return this;
+        }
+
+        public Builder legacyDHashFields(boolean legacyDHashFields) {
+            this.legacyDHashFields = legacyDHashFields;
+            return this;
+        }
+
+        public Builder hashChunks(boolean hashChunks) {
+            this.hashChunks = hashChunks;
+            return this;
         }
     }
 
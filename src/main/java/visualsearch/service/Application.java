@@ -23,7 +23,9 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import visualsearch.service.index.BulkIndexImageHandler;
 import visualsearch.service.index.IndexImageHandler;
+import visualsearch.service.search.BatchSearchImageHandler;
 import visualsearch.service.search.SearchImageHandler;
 
 import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
@@ -42,8 +44,18 @@ public class Application {
         return route(POST("/image"), indexImageHandler::handle);
     }
 
+    @Bean
+    public RouterFunction<ServerResponse> bulkIndexImageRouterFunction(BulkIndexImageHandler bulkIndexImageHandler) {
+        return route(POST("/image/bulk"), bulkIndexImageHandler::handle);
+    }
+
     @Bean
     public RouterFunction<ServerResponse> searchImageRouterFunction(SearchImageHandler searchImageHandler) {
         return route(POST("/image_search"), searchImageHandler::handle);
     }
-}
\ No newline at end of file
+
+    @Bean
+    public RouterFunction<ServerResponse> batchSearchImageRouterFunction(BatchSearchImageHandler batchSearchImageHandler) {
+        return route(POST("/image_search/batch"), batchSearchImageHandler::handle);
+    }
+}
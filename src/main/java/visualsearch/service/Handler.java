@@ -16,51 +16,105 @@
 
 package visualsearch.service;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ReactiveHttpInputMessage;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.FormFieldPart;
+import org.springframework.http.codec.multipart.Part;
 import org.springframework.web.reactive.function.BodyExtractor;
 import org.springframework.web.reactive.function.BodyExtractors;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Mono;
+import visualsearch.image.ImageLimitExceededException;
 import visualsearch.image.ProcessImage;
 import visualsearch.image.ProcessedImage;
+import visualsearch.image.UnsupportedImageFormatException;
 import visualsearch.service.search.SearchImageHandler;
+import visualsearch.service.services.ContentIdService;
 import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.ImageProcessingService;
 import visualsearch.service.services.ImageRetrieveService;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
 
 public abstract class Handler<Request, Response extends AbstractResponse> {
 
+    // batch requests with more items are rejected
+    public static final String MAX_BATCH_SIZE = "MAX_BATCH_SIZE";
+    protected static final int maxBatchSize = Integer.getInteger(MAX_BATCH_SIZE, 1000);
+    // number of images of one batch request that are fetched and processed at the same time
+    public static final String BATCH_CONCURRENCY = "BATCH_CONCURRENCY";
+    protected static final int batchConcurrency = Integer.getInteger(BATCH_CONCURRENCY, 16);
+
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
     protected final ImageRetrieveService imageRetrieveService;
     protected final ElasticService elasticService;
+    protected final ImageProcessingService imageProcessingService;
+    protected final FeatureCacheService featureCacheService;
 
     final BodyExtractor<Mono<Request>, ReactiveHttpInputMessage> requestExtractor;
+    private final Class<Request> requestClass;
+    private static final ObjectMapper parameterMapper = new ObjectMapper()
+            .enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY);
 
-    public Handler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, Class<Request> requestClass) {
+    public Handler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, ImageProcessingService imageProcessingService,
+                   FeatureCacheService featureCacheService, Class<Request> requestClass) {
         requestExtractor = BodyExtractors.toMono(requestClass);
+        this.requestClass = requestClass;
         this.imageRetrieveService = imageRetrieveService;
         this.elasticService = elasticService;
+        this.imageProcessingService = imageProcessingService;
+        this.featureCacheService = featureCacheService;
     }
 
     protected static Mono<ServerResponse> handleError(Throwable t) {
+        RequestFailedException requestFailedException = toRequestFailedException(t);
+        return ServerResponse
+                .status(requestFailedException.getHttpStatus())
+                .contentType(APPLICATION_JSON)
+                .body(Mono.just(new ErrorMessage(requestFailedException.getMessage())), ErrorMessage.class);
+    }
+
+    /**
+     * The status and message a failure is reported with.
+     */
+    protected static RequestFailedException toRequestFailedException(Throwable t) {
+        if (t instanceof ImageLimitExceededException) {
+            // thrown by ImageRetrieveService while the image is still being fetched
+            return limitExceeded((ImageLimitExceededException) t);
+        }
         if (t instanceof Handler.RequestFailedException) {
-            RequestFailedException requestFailedException = (RequestFailedException) t;
-            return ServerResponse
-                    .status(requestFailedException.getHttpStatus())
-                    .contentType(APPLICATION_JSON)
-                    .body(Mono.just(new ErrorMessage(requestFailedException.getMessage())), ErrorMessage.class);
-        } else {
-            return ServerResponse
-                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .contentType(APPLICATION_JSON)
-                    .body(Mono.just(new ErrorMessage(t.toString())), ErrorMessage.class);
+            return (RequestFailedException) t;
+        }
+        return new RequestFailedException(HttpStatus.INTERNAL_SERVER_ERROR, t.toString());
+    }
+
+    protected static void checkBatchSize(List<?> items, String name) {
+        if (items == null || items.isEmpty()) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, name + " was not specified in request.");
+        }
+        if (items.size() > maxBatchSize) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "At most " + maxBatchSize + " " + name + " are allowed in one request.");
         }
     }
 
@@ -72,6 +126,115 @@ public abstract class Handler<Request, Response extends AbstractResponse> {
         }
     }
 
+    /**
+     * Processes the base64 encoded image if there is one and otherwise the image at imageUrl.
+     */
+    protected Mono<ProcessedImage> processRequestImage(String image, String imageUrl, boolean dHashOnly) {
+        return processRequestImage(null, image, imageUrl, dHashOnly);
+    }
+
+    /**
+     * Processes the uploaded image while it is received if there is one, and otherwise like
+     * {@link #processRequestImage(String, String, boolean)}.
+     */
+    protected Mono<ProcessedImage> processRequestImage(ImageUpload upload, String image, String imageUrl, boolean dHashOnly) {
+        if (upload != null) {
+            return imageRetrieveService.receiveImage(upload.body, upload.contentLength)
+                    .flatMap(imageResponse -> scheduleProcessing(imageResponse));
+        }
+        if (image != null) {
+            return scheduleProcessing(inlineImage(image));
+        }
+        return fetchAndProcess(imageUrl, dHashOnly);
+    }
+
+    /**
+     * The whole body of the uploaded image, the base64 encoded image or the image at imageUrl, whichever is set first, never streamed
+     * and without looking at the feature cache.
+     */
+    protected Mono<ImageRetrieveService.ImageFetchResponse> requestImageBytes(String image, String imageUrl) {
+        return requestImageBytes(null, image, imageUrl);
+    }
+
+    protected Mono<ImageRetrieveService.ImageFetchResponse> requestImageBytes(ImageUpload upload, String image, String imageUrl) {
+        if (upload != null) {
+            return imageRetrieveService.receiveImageBytes(upload.body, upload.contentLength);
+        }
+        if (image != null) {
+            return Mono.just(inlineImage(image));
+        }
+        if (imageUrl == null) {
+            throw new SearchImageHandler.RequestFailedException(HttpStatus.BAD_REQUEST, "imageUrl was not specified in request.");
+        }
+        return imageRetrieveService.fetchImage(new ImageRetrieveService.FetchImageRequest(imageUrl), false);
+    }
+
+    private static ImageRetrieveService.ImageFetchResponse inlineImage(String image) {
+        byte[] imageBytes = Base64.getMimeDecoder().decode(image);
+        return new ImageRetrieveService.ImageFetchResponse(ByteBuffer.wrap(imageBytes), HttpStatus.OK, "none");
+    }
+
+    /**
+     * Fetches and processes the image at imageUrl unless its features are in the feature cache.
+     *
+     * @param dHashOnly whether the caller only needs the dHash of the image
+     */
+    protected Mono<ProcessedImage> fetchAndProcess(String imageUrl, boolean dHashOnly) {
+        ProcessedImage cached = featureCacheService.get(imageUrl, dHashOnly);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return fetchImage(imageUrl)
+                .flatMap(imageResponse -> scheduleProcessing(imageResponse))
+                .doOnNext(processedImage -> featureCacheService.put(processedImage));
+    }
+
+    /**
+     * Decodes and hashes the image on the image processing pool instead of the thread that delivered the image. Images
+     * that are still being received go to the streaming decode pool, where waiting for the network does not hold a
+     * processing thread.
+     */
+    protected Mono<ProcessedImage> scheduleProcessing(ImageRetrieveService.ImageFetchResponse imageResponse) {
+        if (imageResponse.statusCode() != HttpStatus.OK) {
+            return Mono.error(fetchFailed(imageResponse));
+        }
+        Mono<ProcessedImage> processed = imageResponse.isStreaming()
+                ? imageProcessingService.submitStreaming(() -> processImage(imageResponse))
+                : imageProcessingService.submit(() -> processImage(imageResponse));
+        return processed
+                .onErrorMap(RejectedExecutionException.class, e -> new RequestFailedException(HttpStatus.SERVICE_UNAVAILABLE, "Too many images are being processed, try again later."))
+                // a streamed download is not needed anymore once the image was decoded
+                .doFinally(signal -> imageResponse.close());
+    }
+
+    /**
+     * Fetches the bytes of the image and looks it up by its content id. If a document with that id exists the url is
+     * added to its aliases and indexed is called with the id, otherwise notIndexed with the id and the response to
+     * decode. A failed fetch fails like {@link #scheduleProcessing}.
+     */
+    protected <T> Mono<T> lookUpContent(ContentIdService contentIdService, ImageUpload upload, String image, String imageUrl,
+                                        Function<String, Mono<T>> indexed,
+                                        BiFunction<String, ImageRetrieveService.ImageFetchResponse, Mono<T>> notIndexed) {
+        return requestImageBytes(upload, image, imageUrl).flatMap(imageResponse -> {
+            if (imageResponse.statusCode() != HttpStatus.OK) {
+                return Mono.error(fetchFailed(imageResponse));
+            }
+            String id = ContentIdService.contentId(imageResponse.body());
+            return contentIdService.addAlias(id, imageUrl).flatMap(exists -> {
+                if (exists) {
+                    imageResponse.close();
+                    return indexed.apply(id);
+                }
+                return notIndexed.apply(id, imageResponse);
+            });
+        });
+    }
+
+    private static RequestFailedException fetchFailed(ImageRetrieveService.ImageFetchResponse imageResponse) {
+        imageResponse.close();
+        return new SearchImageHandler.RequestFailedException(imageResponse.statusCode(), "Could not fetch image.");
+    }
+
     protected static ProcessedImage processImage(ImageRetrieveService.ImageFetchResponse imageResponse) {
         if (imageResponse.statusCode() != HttpStatus.OK) {
             throw new SearchImageHandler.RequestFailedException(imageResponse.statusCode(), "Could not fetch image.");
@@ -84,12 +247,24 @@ public abstract class Handler<Request, Response extends AbstractResponse> {
 
     protected static ProcessedImage processImage(ImageRetrieveService.ImageFetchResponse imageResponse, ProcessedImage.Builder resultBuilder) {
         try {
+            if (imageResponse.isStreaming()) {
+                return ProcessImage.getProcessingResult(imageResponse.stream(), resultBuilder);
+            }
             return ProcessImage.getProcessingResult(imageResponse.body(), resultBuilder);
+        } catch (ImageLimitExceededException e) {
+            throw limitExceeded(e);
+        } catch (UnsupportedImageFormatException e) {
+            throw new SearchImageHandler.RequestFailedException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, e, "Could not process image: ");
         } catch (IOException e) {
             throw new SearchImageHandler.RequestFailedException(HttpStatus.INTERNAL_SERVER_ERROR, e, "Could not process image: ");
         }
     }
 
+    protected static RequestFailedException limitExceeded(ImageLimitExceededException e) {
+        HttpStatus status = e.limit == ImageLimitExceededException.Limit.DECODE_TIME ? HttpStatus.UNPROCESSABLE_ENTITY : HttpStatus.PAYLOAD_TOO_LARGE;
+        return new RequestFailedException(status, "Image rejected: " + e.getMessage());
+    }
+
     protected static String getElasticsearchResponse(ElasticService.ElasticResponse elasticResponse) {
         try {
             return elasticResponse.getBody();
@@ -100,12 +275,58 @@ public abstract class Handler<Request, Response extends AbstractResponse> {
 
 
     public Mono<ServerResponse> handle(ServerRequest request) {
-        Mono<Request> indexImageRequestMono = request.body(requestExtractor);
+        Mono<Request> indexImageRequestMono = extractRequest(request);
         return computeResponse(indexImageRequestMono)
                 .flatMap(response -> response.getServerResponse())
                 .onErrorResume(t -> handleError(t));
     }
 
+    /**
+     * The json request, or for requests that take an {@link ImageUpload} the image as raw body (application/octet-stream
+     * or image/*) or as the multipart file "image" (multipart/form-data). The other fields of the request are then read
+     * from the query parameters and form fields.
+     */
+    Mono<Request> extractRequest(ServerRequest request) {
+        MediaType contentType = request.headers().contentType().orElse(null);
+        boolean raw = contentType != null && (APPLICATION_OCTET_STREAM.includes(contentType) || "image".equals(contentType.getType()));
+        boolean multipart = contentType != null && MULTIPART_FORM_DATA.includes(contentType);
+        if (!raw && !multipart) {
+            return request.body(requestExtractor);
+        }
+        if (!ImageUpload.Target.class.isAssignableFrom(requestClass)) {
+            return Mono.error(new RequestFailedException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Images cannot be uploaded with " + contentType + " here, send json."));
+        }
+        Map<String, String> fields = new HashMap<>(request.queryParams().toSingleValueMap());
+        if (raw) {
+            return Mono.fromCallable(() -> uploadRequest(fields, new ImageUpload(request.bodyToFlux(DataBuffer.class), request.headers().contentLength().orElse(-1))));
+        }
+        return request.body(BodyExtractors.toParts()).collectList().map(parts -> {
+            ImageUpload upload = null;
+            for (Part part : parts) {
+                if (part instanceof FilePart && "image".equals(part.name())) {
+                    upload = new ImageUpload(part.content(), part.headers().getContentLength());
+                } else if (part instanceof FormFieldPart) {
+                    fields.put(part.name(), ((FormFieldPart) part).value());
+                }
+            }
+            if (upload == null) {
+                throw new RequestFailedException(HttpStatus.BAD_REQUEST, "The multipart request has no file part named image.");
+            }
+            return uploadRequest(fields, upload);
+        });
+    }
+
+    private Request uploadRequest(Map<String, String> fields, ImageUpload upload) {
+        Request uploadRequest;
+        try {
+            uploadRequest = parameterMapper.convertValue(fields, requestClass);
+        } catch (IllegalArgumentException e) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "Invalid request parameters: " + e.getMessage());
+        }
+        ((ImageUpload.Target) uploadRequest).upload(upload);
+        return uploadRequest;
+    }
+
     protected abstract Mono<Response> computeResponse(Mono<Request> indexImageRequestMono);
 
     public static class ErrorMessage {
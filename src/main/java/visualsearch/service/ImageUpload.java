@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+
+/**
+ * An image sent as the raw request body or as a multipart file instead of base64 encoded in the json request. The body
+ * is read once, while it is received.
+ */
+public class ImageUpload {
+
+    public final Flux<DataBuffer> body;
+    // -1 if not known
+    public final long contentLength;
+
+    public ImageUpload(Flux<DataBuffer> body, long contentLength) {
+        this.body = body;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Implemented by requests that can take an uploaded image, their other fields are then read from the query
+     * parameters or form fields.
+     */
+    public interface Target {
+        void upload(ImageUpload upload);
+    }
+}
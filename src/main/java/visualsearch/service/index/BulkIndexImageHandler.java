@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.index;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import visualsearch.image.ProcessedImage;
+import visualsearch.service.Handler;
+import visualsearch.service.services.BulkWriteService;
+import visualsearch.service.services.ContentIdService;
+import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.IndexedUrlService;
+import visualsearch.service.services.ImageProcessingService;
+import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes many images with one request. The images are fetched and processed concurrently and written to elasticsearch
+ * with _bulk requests of at most BULK_MAX_DOCS documents and BULK_MAX_BYTES bytes (see {@link BulkWriteService}). Every
+ * image gets its own id or error, in the order of the request, so one bad image does not fail the others.
+ */
+@Component
+public class BulkIndexImageHandler extends Handler<BulkIndexImageRequest, BulkIndexImageResponse> {
+
+    private final HashIndexService hashIndexService;
+    private final SegmentStoreService segmentStoreService;
+    private final SearchCacheService searchCacheService;
+    private final BulkWriteService bulkWriteService;
+    private final ContentIdService contentIdService;
+    private final IndexedUrlService indexedUrlService;
+
+    public BulkIndexImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, ImageProcessingService imageProcessingService,
+                                 FeatureCacheService featureCacheService, HashIndexService hashIndexService, SegmentStoreService segmentStoreService,
+                                 SearchCacheService searchCacheService, BulkWriteService bulkWriteService, ContentIdService contentIdService,
+                                 IndexedUrlService indexedUrlService) {
+        super(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, BulkIndexImageRequest.class);
+        this.hashIndexService = hashIndexService;
+        this.segmentStoreService = segmentStoreService;
+        this.searchCacheService = searchCacheService;
+        this.bulkWriteService = bulkWriteService;
+        this.contentIdService = contentIdService;
+        this.indexedUrlService = indexedUrlService;
+    }
+
+    @Override
+    protected Mono<BulkIndexImageResponse> computeResponse(Mono<BulkIndexImageRequest> bulkIndexImageRequestMono) {
+        return bulkIndexImageRequestMono.flatMap(bulkIndexImageRequest -> {
+            checkBatchSize(bulkIndexImageRequest, "images");
+            long start = System.nanoTime();
+            return Flux.fromIterable(bulkIndexImageRequest)
+                    .flatMapSequential(indexImageRequest -> process(new Item(indexImageRequest)), batchConcurrency)
+                    .collectList()
+                    .flatMap(items -> store(items).thenReturn(items))
+                    .map(items -> {
+                        boolean indexed = false;
+                        for (Item item : items) {
+                            if (item.error == null && item.id != null) {
+                                indexedUrlService.add(item.request.imageUrl);
+                                indexed = true;
+                            }
+                        }
+                        if (indexed) {
+                            searchCacheService.invalidate();
+                        }
+                        return response(items, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    });
+        });
+    }
+
+    private Mono<Item> process(Item item) {
+        Mono<ProcessedImage> processedImageMono = contentIdService.isEnabled() && !segmentStoreService.isEnabled()
+                ? Mono.defer(() -> processByContent(item))
+                : Mono.defer(() -> processRequestImage(item.request.image, item.request.imageUrl, false));
+        if (indexedUrlService.isEnabled() && !segmentStoreService.isEnabled() && item.request.image == null && item.request.imageUrl != null) {
+            Mono<ProcessedImage> process = processedImageMono;
+            processedImageMono = indexedUrlService.findIndexed(item.request.imageUrl)
+                    .doOnNext(id -> item.id = id)
+                    .hasElement()
+                    .flatMap(indexed -> indexed ? Mono.<ProcessedImage>empty() : process);
+        }
+        return processedImageMono
+                .map(processedImage -> {
+                    item.processedImage = processedImage;
+                    item.document = IndexImageHandler.imageToJsonDocument(processedImage).getBytes(StandardCharsets.UTF_8);
+                    return item;
+                })
+                .defaultIfEmpty(item)
+                .onErrorResume(t -> {
+                    item.error = toRequestFailedException(t);
+                    return Mono.just(item);
+                });
+    }
+
+    /**
+     * Like {@link IndexImageHandler}, an image that was indexed before is not decoded and gets the id of its document.
+     */
+    private Mono<ProcessedImage> processByContent(Item item) {
+        return lookUpContent(contentIdService, null, item.request.image, item.request.imageUrl,
+                id -> {
+                    item.id = id;
+                    return Mono.empty();
+                },
+                (id, imageResponse) -> {
+                    item.contentId = id;
+                    return scheduleProcessing(imageResponse);
+                });
+    }
+
+    private Mono<Void> store(List<Item> items) {
+        List<Item> processed = new ArrayList<>();
+        for (Item item : items) {
+            if (item.error == null && item.document != null) {
+                processed.add(item);
+            }
+        }
+        if (segmentStoreService.isEnabled()) {
+            // the segment store already commits concurrent adds together
+            return Flux.fromIterable(processed)
+                    .flatMap(item -> segmentStoreService.add(item.processedImage.dHashLong, new String(item.document, StandardCharsets.UTF_8))
+                            .doOnNext(id -> item.id = id)
+                            .onErrorResume(t -> {
+                                item.error = toRequestFailedException(t);
+                                return Mono.empty();
+                            }), batchConcurrency)
+                    .then();
+        }
+        return Flux.fromIterable(chunks(processed, bulkWriteService.maxDocs(), bulkWriteService.maxBytes()))
+                .concatMap(this::write)
+                .then();
+    }
+
+    private Mono<Void> write(List<Item> chunk) {
+        List<String> ids = new ArrayList<>(chunk.size());
+        List<byte[]> documents = new ArrayList<>(chunk.size());
+        for (Item item : chunk) {
+            ids.add(item.contentId);
+            documents.add(item.document);
+        }
+        return elasticService.bulk(ElasticService.bulkIndexBody(ids, documents))
+                .flatMapMany(elasticResponse -> {
+                    List<ElasticService.BulkItem> bulkItems = ElasticService.bulkItems(elasticResponse, chunk.size());
+                    List<Item> conflicts = new ArrayList<>();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        Item item = chunk.get(i);
+                        ElasticService.BulkItem bulkItem = bulkItems.get(i);
+                        if (bulkItem.isSuccess()) {
+                            item.id = bulkItem.id;
+                            hashIndexService.add(item.id, item.processedImage);
+                        } else if (bulkItem.status == HttpStatus.CONFLICT && item.contentId != null) {
+                            // the same image was indexed concurrently or earlier in this request
+                            item.id = item.contentId;
+                            conflicts.add(item);
+                        } else {
+                            item.error = new RequestFailedException(bulkItem.status, "Cannot write to elastic: " + bulkItem.error);
+                        }
+                    }
+                    return Flux.fromIterable(conflicts)
+                            .flatMap(item -> contentIdService.addAlias(item.id, item.request.imageUrl)
+                                    .onErrorResume(t -> {
+                                        item.error = toRequestFailedException(t);
+                                        return Mono.empty();
+                                    }), batchConcurrency);
+                })
+                .onErrorResume(t -> {
+                    for (Item item : chunk) {
+                        item.error = toRequestFailedException(t);
+                    }
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Splits the items in order into chunks of at most maxDocs documents and maxBytes bytes of documents. A document that
+     * is larger than maxBytes gets a chunk of its own.
+     */
+    static List<List<Item>> chunks(List<Item> items, int maxDocs, long maxBytes) {
+        List<List<Item>> chunks = new ArrayList<>();
+        List<Item> chunk = new ArrayList<>();
+        long bytes = 0;
+        for (Item item : items) {
+            if (!chunk.isEmpty() && (chunk.size() == maxDocs || bytes + item.document.length > maxBytes)) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(item);
+            bytes += item.document.length;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    static BulkIndexImageResponse response(List<Item> items, long took) {
+        BulkIndexImageResponse response = new BulkIndexImageResponse();
+        response.took = took;
+        response.items = new ArrayList<>(items.size());
+        for (Item item : items) {
+            BulkIndexImageResponse.Item responseItem = new BulkIndexImageResponse.Item();
+            if (item.error != null) {
+                responseItem.status = item.error.getHttpStatus().value();
+                responseItem.error = item.error.getMessage();
+                response.errors = true;
+            } else {
+                responseItem._id = item.id;
+                responseItem.status = HttpStatus.CREATED.value();
+            }
+            response.items.add(responseItem);
+        }
+        return response;
+    }
+
+    static class Item {
+        final IndexImageRequest request;
+        ProcessedImage processedImage;
+        byte[] document;
+        // the id to create the document with, null for a generated id
+        String contentId;
+        String id;
+        RequestFailedException error;
+
+        Item(IndexImageRequest request) {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.index;
+
+import java.util.ArrayList;
+
+/**
+ * A json array of images to index, each like the body of a single index request. This is what the logstash http output
+ * sends with format json_batch.
+ */
+public class BulkIndexImageRequest extends ArrayList<IndexImageRequest> {
+
+    private static final long serialVersionUID = 1L;
+}
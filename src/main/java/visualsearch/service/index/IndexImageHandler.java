@@ -23,38 +23,130 @@ import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
 import visualsearch.image.ProcessedImage;
 import visualsearch.service.Handler;
+import visualsearch.service.services.BulkWriteService;
+import visualsearch.service.services.ContentIdService;
 import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.IndexedUrlService;
+import visualsearch.service.services.ImageProcessingService;
 import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 @Component
 public class IndexImageHandler extends Handler<IndexImageRequest, IndexImageResponse> {
 
-    public IndexImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService) {
-        super(imageRetrieveService, elasticService, IndexImageRequest.class);
+    private final HashIndexService hashIndexService;
+    private final SegmentStoreService segmentStoreService;
+    private final SearchCacheService searchCacheService;
+    private final BulkWriteService bulkWriteService;
+    private final ContentIdService contentIdService;
+    private final IndexedUrlService indexedUrlService;
+
+    public IndexImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, ImageProcessingService imageProcessingService,
+                             FeatureCacheService featureCacheService, HashIndexService hashIndexService, SegmentStoreService segmentStoreService,
+                             SearchCacheService searchCacheService, BulkWriteService bulkWriteService, ContentIdService contentIdService,
+                             IndexedUrlService indexedUrlService) {
+        super(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, IndexImageRequest.class);
+        this.hashIndexService = hashIndexService;
+        this.segmentStoreService = segmentStoreService;
+        this.searchCacheService = searchCacheService;
+        this.bulkWriteService = bulkWriteService;
+        this.contentIdService = contentIdService;
+        this.indexedUrlService = indexedUrlService;
     }
 
     @Override
     protected Mono<IndexImageResponse> computeResponse(Mono<IndexImageRequest> indexImageRequestMono) {
-        return indexImageRequestMono
-                .flatMap(searchImageRequest ->
-                {
-                    if (searchImageRequest.image != null) {
-                        byte[] imageBytes = Base64.getMimeDecoder().decode(searchImageRequest.image);
-                        ByteBuffer byteBuffer = ByteBuffer.wrap(imageBytes);
-                        ImageRetrieveService.ImageFetchResponse imageResponse = new ImageRetrieveService.ImageFetchResponse(byteBuffer, HttpStatus.OK, "none");
-                        return Mono.just(imageResponse);
-                    } else {
-                        return fetchImage(searchImageRequest.imageUrl);
+        return indexImageRequestMono.flatMap(indexImageRequest -> {
+            if (indexedUrlService.isEnabled() && !segmentStoreService.isEnabled() && indexImageRequest.image == null && indexImageRequest.upload == null
+                    && indexImageRequest.imageUrl != null) {
+                // a url that was indexed before is neither fetched nor written again
+                return indexedUrlService.findIndexed(indexImageRequest.imageUrl)
+                        .map(id -> response(id))
+                        .switchIfEmpty(Mono.defer(() -> index(indexImageRequest)));
+            }
+            return index(indexImageRequest);
+        });
+    }
+
+    private Mono<IndexImageResponse> index(IndexImageRequest indexImageRequest) {
+        Mono<IndexImageResponse> indexed = contentIdService.isEnabled() && !segmentStoreService.isEnabled()
+                ? indexByContent(indexImageRequest)
+                : processRequestImage(indexImageRequest.upload, indexImageRequest.image, indexImageRequest.imageUrl, false).flatMap(processedImage -> store(processedImage));
+        return indexed.doOnNext(response -> {
+            indexedUrlService.add(indexImageRequest.imageUrl);
+            searchCacheService.invalidate();
+        });
+    }
+
+    /**
+     * Looks the image up by the digest of its bytes and only decodes it if it was not indexed before.
+     */
+    private Mono<IndexImageResponse> indexByContent(IndexImageRequest indexImageRequest) {
+        return lookUpContent(contentIdService, indexImageRequest.upload, indexImageRequest.image, indexImageRequest.imageUrl,
+                id -> Mono.just(response(id)),
+                (id, imageResponse) -> scheduleProcessing(imageResponse).flatMap(processedImage -> create(id, processedImage, indexImageRequest.imageUrl)));
+    }
+
+    private Mono<IndexImageResponse> create(String id, ProcessedImage processedImage, String imageUrl) {
+        byte[] document = imageToJsonDocument(processedImage).getBytes(StandardCharsets.UTF_8);
+        Mono<HttpStatus> created = bulkWriteService.isEnabled()
+                ? bulkWriteService.index(id, document).map(bulkItem -> {
+                    if (!bulkItem.isSuccess() && bulkItem.status != HttpStatus.CONFLICT) {
+                        throw new RequestFailedException(bulkItem.status, "Cannot write to elastic: " + bulkItem.error);
                     }
+                    return bulkItem.status;
                 })
-                .map(imageResponse -> processImage(imageResponse))
-                .flatMap(processedImage -> storeResultInElasticsearch(processedImage))
-                .map(result -> convertEsResponseToResponse(result));
+                : elasticService.create(id, document).map(elasticResponse -> {
+                    if (elasticResponse.getHttpStatus() != HttpStatus.CREATED && elasticResponse.getHttpStatus() != HttpStatus.CONFLICT) {
+                        throw new RequestFailedException(elasticResponse.getHttpStatus(), "Cannot write to elastic.");
+                    }
+                    return elasticResponse.getHttpStatus();
+                });
+        return created.flatMap(status -> {
+            if (status == HttpStatus.CONFLICT) {
+                // the same image was indexed concurrently
+                return contentIdService.addAlias(id, imageUrl).thenReturn(response(id));
+            }
+            hashIndexService.add(id, processedImage);
+            return Mono.just(response(id));
+        });
+    }
+
+    private Mono<IndexImageResponse> store(ProcessedImage processedImage) {
+        if (segmentStoreService.isEnabled()) {
+            return segmentStoreService.add(processedImage.dHashLong, imageToJsonDocument(processedImage))
+                    .map(id -> response(id));
+        }
+        Mono<IndexImageResponse> stored = bulkWriteService.isEnabled()
+                ? storeResultWithBulk(processedImage)
+                : storeResultInElasticsearch(processedImage).map(result -> convertEsResponseToResponse(result));
+        return stored.map(response -> {
+            hashIndexService.add(response._id, processedImage);
+            return response;
+        });
+    }
+
+    private Mono<IndexImageResponse> storeResultWithBulk(ProcessedImage processedImage) {
+        return bulkWriteService.index(imageToJsonDocument(processedImage).getBytes(StandardCharsets.UTF_8))
+                .map(bulkItem -> {
+                    if (!bulkItem.isSuccess()) {
+                        throw new RequestFailedException(bulkItem.status, "Cannot write to elastic: " + bulkItem.error);
+                    }
+                    return response(bulkItem.id);
+                });
+    }
+
+    private static IndexImageResponse response(String id) {
+        IndexImageResponse response = new IndexImageResponse();
+        response._id = id;
+        return response;
     }
 
 
@@ -82,7 +174,7 @@ public class IndexImageHandler extends Handler<IndexImageRequest, IndexImageResp
         return response;
     }
 
-    private String imageToJsonDocument(ProcessedImage processedImage) {
+    static String imageToJsonDocument(ProcessedImage processedImage) {
         try {
             return new ObjectMapper().writeValueAsString(processedImage);
         } catch (JsonProcessingException e) {
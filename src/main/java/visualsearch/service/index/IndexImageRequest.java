@@ -17,9 +17,20 @@
 
 package visualsearch.service.index;
 
-public class IndexImageRequest {
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import visualsearch.service.ImageUpload;
+
+public class IndexImageRequest implements ImageUpload.Target {
     public String imageUrl;
     public String image;
+    // the image sent as request body or multipart file, indexed instead of image
+    @JsonIgnore
+    public ImageUpload upload;
+
+    @Override
+    public void upload(ImageUpload upload) {
+        this.upload = upload;
+    }
 
     @Override
     public boolean equals(Object o) {
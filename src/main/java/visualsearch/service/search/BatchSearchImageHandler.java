@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.search;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import visualsearch.image.ProcessedImage;
+import visualsearch.service.Handler;
+import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.ImageProcessingService;
+import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches many images with one request. The images are fetched and processed concurrently, identical searches run
+ * only once and all searches that go to elasticsearch are sent with one _msearch request. Every search gets its own
+ * response or error, in the order of the request, so one bad image does not fail the others.
+ */
+@Component
+public class BatchSearchImageHandler extends Handler<BatchSearchImageRequest, SearchImageResponse> {
+
+    private static final byte[] MULTI_SEARCH_HEADER = "{}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final SearchImageHandler searchImageHandler;
+
+    public BatchSearchImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, ImageProcessingService imageProcessingService,
+                                   FeatureCacheService featureCacheService, SearchImageHandler searchImageHandler) {
+        super(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, BatchSearchImageRequest.class);
+        this.searchImageHandler = searchImageHandler;
+    }
+
+    @Override
+    protected Mono<SearchImageResponse> computeResponse(Mono<BatchSearchImageRequest> batchSearchImageRequestMono) {
+        return batchSearchImageRequestMono.flatMap(batchSearchImageRequest -> {
+            checkBatchSize(batchSearchImageRequest.searches, "searches");
+            long start = System.nanoTime();
+            return Flux.fromIterable(batchSearchImageRequest.searches)
+                    .flatMapSequential(searchImageRequest -> process(new Item(searchImageRequest)), batchConcurrency)
+                    .collectList()
+                    .flatMap(items -> resolveIds(items).thenReturn(items))
+                    .flatMap(items -> search(items).thenReturn(items))
+                    .map(items -> {
+                        SearchImageResponse searchImageResponse = new SearchImageResponse();
+                        searchImageResponse.response = render(items, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        return searchImageResponse;
+                    });
+        });
+    }
+
+    private Mono<Item> process(Item item) {
+        return Mono.defer(() -> {
+                    SearchImageHandler.checkFormat(item.request);
+                    searchImageHandler.checkStore(item.request);
+                    if (SearchImageRequest.FORMAT_NDJSON.equals(item.request.format)) {
+                        throw new RequestFailedException(HttpStatus.BAD_REQUEST, "format " + SearchImageRequest.FORMAT_NDJSON + " cannot be used in a batch search");
+                    }
+                    ProcessedImage requestHash = SearchImageHandler.requestHash(item.request);
+                    if (requestHash != null) {
+                        return Mono.just(requestHash);
+                    }
+                    if (item.request.id != null) {
+                        // resolved for all items at once by resolveIds
+                        return Mono.empty();
+                    }
+                    return processRequestImage(item.request.image, item.request.imageUrl, true);
+                })
+                .map(processedImage -> {
+                    item.processedImage = processedImage;
+                    return item;
+                })
+                .defaultIfEmpty(item)
+                .onErrorResume(t -> {
+                    item.error = toRequestFailedException(t);
+                    return Mono.just(item);
+                });
+    }
+
+    /**
+     * Gets the hashes of all items that search by id with one _mget request.
+     */
+    private Mono<Void> resolveIds(List<Item> items) {
+        List<Item> pending = new ArrayList<>();
+        Set<String> ids = new LinkedHashSet<>();
+        for (Item item : items) {
+            if (item.error == null && item.processedImage == null) {
+                pending.add(item);
+                ids.add(item.request.id);
+            }
+        }
+        if (pending.isEmpty()) {
+            return Mono.empty();
+        }
+        return elasticService.multiGet(new ArrayList<>(ids), SearchImageHandler.HASH_FIELDS)
+                .doOnNext(elasticResponse -> {
+                    if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+                        throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not get images from elasticsearch: ");
+                    }
+                    Map<String, JSONObject> documents = new HashMap<>();
+                    JSONArray docs = new JSONObject(getElasticsearchResponse(elasticResponse)).getJSONArray("docs");
+                    for (int i = 0; i < docs.length(); i++) {
+                        documents.put(docs.getJSONObject(i).getString("_id"), docs.getJSONObject(i));
+                    }
+                    for (Item item : pending) {
+                        try {
+                            item.processedImage = SearchImageHandler.storedImage(item.request.id, documents.get(item.request.id));
+                        } catch (RequestFailedException e) {
+                            item.error = e;
+                        }
+                    }
+                })
+                .onErrorResume(t -> {
+                    fail(pending, t);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Runs every distinct search once and hands its response to all items that asked for it.
+     */
+    private Mono<Void> search(List<Item> items) {
+        Map<SearchCacheService.Key, List<Item>> groups = new LinkedHashMap<>();
+        for (Item item : items) {
+            if (item.error == null) {
+                SearchCacheService.Key key = SearchImageHandler.cacheKey(item.processedImage, item.request);
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(item);
+            }
+        }
+        List<List<Item>> local = new ArrayList<>();
+        List<List<Item>> distinct = new ArrayList<>();
+        for (List<Item> group : groups.values()) {
+            (searchImageHandler.searchesElasticsearch(group.get(0).request) ? distinct : local).add(group);
+        }
+        Mono<Void> localSearches = Flux.fromIterable(local)
+                .flatMap(group -> complete(group, searchImageHandler.searchSimilarImages(group.get(0).processedImage, group.get(0).request)), batchConcurrency)
+                .then();
+        if (distinct.isEmpty()) {
+            return localSearches;
+        }
+        return Mono.when(localSearches, multiSearch(distinct));
+    }
+
+    /**
+     * Sends the searches that go to elasticsearch with one _msearch request.
+     */
+    private Mono<Void> multiSearch(List<List<Item>> distinct) {
+        long start = System.nanoTime();
+        return elasticService.multiSearch(multiSearchBody(distinct))
+                .flatMap(elasticResponse -> {
+                    if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+                        throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not query elasticsearch: ");
+                    }
+                    JSONArray responses = new JSONObject(getElasticsearchResponse(elasticResponse)).getJSONArray("responses");
+                    return Flux.range(0, distinct.size())
+                            .flatMap(i -> {
+                                List<Item> group = distinct.get(i);
+                                JSONObject response = responses.getJSONObject(i);
+                                if (response.has("error")) {
+                                    HttpStatus status = HttpStatus.resolve(response.optInt("status", 500));
+                                    return complete(group, Mono.error(new RequestFailedException(status == null ? HttpStatus.INTERNAL_SERVER_ERROR : status,
+                                            "Could not query elasticsearch: " + response.get("error"))));
+                                }
+                                Item first = group.get(0);
+                                return complete(group, searchImageHandler.elasticsearchResponse(first.processedImage, first.request, response.toString(), start));
+                            })
+                            .then();
+                })
+                .onErrorResume(t -> {
+                    for (List<Item> group : distinct) {
+                        fail(group, t);
+                    }
+                    return Mono.empty();
+                });
+    }
+
+    private static Mono<Void> complete(List<Item> group, Mono<SearchImageResponse> searchImageResponseMono) {
+        return searchImageResponseMono
+                .doOnNext(searchImageResponse -> {
+                    for (Item item : group) {
+                        item.response = searchImageResponse.response;
+                    }
+                })
+                .onErrorResume(t -> {
+                    fail(group, t);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static void fail(List<Item> group, Throwable t) {
+        for (Item item : group) {
+            item.error = toRequestFailedException(t);
+        }
+    }
+
+    static byte[] multiSearchBody(List<List<Item>> distinct) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (List<Item> group : distinct) {
+            byte[] query = SearchImageHandler.elasticsearchQuery(group.get(0).processedImage, group.get(0).request);
+            body.write(MULTI_SEARCH_HEADER, 0, MULTI_SEARCH_HEADER.length);
+            body.write(query, 0, query.length);
+            body.write('\n');
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Renders the responses like elasticsearch renders _msearch responses, failed searches have an error with the
+     * status and message a single search would have failed with.
+     */
+    static String render(List<Item> items, long took) {
+        StringBuilder response = new StringBuilder("{\"took\":").append(took).append(",\"responses\":[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                response.append(',');
+            }
+            Item item = items.get(i);
+            if (item.error != null) {
+                response.append(new JSONObject()
+                        .put("error", new JSONObject()
+                                .put("status", item.error.getHttpStatus().value())
+                                .put("message", item.error.getMessage())));
+            } else {
+                response.append(item.response);
+            }
+        }
+        return response.append("]}").toString();
+    }
+
+    static class Item {
+        final SearchImageRequest request;
+        ProcessedImage processedImage;
+        String response;
+        RequestFailedException error;
+
+        Item(SearchImageRequest request) {
+            this.request = request;
+        }
+    }
+}
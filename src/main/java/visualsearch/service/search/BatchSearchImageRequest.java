@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.search;
+
+import java.util.List;
+
+public class BatchSearchImageRequest {
+    public List<SearchImageRequest> searches;
+
+    public BatchSearchImageRequest(List<SearchImageRequest> searches) {
+        this.searches = searches;
+    }
+
+    public BatchSearchImageRequest() {
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BatchSearchImageRequest that = (BatchSearchImageRequest) o;
+
+        return searches != null ? searches.equals(that.searches) : that.searches == null;
+    }
+
+    @Override
+    public int hashCode() {
+        return searches != null ? searches.hashCode() : 0;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.search;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A json body compiled once into literal bytes and named slots like {@code {{hash}}}. Rendering writes the literals and
+ * the slot values straight into a per thread buffer, so the same values always give the same bytes.
+ * <p>
+ * Values are put in the order the slots first appear in the template. A slot that appears more than once is filled
+ * with the bytes of its first occurrence.
+ */
+public final class QueryTemplate {
+
+    private static final Pattern SLOT = Pattern.compile("\\{\\{(\\w+)}}");
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    // literals[i] is written before slot i, the last literal after the last slot
+    private final byte[][] literals;
+    private final String[] slots;
+    // index of the first occurrence of the name of slot i, i itself if this is the first
+    private final int[] firstOccurrence;
+    private final int numValues;
+    private final ThreadLocal<Renderer> renderers = ThreadLocal.withInitial(() -> new Renderer(this));
+
+    private QueryTemplate(byte[][] literals, String[] slots) {
+        this.literals = literals;
+        this.slots = slots;
+        this.firstOccurrence = new int[slots.length];
+        int values = 0;
+        for (int i = 0; i < slots.length; i++) {
+            firstOccurrence[i] = Arrays.asList(slots).indexOf(slots[i]);
+            if (firstOccurrence[i] == i) {
+                values++;
+            }
+        }
+        this.numValues = values;
+    }
+
+    public static QueryTemplate compile(String template) {
+        List<byte[]> literals = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        Matcher matcher = SLOT.matcher(template);
+        int end = 0;
+        while (matcher.find()) {
+            literals.add(template.substring(end, matcher.start()).getBytes(StandardCharsets.UTF_8));
+            slots.add(matcher.group(1));
+            end = matcher.end();
+        }
+        literals.add(template.substring(end).getBytes(StandardCharsets.UTF_8));
+        // fails early if the template is not valid json once the slots are filled
+        new JSONObject(matcher.replaceAll("0"));
+        return new QueryTemplate(literals.toArray(new byte[0][]), slots.toArray(new String[0]));
+    }
+
+    /**
+     * The number of values to put, one per distinct slot name.
+     */
+    public int numValues() {
+        return numValues;
+    }
+
+    /**
+     * Starts rendering on the buffer of the calling thread. The previous rendering on this thread must be finished with
+     * {@link Renderer#toBytes()} before.
+     */
+    public Renderer renderer() {
+        Renderer renderer = renderers.get();
+        renderer.reset();
+        return renderer;
+    }
+
+    public static final class Renderer {
+        private final QueryTemplate template;
+        private final int[] slotStarts;
+        private final int[] slotEnds;
+        private byte[] buffer = new byte[1024];
+        private int length;
+        private int slot;
+
+        private Renderer(QueryTemplate template) {
+            this.template = template;
+            this.slotStarts = new int[template.slots.length];
+            this.slotEnds = new int[template.slots.length];
+        }
+
+        private void reset() {
+            length = 0;
+            slot = 0;
+            write(template.literals[0]);
+            copyRepeatedSlots();
+        }
+
+        public Renderer put(long value) {
+            startSlot();
+            if (value == Long.MIN_VALUE) {
+                write(MIN_LONG);
+            } else {
+                writeLong(value);
+            }
+            return endSlot();
+        }
+
+        public Renderer put(int[] values) {
+            startSlot();
+            writeByte('[');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeLong(values[i]);
+            }
+            writeByte(']');
+            return endSlot();
+        }
+
+        public Renderer put(String value) {
+            startSlot();
+            write(JSONObject.quote(value).getBytes(StandardCharsets.UTF_8));
+            return endSlot();
+        }
+
+        /**
+         * Renders the values as a json array, in their order. Values are strings, numbers, booleans or null.
+         */
+        public Renderer put(List<?> values) {
+            startSlot();
+            writeByte('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                write(JSONObject.valueToString(values.get(i)).getBytes(StandardCharsets.UTF_8));
+            }
+            writeByte(']');
+            return endSlot();
+        }
+
+        /**
+         * A copy of the rendered body.
+         */
+        public byte[] toBytes() {
+            if (slot != template.slots.length) {
+                throw new IllegalStateException("no value for slot " + template.slots[slot]);
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void startSlot() {
+            if (slot == template.slots.length) {
+                throw new IllegalStateException("template has only " + template.numValues + " slots");
+            }
+            slotStarts[slot] = length;
+        }
+
+        private Renderer endSlot() {
+            slotEnds[slot] = length;
+            slot++;
+            write(template.literals[slot]);
+            copyRepeatedSlots();
+            return this;
+        }
+
+        private void copyRepeatedSlots() {
+            while (slot < template.slots.length && template.firstOccurrence[slot] != slot) {
+                int first = template.firstOccurrence[slot];
+                int firstLength = slotEnds[first] - slotStarts[first];
+                ensureCapacity(firstLength);
+                slotStarts[slot] = length;
+                System.arraycopy(buffer, slotStarts[first], buffer, length, firstLength);
+                length += firstLength;
+                slotEnds[slot] = length;
+                slot++;
+                write(template.literals[slot]);
+            }
+        }
+
+        private void writeLong(long value) {
+            if (value < 0) {
+                writeByte('-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        private void writeByte(char c) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) c;
+        }
+
+        private void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+            }
+        }
+    }
+}
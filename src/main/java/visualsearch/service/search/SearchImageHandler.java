@@ -16,22 +16,63 @@
 
 package visualsearch.service.search;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import visualsearch.image.ImageHash;
 import visualsearch.image.ProcessedImage;
 import visualsearch.service.Handler;
 import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.ImageProcessingService;
 import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
+import visualsearch.store.HammingIndex;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 public class SearchImageHandler extends Handler<SearchImageRequest, SearchImageResponse> {
 
-    public SearchImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService) {
-        super(imageRetrieveService, elasticService, SearchImageRequest.class);
+    static final int DEFAULT_SIZE = 10;
+    // candidate queries on the hash chunks get too many terms beyond this, see ImageHash.chunkTerms
+    static final int MAX_CHUNK_RADIUS = 2;
+    // elasticsearch's default index.max_result_window
+    static final int MAX_CANDIDATES = 10000;
+    // hits per scroll page of the ndjson format if size is not set
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final boolean HASH_CHUNKS = Boolean.getBoolean(ProcessedImage.HASH_CHUNKS);
+    private static final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    // the fields HashIndexService.hash reads
+    static final List<String> HASH_FIELDS = Arrays.asList("dHashLong", "dHash");
+
+    private final HashIndexService hashIndexService;
+    private final SegmentStoreService segmentStoreService;
+    private final SearchCacheService searchCacheService;
+
+    public SearchImageHandler(ImageRetrieveService imageRetrieveService, ElasticService elasticService, ImageProcessingService imageProcessingService,
+                              FeatureCacheService featureCacheService, HashIndexService hashIndexService, SegmentStoreService segmentStoreService,
+                              SearchCacheService searchCacheService) {
+        super(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, SearchImageRequest.class);
+        this.hashIndexService = hashIndexService;
+        this.segmentStoreService = segmentStoreService;
+        this.searchCacheService = searchCacheService;
     }
 
     @Override
@@ -40,49 +81,502 @@ public class SearchImageHandler extends Handler<SearchImageRequest, SearchImageR
         return searchImageRequestMono
                 .flatMap(searchImageRequest -> {
                     searchImageRequestAtomicReference.set(searchImageRequest);
-                    return fetchImage(searchImageRequest.imageUrl);
+                    checkFormat(searchImageRequest);
+                    checkStore(searchImageRequest);
+                    return searchedImage(searchImageRequest);
                 })
-                .map(imageResponse -> processImage(imageResponse))
-                .flatMap(processedImage -> searchSimilarImages(processedImage, searchImageRequestAtomicReference));
+                .flatMap(processedImage -> {
+                    SearchImageRequest searchImageRequest = searchImageRequestAtomicReference.get();
+                    if (SearchImageRequest.FORMAT_NDJSON.equals(searchImageRequest.format)) {
+                        return export(processedImage, searchImageRequest);
+                    }
+                    if (streams(searchImageRequest)) {
+                        return streamSearch(processedImage, searchImageRequest);
+                    }
+                    return cachedSearch(processedImage, searchImageRequest);
+                });
+    }
+
+    /**
+     * The given hash, the hash stored with the given id or the hash of the given image, in this order. Only an image
+     * is fetched and decoded.
+     */
+    Mono<ProcessedImage> searchedImage(SearchImageRequest searchImageRequest) {
+        ProcessedImage requestHash = requestHash(searchImageRequest);
+        if (requestHash != null) {
+            return Mono.just(requestHash);
+        }
+        if (searchImageRequest.id != null) {
+            return elasticService.get(searchImageRequest.id, HASH_FIELDS)
+                    .map(elasticResponse -> {
+                        if (elasticResponse.getHttpStatus() != HttpStatus.OK && elasticResponse.getHttpStatus() != HttpStatus.NOT_FOUND) {
+                            throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not get image from elasticsearch: ");
+                        }
+                        return storedImage(searchImageRequest.id, new JSONObject(getElasticsearchResponse(elasticResponse)));
+                    });
+        }
+        return processRequestImage(searchImageRequest.upload, searchImageRequest.image, searchImageRequest.imageUrl, true);
+    }
+
+    /**
+     * The dHashLong or dHashHex of the request, null if it has neither.
+     */
+    static ProcessedImage requestHash(SearchImageRequest searchImageRequest) {
+        if (searchImageRequest.dHashLong != null) {
+            return ProcessedImage.builder().imageUrl("none").dHash(searchImageRequest.dHashLong).build();
+        }
+        if (searchImageRequest.dHashHex != null) {
+            try {
+                return ProcessedImage.builder().imageUrl("none").dHash(ImageHash.fromHex(searchImageRequest.dHashHex)).build();
+            } catch (IllegalArgumentException e) {
+                throw new RequestFailedException(HttpStatus.BAD_REQUEST, "dHashHex must be up to 16 hex characters but was " + searchImageRequest.dHashHex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The hash of a document as returned by a get or in the docs of a multi get, which has only the HASH_FIELDS.
+     */
+    static ProcessedImage storedImage(String id, JSONObject document) {
+        if (document != null && document.has("error")) {
+            throw new RequestFailedException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not get image " + id + " from elasticsearch: " + document.get("error"));
+        }
+        if (document == null || !document.optBoolean("found")) {
+            throw new RequestFailedException(HttpStatus.NOT_FOUND, "No image with id " + id + ".");
+        }
+        Long hash = HashIndexService.hash(document.optJSONObject("_source") == null ? new JSONObject() : document.getJSONObject("_source"));
+        if (hash == null) {
+            throw new RequestFailedException(HttpStatus.UNPROCESSABLE_ENTITY, "Image " + id + " has no dHash.");
+        }
+        return ProcessedImage.builder().imageUrl("none").dHash(hash).build();
+    }
+
+    /**
+     * Whether the response of elasticsearch is streamed to the client as it is. Only the script query returns
+     * elasticsearch's response unchanged, otherwise the raw format is rendered like the default format.
+     */
+    private boolean streams(SearchImageRequest searchImageRequest) {
+        return SearchImageRequest.FORMAT_RAW.equals(searchImageRequest.format) && searchesElasticsearch(searchImageRequest) && !searchesCandidates(searchImageRequest);
+    }
+
+    /**
+     * Hands the body of elasticsearch's response on chunk by chunk, it is neither parsed nor cached.
+     */
+    private Mono<SearchImageResponse> streamSearch(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        return elasticService.streamSearch(generateQuery(processedImage, searchImageRequest))
+                .map(streamedResponse -> {
+                    if (streamedResponse.getHttpStatus() != HttpStatus.OK) {
+                        streamedResponse.close();
+                        throw new RequestFailedException(streamedResponse.getHttpStatus(), "Could not query elasticsearch: ");
+                    }
+                    SearchImageResponse searchImageResponse = new SearchImageResponse();
+                    searchImageResponse.body = streamedResponse.body();
+                    return searchImageResponse;
+                });
+    }
+
+    /**
+     * Scrolls through all matches and streams their hits as newline delimited json, a scroll page at a time. The next
+     * page is only fetched once the client took the previous one.
+     */
+    private Mono<SearchImageResponse> export(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        return elasticService.startScroll(exportQuery(processedImage, searchImageRequest))
+                .map(elasticResponse -> {
+                    SearchImageResponse searchImageResponse = new SearchImageResponse();
+                    searchImageResponse.contentType = NDJSON;
+                    searchImageResponse.body = pages(scrollPage(elasticResponse))
+                            .map(page -> bufferFactory.wrap(ndjson(page)));
+                    return searchImageResponse;
+                });
+    }
+
+    /**
+     * The pages of the scroll from first on, up to the first page without hits. The scroll is cleared once the pages
+     * are done or cancelled.
+     */
+    Flux<JSONObject> pages(JSONObject first) {
+        AtomicReference<String> scrollId = new AtomicReference<>(first.getString("_scroll_id"));
+        Flux<JSONObject> next = Mono.defer(() -> elasticService.scroll(scrollId.get()))
+                .map(elasticResponse -> {
+                    JSONObject page = scrollPage(elasticResponse);
+                    scrollId.set(page.getString("_scroll_id"));
+                    return page;
+                })
+                .repeat();
+        return Flux.just(first).concatWith(next)
+                .takeWhile(page -> page.getJSONObject("hits").getJSONArray("hits").length() > 0)
+                .doFinally(signal -> elasticService.clearScroll(scrollId.get())
+                        .subscribe(elasticResponse -> {
+                        }, e -> logger.warn("Could not clear scroll", e)));
+    }
+
+    private static JSONObject scrollPage(ElasticService.ElasticResponse elasticResponse) {
+        if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+            throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not query elasticsearch: ");
+        }
+        return new JSONObject(getElasticsearchResponse(elasticResponse));
     }
 
-    private Mono<SearchImageResponse> searchSimilarImages(ProcessedImage processedImage, AtomicReference<SearchImageRequest> searchImageRequestAtomicReference) {
-        SearchImageRequest searchImageRequest = searchImageRequestAtomicReference.get();
-        String queryBody = generateQuery(processedImage, searchImageRequest);
+    /**
+     * The hits of the page, one per line.
+     */
+    static byte[] ndjson(JSONObject page) {
+        JSONArray hits = page.getJSONObject("hits").getJSONArray("hits");
+        StringBuilder lines = new StringBuilder(hits.length() * 256);
+        for (int i = 0; i < hits.length(); i++) {
+            lines.append(hits.getJSONObject(i).toString()).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Mono<SearchImageResponse> cachedSearch(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        return searchCacheService.get(cacheKey(processedImage, searchImageRequest), () -> searchSimilarImages(processedImage, searchImageRequest).map(searchImageResponse -> searchImageResponse.response))
+                .map(response -> {
+                    SearchImageResponse searchImageResponse = new SearchImageResponse();
+                    searchImageResponse.response = response;
+                    return searchImageResponse;
+                });
+    }
+
+    Mono<SearchImageResponse> searchSimilarImages(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        if (!searchesElasticsearch(searchImageRequest)) {
+            if (segmentStoreService.isEnabled()) {
+                long start = System.nanoTime();
+                return segmentStoreService.search(processedImage.dHashLong, maxDistance(searchImageRequest), size(searchImageRequest))
+                        .map(result -> toSearchImageResponse(result, searchImageRequest, start));
+            }
+            return Mono.fromCallable(() -> {
+                long start = System.nanoTime();
+                return toSearchImageResponse(hashIndexService.search(processedImage.dHashLong, maxDistance(searchImageRequest), size(searchImageRequest)), searchImageRequest, start);
+            });
+        }
+        long start = System.nanoTime();
+        return elasticService.search(elasticsearchQuery(processedImage, searchImageRequest))
+                .flatMap(elasticResponse -> {
+                    if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+                        throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not query elasticsearch: ");
+                    }
+                    return elasticsearchResponse(processedImage, searchImageRequest, getElasticsearchResponse(elasticResponse), start);
+                });
+    }
+
+    static void checkFormat(SearchImageRequest searchImageRequest) {
+        if (searchImageRequest.minimumShouldMatch < 0 || searchImageRequest.minimumShouldMatch > ImageHash.NUM_BITS) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "minimumShouldMatch must be between 0 and " + ImageHash.NUM_BITS
+                    + " but was " + searchImageRequest.minimumShouldMatch);
+        }
+        if (searchImageRequest.format != null && !SearchImageRequest.FORMAT_HITS.equals(searchImageRequest.format)
+                && !SearchImageRequest.FORMAT_ELASTICSEARCH.equals(searchImageRequest.format)
+                && !SearchImageRequest.FORMAT_RAW.equals(searchImageRequest.format)
+                && !SearchImageRequest.FORMAT_NDJSON.equals(searchImageRequest.format)) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "format must be " + SearchImageRequest.FORMAT_HITS + ", "
+                    + SearchImageRequest.FORMAT_ELASTICSEARCH + ", " + SearchImageRequest.FORMAT_RAW + " or " + SearchImageRequest.FORMAT_NDJSON
+                    + " but was " + searchImageRequest.format);
+        }
+        if (searchImageRequest.size != null && (searchImageRequest.size <= 0 || searchImageRequest.size > MAX_CANDIDATES)) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "size must be between 1 and " + MAX_CANDIDATES
+                    + " but was " + searchImageRequest.size);
+        }
+        if (SearchImageRequest.FORMAT_NDJSON.equals(searchImageRequest.format) && searchImageRequest.searchAfter != null) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, "searchAfter cannot be used with format " + SearchImageRequest.FORMAT_NDJSON);
+        }
+    }
+
+    /**
+     * Rejects options that need documents in elasticsearch, which has none with STORE=segments.
+     */
+    void checkStore(SearchImageRequest searchImageRequest) {
+        if (!segmentStoreService.isEnabled()) {
+            return;
+        }
+        String option = null;
+        if (SearchImageRequest.FORMAT_NDJSON.equals(searchImageRequest.format)) {
+            option = "format " + SearchImageRequest.FORMAT_NDJSON;
+        } else if (searchImageRequest.searchAfter != null) {
+            option = "searchAfter";
+        } else if (searchImageRequest.source != null) {
+            option = "source";
+        } else if (requestHash(searchImageRequest) == null && searchImageRequest.id != null) {
+            option = "id";
+        }
+        if (option != null) {
+            throw new RequestFailedException(HttpStatus.BAD_REQUEST, option + " cannot be used with " + SegmentStoreService.STORE + "="
+                    + SegmentStoreService.SEGMENTS);
+        }
+    }
+
+    static SearchCacheService.Key cacheKey(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        return new SearchCacheService.Key(processedImage.dHashLong, searchImageRequest.minimumShouldMatch, size(searchImageRequest),
+                hitsFormat(searchImageRequest) ? SearchImageRequest.FORMAT_HITS : null, searchImageRequest.searchAfter, searchImageRequest.source);
+    }
+
+    /**
+     * Whether {@link #searchSimilarImages} sends {@link #elasticsearchQuery} to elasticsearch or searches locally.
+     */
+    boolean searchesElasticsearch(SearchImageRequest searchImageRequest) {
+        return needsScriptQuery(searchImageRequest) || (!segmentStoreService.isEnabled() && !hashIndexService.isReady());
+    }
+
+    // only the script query sorts for search_after and filters _source
+    private static boolean needsScriptQuery(SearchImageRequest searchImageRequest) {
+        return searchImageRequest.searchAfter != null || searchImageRequest.source != null;
+    }
+
+    /**
+     * With HASH_CHUNKS and a small enough radius the query for all documents that share a hash chunk with the searched
+     * hash, otherwise the script query.
+     */
+    static byte[] elasticsearchQuery(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        if (searchesCandidates(searchImageRequest)) {
+            return generateCandidatesQuery(processedImage.dHashLong, maxDistance(searchImageRequest));
+        }
+        return generateQuery(processedImage, searchImageRequest);
+    }
+
+    /**
+     * Turns the elasticsearch response to {@link #elasticsearchQuery} into the search response. Candidates are ranked
+     * by their exact distance. If there are more candidates than one request returns this falls back to the script
+     * query.
+     */
+    Mono<SearchImageResponse> elasticsearchResponse(ProcessedImage processedImage, SearchImageRequest searchImageRequest, String response, long startNanos) {
+        if (!searchesCandidates(searchImageRequest)) {
+            return Mono.just(scriptResponse(processedImage, searchImageRequest, response, startNanos));
+        }
+        JSONObject hits = new JSONObject(response).getJSONObject("hits");
+        if (hits.getInt("total") > hits.getJSONArray("hits").length()) {
+            return searchWithScript(processedImage, searchImageRequest, startNanos);
+        }
+        HammingIndex.Result result = rerank(hits.getJSONArray("hits"), processedImage.dHashLong, maxDistance(searchImageRequest), size(searchImageRequest));
+        return Mono.just(toSearchImageResponse(result, searchImageRequest, startNanos));
+    }
+
+    /**
+     * The response to {@link #generateQuery} as it is, or in the hits format with the distances computed from the
+     * dHashLong of the hits.
+     */
+    private static SearchImageResponse scriptResponse(ProcessedImage processedImage, SearchImageRequest searchImageRequest, String response, long startNanos) {
+        if (!hitsFormat(searchImageRequest)) {
+            SearchImageResponse searchImageResponse = new SearchImageResponse();
+            searchImageResponse.response = response;
+            return searchImageResponse;
+        }
+        JSONObject hits = new JSONObject(response).getJSONObject("hits");
+        HammingIndex.Result ranked = rerank(hits.getJSONArray("hits"), processedImage.dHashLong, maxDistance(searchImageRequest), size(searchImageRequest));
+        return toSearchImageResponse(new HammingIndex.Result(hits.getInt("total"), ranked.hits), searchImageRequest, startNanos);
+    }
+
+    private static boolean hitsFormat(SearchImageRequest searchImageRequest) {
+        return SearchImageRequest.FORMAT_HITS.equals(searchImageRequest.format);
+    }
+
+    private static boolean searchesCandidates(SearchImageRequest searchImageRequest) {
+        return HASH_CHUNKS && !needsScriptQuery(searchImageRequest) && maxDistance(searchImageRequest) / ImageHash.NUM_CHUNKS <= MAX_CHUNK_RADIUS;
+    }
+
+    private Mono<SearchImageResponse> searchWithScript(ProcessedImage processedImage, SearchImageRequest searchImageRequest, long startNanos) {
+        byte[] queryBody = generateQuery(processedImage, searchImageRequest);
         Mono<ElasticService.ElasticResponse> elasticResponseMono = elasticService.search(queryBody);
         return elasticResponseMono.map(elasticResponse -> {
             if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
                 throw new RequestFailedException(elasticResponse.getHttpStatus(), "Could not query elasticsearch: ");
             }
-            String elasticsearchResult = getElasticsearchResponse(elasticResponse);
-            SearchImageResponse searchImageResponse = new SearchImageResponse();
-            searchImageResponse.response = elasticsearchResult;
-            return searchImageResponse;
+            return scriptResponse(processedImage, searchImageRequest, getElasticsearchResponse(elasticResponse), startNanos);
         });
     }
 
-    public static String generateQuery(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
-        JSONObject[] matchCauses = new JSONObject[processedImage.dHash.size()];
-        int i = 0;
-        for (String key : processedImage.dHash.keySet()) {
-            matchCauses[i] =
-                    new JSONObject()
-                            .put("constant_score", new JSONObject()
-                                    .put("query", new JSONObject()
-                                            .put("match",
-                                                    new JSONObject()
-                                                            .put("dHash." + key, processedImage.dHash.get(key))
-                                            )));
-            i++;
-        }
-        String jsonString = new JSONObject()
-                .put("query", new JSONObject()
-                        .put("bool", new JSONObject()
-                                .put("minimum_should_match", searchImageRequest.minimumShouldMatch)
-                                .put("should", matchCauses))
-                )
+    private static final QueryTemplate CANDIDATES_QUERY = QueryTemplate.compile("{"
+            + "\"size\":{{size}},"
+            + "\"_source\":[\"imageUrl\",\"dHashLong\"],"
+            + "\"query\":{\"constant_score\":{\"filter\":{\"terms\":{\"dHashChunks\":{{terms}}}}}}"
+            + "}");
+
+    /**
+     * A query for all documents that have a hash chunk within maxDistance / NUM_CHUNKS bits of a chunk of the hash. By
+     * the pigeonhole principle these include all documents within maxDistance of the hash.
+     */
+    static byte[] generateCandidatesQuery(long hash, int maxDistance) {
+        return CANDIDATES_QUERY.renderer()
+                .put(MAX_CANDIDATES)
+                .put(ImageHash.chunkTerms(hash, maxDistance / ImageHash.NUM_CHUNKS))
+                .toBytes();
+    }
+
+    /**
+     * Drops the candidates that are further than maxDistance from the hash and returns the size closest ones.
+     */
+    static HammingIndex.Result rerank(JSONArray candidates, long hash, int maxDistance, int size) {
+        List<HammingIndex.Hit> hits = new ArrayList<>();
+        for (int i = 0; i < candidates.length(); i++) {
+            JSONObject candidate = candidates.getJSONObject(i);
+            JSONObject source = candidate.getJSONObject("_source");
+            Long candidateHash = HashIndexService.hash(source);
+            if (candidateHash == null) {
+                continue;
+            }
+            int distance = ImageHash.hammingDistance(hash, candidateHash);
+            if (distance <= maxDistance) {
+                hits.add(new HammingIndex.Hit(candidate.getString("_id"), source.optString("imageUrl", null), candidateHash, distance));
+            }
+        }
+        hits.sort(Comparator.comparingInt(hit -> hit.distance));
+        return new HammingIndex.Result(hits.size(), new ArrayList<>(hits.subList(0, Math.min(size, hits.size()))));
+    }
+
+    static int maxDistance(SearchImageRequest searchImageRequest) {
+        return ImageHash.NUM_BITS - searchImageRequest.minimumShouldMatch;
+    }
+
+    static int size(SearchImageRequest searchImageRequest) {
+        return searchImageRequest.size == null ? DEFAULT_SIZE : searchImageRequest.size;
+    }
+
+    private static SearchImageResponse toSearchImageResponse(HammingIndex.Result result, SearchImageRequest searchImageRequest, long startNanos) {
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        SearchImageResponse searchImageResponse = new SearchImageResponse();
+        searchImageResponse.response = hitsFormat(searchImageRequest)
+                ? slimHitsResponse(result, took, searchImageRequest.searchAfter != null)
+                : hitsResponse(result, took);
+        return searchImageResponse;
+    }
+
+    /**
+     * Renders the hits sorted by distance with nothing but their id, imageUrl and distance, and if paginating the
+     * searchAfter of the next page.
+     */
+    static String slimHitsResponse(HammingIndex.Result result, long took, boolean paginating) {
+        StringBuilder response = new StringBuilder(48 + result.hits.size() * 128)
+                .append("{\"took\":").append(took)
+                .append(",\"total\":").append(result.total)
+                .append(",\"hits\":[");
+        for (int i = 0; i < result.hits.size(); i++) {
+            HammingIndex.Hit hit = result.hits.get(i);
+            if (i > 0) {
+                response.append(',');
+            }
+            response.append("{\"id\":").append(JSONObject.quote(hit.id))
+                    .append(",\"imageUrl\":").append(hit.imageUrl == null ? "null" : JSONObject.quote(hit.imageUrl))
+                    .append(",\"distance\":").append(hit.distance)
+                    .append('}');
+        }
+        response.append(']');
+        if (paginating && !result.hits.isEmpty()) {
+            response.append(",\"searchAfter\":").append(sortValues(result.hits.get(result.hits.size() - 1)));
+        }
+        return response.append('}').toString();
+    }
+
+    // the values elasticsearch sorts the hit by with SORT
+    static JSONArray sortValues(HammingIndex.Hit hit) {
+        return new JSONArray().put(ImageHash.NUM_BITS - hit.distance).put(ElasticService.TYPE + "#" + hit.id);
+    }
+
+    /**
+     * Renders hits from the hash index or the segment store like elasticsearch renders the hits of {@link #generateQuery}: the score is the
+     * number of matching bits and the source contains imageUrl and dHashLong.
+     */
+    static String hitsResponse(HammingIndex.Result result, long took) {
+        JSONArray hits = new JSONArray();
+        for (HammingIndex.Hit hit : result.hits) {
+            hits.put(new JSONObject()
+                    .put("_index", ElasticService.INDEX)
+                    .put("_type", ElasticService.TYPE)
+                    .put("_id", hit.id)
+                    .put("_score", ImageHash.NUM_BITS - hit.distance)
+                    .put("_source", new JSONObject()
+                            .put("imageUrl", hit.imageUrl)
+                            .put("dHashLong", hit.hash)));
+        }
+        return new JSONObject()
+                .put("took", took)
+                .put("timed_out", false)
+                .put("hits", new JSONObject()
+                        .put("total", result.total)
+                        .put("max_score", result.hits.isEmpty() ? JSONObject.NULL : ImageHash.NUM_BITS - result.hits.get(0).distance)
+                        .put("hits", hits))
                 .toString();
-        return jsonString;
+    }
+
+    // number of equal bits between the stored and the searched hash, same as counting matching dh_* fields did before
+    static final String MATCHING_BITS_SCRIPT = "64 - Long.bitCount(doc['dHashLong'].value ^ params.hash)";
+
+    private static final String SCRIPT_QUERY_BODY = "\"query\":{\"function_score\":{"
+            + "\"query\":{\"bool\":{\"filter\":{\"script\":{\"script\":{"
+            + "\"lang\":\"painless\","
+            + "\"source\":\"" + MATCHING_BITS_SCRIPT + " >= params.minimumShouldMatch\","
+            + "\"params\":{\"hash\":{{hash}},\"minimumShouldMatch\":{{minimumShouldMatch}}}"
+            + "}}}}},"
+            + "\"functions\":[{\"script_score\":{\"script\":{"
+            + "\"lang\":\"painless\","
+            + "\"source\":\"" + MATCHING_BITS_SCRIPT + "\","
+            + "\"params\":{\"hash\":{{hash}}}"
+            + "}}}],"
+            + "\"boost_mode\":\"replace\""
+            + "}}";
+
+    // ties are broken by _uid so that search_after neither skips nor repeats hits
+    private static final String SORT = "\"sort\":[{\"_score\":\"desc\"},{\"_uid\":\"asc\"}],\"track_scores\":true,";
+
+    // what the script query returns of the hits: the default source, only what the hits format needs, or {{source}}
+    private static final String[] SOURCES = {
+            "",
+            "\"_source\":[\"imageUrl\",\"dHashLong\"],",
+            "\"_source\":{{source}},"};
+    private static final int DEFAULT_SOURCE = 0;
+    private static final int SLIM_SOURCE = 1;
+    private static final int REQUESTED_SOURCE = 2;
+
+    // how the script query orders the hits: by score, by SORT for the first page and the pages after {{searchAfter}},
+    // or in index order for exports
+    private static final String[] ORDERS = {
+            "",
+            SORT,
+            SORT + "\"search_after\":{{searchAfter}},",
+            "\"sort\":[\"_doc\"],\"track_scores\":true,"};
+    private static final int SCORE_ORDER = 0;
+    private static final int FIRST_PAGE_ORDER = 1;
+    private static final int NEXT_PAGE_ORDER = 2;
+    private static final int INDEX_ORDER = 3;
+
+    // one template per source and order, so that every variant renders straight to bytes
+    private static final QueryTemplate[][] SCRIPT_QUERIES = new QueryTemplate[SOURCES.length][ORDERS.length];
+
+    static {
+        for (int source = 0; source < SOURCES.length; source++) {
+            for (int order = 0; order < ORDERS.length; order++) {
+                SCRIPT_QUERIES[source][order] = QueryTemplate.compile("{\"size\":{{size}}," + SOURCES[source] + ORDERS[order] + SCRIPT_QUERY_BODY + "}");
+            }
+        }
+    }
+
+    public static byte[] generateQuery(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        int source = hitsFormat(searchImageRequest) ? SLIM_SOURCE : searchImageRequest.source != null ? REQUESTED_SOURCE : DEFAULT_SOURCE;
+        int order = searchImageRequest.searchAfter == null ? SCORE_ORDER
+                : searchImageRequest.searchAfter.isEmpty() ? FIRST_PAGE_ORDER : NEXT_PAGE_ORDER;
+        return scriptQuery(source, order, size(searchImageRequest), processedImage, searchImageRequest);
+    }
+
+    /**
+     * The script query for all matches in index order, one page of size hits at a time.
+     */
+    static String exportQuery(ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        int source = searchImageRequest.source != null ? REQUESTED_SOURCE : DEFAULT_SOURCE;
+        int size = searchImageRequest.size == null ? DEFAULT_PAGE_SIZE : searchImageRequest.size;
+        return new String(scriptQuery(source, INDEX_ORDER, size, processedImage, searchImageRequest), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] scriptQuery(int source, int order, int size, ProcessedImage processedImage, SearchImageRequest searchImageRequest) {
+        QueryTemplate.Renderer renderer = SCRIPT_QUERIES[source][order].renderer().put(size);
+        if (source == REQUESTED_SOURCE) {
+            renderer.put(searchImageRequest.source);
+        }
+        if (order == NEXT_PAGE_ORDER) {
+            renderer.put(searchImageRequest.searchAfter);
+        }
+        return renderer
+                .put(processedImage.dHashLong)
+                .put(searchImageRequest.minimumShouldMatch)
+                .toBytes();
     }
 
 }
\ No newline at end of file
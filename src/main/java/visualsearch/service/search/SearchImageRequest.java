@@ -17,9 +17,38 @@
 
 package visualsearch.service.search;
 
-public class SearchImageRequest {
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import visualsearch.service.ImageUpload;
+
+import java.util.List;
+
+public class SearchImageRequest implements ImageUpload.Target {
+    public static final String FORMAT_ELASTICSEARCH = "elasticsearch";
+    public static final String FORMAT_HITS = "hits";
+    public static final String FORMAT_RAW = "raw";
+    public static final String FORMAT_NDJSON = "ndjson";
+
     public String imageUrl;
+    // base64 encoded image, searched instead of imageUrl
+    public String image;
+    // the image sent as request body or multipart file, searched instead of image
+    @JsonIgnore
+    public ImageUpload upload;
+    // the dHash to search for as long or hex, searched instead of an image
+    public Long dHashLong;
+    public String dHashHex;
+    // id of an indexed image whose dHash is searched for, instead of an image
+    public String id;
     public int minimumShouldMatch;
+    // number of hits to return, elasticsearch returns 10 if not set
+    public Integer size;
+    // FORMAT_HITS for only id, imageUrl and distance of the hits, FORMAT_ELASTICSEARCH (default) for elasticsearch's response,
+    // FORMAT_RAW for elasticsearch's response streamed as it arrives, FORMAT_NDJSON for all hits, one per line
+    public String format;
+    // sort values of the last hit of the previous page, empty for the first page, null to not paginate
+    public List<Object> searchAfter;
+    // fields of _source elasticsearch returns for every hit
+    public List<String> source;
 
     public SearchImageRequest(String imageUrl, int minimumShouldMatch) {
         this.imageUrl = imageUrl;
@@ -29,6 +58,11 @@ public class SearchImageRequest {
     public SearchImageRequest() {
     }
 
+    @Override
+    public void upload(ImageUpload upload) {
+        this.upload = upload;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -37,13 +71,29 @@ public class SearchImageRequest {
         SearchImageRequest that = (SearchImageRequest) o;
 
         if (minimumShouldMatch != that.minimumShouldMatch) return false;
+        if (size != null ? !size.equals(that.size) : that.size != null) return false;
+        if (image != null ? !image.equals(that.image) : that.image != null) return false;
+        if (dHashLong != null ? !dHashLong.equals(that.dHashLong) : that.dHashLong != null) return false;
+        if (dHashHex != null ? !dHashHex.equals(that.dHashHex) : that.dHashHex != null) return false;
+        if (id != null ? !id.equals(that.id) : that.id != null) return false;
+        if (format != null ? !format.equals(that.format) : that.format != null) return false;
+        if (searchAfter != null ? !searchAfter.equals(that.searchAfter) : that.searchAfter != null) return false;
+        if (source != null ? !source.equals(that.source) : that.source != null) return false;
         return imageUrl != null ? imageUrl.equals(that.imageUrl) : that.imageUrl == null;
     }
 
     @Override
     public int hashCode() {
         int result = imageUrl != null ? imageUrl.hashCode() : 0;
+        result = 31 * result + (image != null ? image.hashCode() : 0);
+        result = 31 * result + (dHashLong != null ? dHashLong.hashCode() : 0);
+        result = 31 * result + (dHashHex != null ? dHashHex.hashCode() : 0);
+        result = 31 * result + (id != null ? id.hashCode() : 0);
         result = 31 * result + minimumShouldMatch;
+        result = 31 * result + (size != null ? size.hashCode() : 0);
+        result = 31 * result + (format != null ? format.hashCode() : 0);
+        result = 31 * result + (searchAfter != null ? searchAfter.hashCode() : 0);
+        result = 31 * result + (source != null ? source.hashCode() : 0);
         return result;
     }
 }
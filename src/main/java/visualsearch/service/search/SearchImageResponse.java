@@ -1,7 +1,11 @@
 package visualsearch.service.search;
 
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import visualsearch.service.AbstractResponse;
 
@@ -10,8 +14,17 @@ import static org.springframework.http.MediaType.APPLICATION_JSON;
 public class SearchImageResponse extends AbstractResponse {
 
     public String response;
+    // instead of response, the bytes of elasticsearch's response while they arrive
+    public Flux<DataBuffer> body;
+    public MediaType contentType = APPLICATION_JSON;
 
     public Mono<ServerResponse> getServerResponse() {
+        if (body != null) {
+            return ServerResponse
+                    .status(HttpStatus.OK)
+                    .contentType(contentType)
+                    .body(BodyInserters.fromDataBuffers(body));
+        }
         return ServerResponse
                 .status(HttpStatus.OK)
                 .contentType(APPLICATION_JSON)
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects documents from concurrent index requests and writes them to elasticsearch with one _bulk request. A batch is
+ * written once it has BULK_MAX_DOCS documents or BULK_MAX_BYTES bytes, or BULK_LINGER_MILLIS after its first document.
+ * Every document gets its own result.
+ */
+@Service
+public class BulkWriteService implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String BULK_MAX_DOCS = "BULK_MAX_DOCS";
+    public static final String BULK_MAX_BYTES = "BULK_MAX_BYTES";
+    public static final String BULK_LINGER_MILLIS = "BULK_LINGER_MILLIS";
+
+    private final ElasticService elasticService;
+    private final int maxDocs;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final ScheduledExecutorService lingerTimer;
+    private final Object lock = new Object();
+    private List<Pending> pending = new ArrayList<>();
+    private long pendingBytes;
+    // incremented whenever pending is taken, so a timer only flushes the batch it was started for
+    private long batch;
+
+    @Autowired
+    public BulkWriteService(ElasticService elasticService) {
+        this(elasticService, Integer.getInteger(BULK_MAX_DOCS, 500), Long.getLong(BULK_MAX_BYTES, 5 * 1024 * 1024),
+                Long.getLong(BULK_LINGER_MILLIS, 5));
+    }
+
+    /**
+     * A lingerMillis of 0 disables coalescing, documents are then written one by one by the caller.
+     */
+    public BulkWriteService(ElasticService elasticService, int maxDocs, long maxBytes, long lingerMillis) {
+        this.elasticService = elasticService;
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        if (isEnabled()) {
+            lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bulk-write-linger");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.info("Coalescing index requests into _bulk requests of up to " + maxDocs + " documents after " + lingerMillis + "ms");
+        } else {
+            lingerTimer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return lingerMillis > 0;
+    }
+
+    public int maxDocs() {
+        return maxDocs;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Adds the document to the next _bulk request.
+     *
+     * @return the result of the document once the request that contains it is done
+     */
+    public Mono<ElasticService.BulkItem> index(byte[] document) {
+        return index(null, document);
+    }
+
+    /**
+     * Like {@link #index(byte[])}, but creates the document with the given id. The result has status 409 Conflict if
+     * it exists already.
+     */
+    public Mono<ElasticService.BulkItem> index(String id, byte[] document) {
+        return Mono.create(sink -> {
+            List<List<Pending>> full = new ArrayList<>(2);
+            synchronized (lock) {
+                if (!pending.isEmpty() && pendingBytes + document.length > maxBytes) {
+                    full.add(take());
+                }
+                pending.add(new Pending(id, document, sink));
+                pendingBytes += document.length;
+                if (pending.size() >= maxDocs || pendingBytes >= maxBytes) {
+                    full.add(take());
+                } else if (pending.size() == 1) {
+                    long lingering = batch;
+                    lingerTimer.schedule(() -> flushIfStill(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            for (List<Pending> documents : full) {
+                write(documents);
+            }
+        });
+    }
+
+    private void flushIfStill(long lingering) {
+        List<Pending> documents;
+        synchronized (lock) {
+            if (batch != lingering || pending.isEmpty()) {
+                return;
+            }
+            documents = take();
+        }
+        write(documents);
+    }
+
+    private List<Pending> take() {
+        List<Pending> taken = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        batch++;
+        return taken;
+    }
+
+    private void write(List<Pending> documents) {
+        List<String> ids = new ArrayList<>(documents.size());
+        List<byte[]> bodies = new ArrayList<>(documents.size());
+        for (Pending document : documents) {
+            ids.add(document.id);
+            bodies.add(document.document);
+        }
+        elasticService.bulk(ElasticService.bulkIndexBody(ids, bodies))
+                .map(elasticResponse -> ElasticService.bulkItems(elasticResponse, documents.size()))
+                .subscribe(bulkItems -> {
+                    for (int i = 0; i < documents.size(); i++) {
+                        documents.get(i).sink.success(bulkItems.get(i));
+                    }
+                }, t -> {
+                    logger.warn("Could not write " + documents.size() + " documents to elastic", t);
+                    for (Pending document : documents) {
+                        document.sink.error(t);
+                    }
+                });
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        if (!isEnabled()) {
+            return;
+        }
+        lingerTimer.shutdown();
+        List<Pending> documents;
+        synchronized (lock) {
+            documents = take();
+        }
+        if (!documents.isEmpty()) {
+            write(documents);
+        }
+    }
+
+    private static final class Pending {
+        final String id;
+        final byte[] document;
+        final MonoSink<ElasticService.BulkItem> sink;
+
+        Pending(String id, byte[] document, MonoSink<ElasticService.BulkItem> sink) {
+            this.id = id;
+            this.document = document;
+            this.sink = sink;
+        }
+    }
+}
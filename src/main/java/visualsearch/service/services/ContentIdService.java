@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed document ids, enabled with {@code -DCONTENT_IDS=true}. The id of an image is the MD5 of its bytes,
+ * so indexing the same image again finds the existing document before the image is decoded. The urls an image was
+ * indexed with after the first one are added to the aliases of its document.
+ */
+@Service
+public class ContentIdService {
+    public static final String CONTENT_IDS = "CONTENT_IDS";
+
+    private static final String ADD_ALIAS_SCRIPT = "if (params.url == null || params.url == ctx._source.imageUrl"
+            + " || (ctx._source.aliases != null && ctx._source.aliases.contains(params.url))) { ctx.op = 'none' }"
+            + " else { if (ctx._source.aliases == null) { ctx._source.aliases = [] } ctx._source.aliases.add(params.url) }";
+
+    private final ElasticService elasticService;
+    private final boolean enabled;
+
+    @Autowired
+    public ContentIdService(ElasticService elasticService) {
+        this(elasticService, Boolean.getBoolean(CONTENT_IDS));
+    }
+
+    public ContentIdService(ElasticService elasticService, boolean enabled) {
+        this.elasticService = elasticService;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The hex encoded MD5 of the remaining bytes of body, the position of body is not changed.
+     */
+    public static String contentId(ByteBuffer body) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(body.duplicate());
+            StringBuilder id = new StringBuilder(32);
+            for (byte b : md5.digest()) {
+                id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds url to the aliases of the document unless it is its imageUrl or an alias already. A null url only checks
+     * that the document exists.
+     *
+     * @return whether the document exists
+     */
+    public Mono<Boolean> addAlias(String id, String url) {
+        String body = new JSONObject()
+                .put("script", new JSONObject()
+                        .put("source", ADD_ALIAS_SCRIPT)
+                        .put("lang", "painless")
+                        .put("params", new JSONObject().put("url", url == null ? JSONObject.NULL : url)))
+                .toString();
+        return elasticService.update(id, body).map(elasticResponse -> {
+            if (elasticResponse.getHttpStatus() == HttpStatus.OK) {
+                return true;
+            }
+            if (elasticResponse.getHttpStatus() == HttpStatus.NOT_FOUND) {
+                return false;
+            }
+            throw new IllegalStateException("Could not add alias to " + id + ", elasticsearch answered " + elasticResponse.getHttpStatus() + ": " + elasticResponse.body);
+        });
+    }
+}
@@ -18,23 +18,48 @@ package visualsearch.service.services;
 
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
 
 import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 
 import static io.netty.handler.codec.http.HttpHeaders.Values.APPLICATION_JSON;
 
@@ -45,56 +70,193 @@ public class ElasticService implements Closeable {
     public static final String ELASTIC_PORT = "ELASTIC_PORT";
     public static String INDEX = "images";
     public static String TYPE = "processed_images";
+    static final String SCROLL_KEEP_ALIVE = "1m";
+    static final String NDJSON = "application/x-ndjson";
+    // bytes of a streamed response that are held until the client reads them, reading from elasticsearch pauses beyond
+    public static final String STREAM_BUFFER_BYTES = "STREAM_BUFFER_BYTES";
+    private static final long streamBufferBytes = Long.getLong(STREAM_BUFFER_BYTES, 256 * 1024);
+    private static final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    private static final byte[] BULK_INDEX_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
 
     private final HttpHost httpHost;
 
     private final CloseableHttpAsyncClient client = HttpAsyncClients.createDefault();
 
     public ElasticService() {
-        httpHost = new HttpHost(System.getProperty(ELASTIC_HOST), Integer.parseInt(System.getProperty(ELASTIC_PORT)));
+        httpHost = new HttpHost(System.getProperty(ELASTIC_HOST, "localhost"), Integer.getInteger(ELASTIC_PORT, 9200));
         client.start();
         logger.info("Using elastic host " + System.getProperty(ELASTIC_HOST));
         logger.info("Using elastic port " + System.getProperty(ELASTIC_PORT));
     }
 
     public Mono<ElasticResponse> post(String body) {
-        return Mono.<ElasticResponse>create(sink -> {
-            FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+        logger.debug("sending  " + body + " to elastic");
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE), body.getBytes(StandardCharsets.UTF_8));
+    }
 
-                @Override
-                public void completed(HttpResponse result) {
+    /**
+     * Creates the document with the given id, fails with 409 Conflict if it exists already.
+     */
+    public Mono<ElasticResponse> create(String id, byte[] document) {
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/" + id + "/_create"), document);
+    }
 
-                    try {
-                        sink.success(new ElasticResponse(EntityUtils.toString(result.getEntity()), result.getStatusLine().getStatusCode()));
-                    } catch (IOException e) {
-                        sink.error(e);
-                    }
+    /**
+     * Updates the document with a script, fails with 404 Not Found if there is no such document.
+     */
+    public Mono<ElasticResponse> update(String id, String body) {
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/" + id + "/_update"), body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the document with the given id and only the given fields of its source. A missing document is a 404 Not
+     * Found response with found false.
+     */
+    public Mono<ElasticResponse> get(String id, List<String> source) {
+        return execute(new HttpGet(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/" + encode(id) + "?_source=" + encode(String.join(",", source))));
+    }
+
+    /**
+     * Gets several documents with one request. The response has one doc per id, in the order of ids.
+     */
+    public Mono<ElasticResponse> multiGet(List<String> ids, List<String> source) {
+        String body = new JSONObject().put("ids", new JSONArray(ids)).toString();
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_mget?_source=" + encode(String.join(",", source))),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Mono<ElasticResponse> search(byte[] queryBody) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("sending  query " + new String(queryBody, StandardCharsets.UTF_8) + " to elastic");
+        }
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_search"), queryBody);
+    }
+
+    /**
+     * Like {@link #search(byte[])} but emits the response as soon as the headers arrived and hands the body on while it
+     * is received, without ever holding all of it.
+     */
+    public Mono<StreamedResponse> streamSearch(byte[] queryBody) {
+        return Mono.<StreamedResponse>create(sink -> {
+            StreamingConsumer consumer = new StreamingConsumer(sink, streamBufferBytes);
+            FutureCallback<Void> callback = new FutureCallback<Void>() {
+
+                @Override
+                public void completed(Void result) {
                 }
 
                 @Override
                 public void failed(Exception ex) {
-                    sink.error(ex);
+                    consumer.fail(ex);
                 }
 
                 @Override
                 public void cancelled() {
-                    sink.error(new Exception("request was cancelled"));
+                    consumer.fail(new Exception("request was cancelled"));
                 }
-
-
             };
-            logger.debug("sending  " + body + " to elastic");
-            HttpPost request = new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE);
-            BasicHttpEntity entity = new BasicHttpEntity();
-            entity.setContent(new ByteArrayInputStream(body.getBytes()));
-            request.setEntity(entity);
+            HttpPost request = new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_search");
+            request.setEntity(entity(queryBody, APPLICATION_JSON));
             request.addHeader("accept", APPLICATION_JSON);
-            client.execute(request, callback);
-
+            client.execute(HttpAsyncMethods.create(httpHost, request), consumer, callback);
         });
     }
 
-    public Mono<ElasticResponse> search(String queryBody) {
+    /**
+     * Runs several searches in one request. The body is newline delimited json, a header and a query per search.
+     */
+    public Mono<ElasticResponse> multiSearch(byte[] body) {
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_msearch"), body, NDJSON);
+    }
+
+    /**
+     * Indexes several documents in one request. The body is newline delimited json, an action and a document per line
+     * pair. The response has one item per document, in the order of the body.
+     */
+    public Mono<ElasticResponse> bulk(byte[] body) {
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_bulk"), body, NDJSON);
+    }
+
+    /**
+     * A _bulk body that indexes the documents with generated ids.
+     */
+    public static byte[] bulkIndexBody(List<byte[]> documents) {
+        return bulkIndexBody(Collections.nCopies(documents.size(), null), documents);
+    }
+
+    /**
+     * A _bulk body that creates the documents with the given ids, documents without id are indexed with a generated id.
+     * Creating a document that already exists fails with 409 Conflict.
+     */
+    public static byte[] bulkIndexBody(List<String> ids, List<byte[]> documents) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < documents.size(); i++) {
+            byte[] action = ids.get(i) == null
+                    ? BULK_INDEX_ACTION
+                    : (new JSONObject().put("create", new JSONObject().put("_id", ids.get(i))).toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            body.write(action, 0, action.length);
+            body.write(documents.get(i), 0, documents.get(i).length);
+            body.write('\n');
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * The result of every document of a _bulk request, in the order of the body. If the whole request failed every
+     * document failed with its status.
+     */
+    public static List<BulkItem> bulkItems(ElasticResponse elasticResponse, int numDocuments) {
+        List<BulkItem> bulkItems = new ArrayList<>(numDocuments);
+        if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+            for (int i = 0; i < numDocuments; i++) {
+                bulkItems.add(new BulkItem(null, elasticResponse.getHttpStatus(), elasticResponse.body));
+            }
+            return bulkItems;
+        }
+        JSONArray items = new JSONObject(elasticResponse.body).getJSONArray("items");
+        for (int i = 0; i < numDocuments; i++) {
+            // keyed by the action, index or create
+            JSONObject item = items.getJSONObject(i);
+            JSONObject result = item.getJSONObject((String) item.keys().next());
+            bulkItems.add(new BulkItem(result.optString("_id", null), resolveStatus(result.optInt("status", 500)),
+                    result.has("error") ? String.valueOf(result.get("error")) : null));
+        }
+        return bulkItems;
+    }
+
+    /**
+     * Starts a scroll over all documents that match the query. The response contains the first page and the _scroll_id
+     * to pass to {@link #scroll(String)}.
+     */
+    public Mono<ElasticResponse> startScroll(String queryBody) {
+        return execute(new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_search?scroll=" + SCROLL_KEEP_ALIVE), queryBody.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Mono<ElasticResponse> scroll(String scrollId) {
+        String body = new JSONObject()
+                .put("scroll", SCROLL_KEEP_ALIVE)
+                .put("scroll_id", scrollId)
+                .toString();
+        return execute(new HttpPost(httpHost.toURI() + "/_search/scroll"), body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Frees the scroll on elasticsearch before it times out.
+     */
+    public Mono<ElasticResponse> clearScroll(String scrollId) {
+        return execute(new HttpDelete(httpHost.toURI() + "/_search/scroll/" + scrollId));
+    }
+
+    private Mono<ElasticResponse> execute(HttpPost request, byte[] body) {
+        return execute(request, body, APPLICATION_JSON);
+    }
+
+    private Mono<ElasticResponse> execute(HttpPost request, byte[] body, String contentType) {
+        request.setEntity(entity(body, contentType));
+        return execute(request);
+    }
+
+    private Mono<ElasticResponse> execute(HttpUriRequest request) {
         return Mono.<ElasticResponse>create(sink -> {
             FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
 
@@ -120,17 +282,28 @@ public class ElasticService implements Closeable {
 
 
             };
-            logger.debug("sending  query " + queryBody + " to elastic");
-            HttpPost request = new HttpPost(httpHost.toURI() + "/" + INDEX + "/" + TYPE + "/_search");
-            BasicHttpEntity entity = new BasicHttpEntity();
-            entity.setContent(new ByteArrayInputStream(queryBody.getBytes()));
-            request.setEntity(entity);
             request.addHeader("accept", APPLICATION_JSON);
             client.execute(request, callback);
 
         });
     }
 
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static BasicHttpEntity entity(byte[] body, String contentType) {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(body));
+        entity.setContentLength(body.length);
+        entity.setContentType(contentType);
+        return entity;
+    }
+
     @Override
     @PreDestroy
     public void close() throws IOException {
@@ -142,13 +315,21 @@ public class ElasticService implements Closeable {
     }
 
 
+    /**
+     * The status of an upstream response, BAD_GATEWAY for codes that HttpStatus does not know.
+     */
+    static HttpStatus resolveStatus(int statusCode) {
+        HttpStatus status = HttpStatus.resolve(statusCode);
+        return status == null ? HttpStatus.BAD_GATEWAY : status;
+    }
+
     public static class ElasticResponse {
         HttpStatus status;
         String body;
 
         public ElasticResponse(String body, int status) {
             this.body = body;
-            this.status = HttpStatus.resolve(status);
+            this.status = resolveStatus(status);
         }
 
         public String getBody() throws IOException {
@@ -160,4 +341,186 @@ public class ElasticService implements Closeable {
         }
     }
 
+    /**
+     * The status of a response and its body, which can be subscribed to once. A body that is not read must be closed to
+     * release the connection.
+     */
+    public static class StreamedResponse implements AutoCloseable {
+        private final HttpStatus status;
+        private final Flux<DataBuffer> body;
+        private final Runnable cancel;
+
+        public StreamedResponse(HttpStatus status, Flux<DataBuffer> body, Runnable cancel) {
+            this.status = status;
+            this.body = body;
+            this.cancel = cancel;
+        }
+
+        public HttpStatus getHttpStatus() {
+            return status;
+        }
+
+        public Flux<DataBuffer> body() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            cancel.run();
+        }
+    }
+
+    /**
+     * Copies every chunk off the connection into a DataBuffer and emits it when the subscriber asks for it. Once
+     * maxBufferedBytes are waiting for the subscriber, input from the connection is suspended until it caught up.
+     */
+    static class StreamingConsumer extends AsyncByteConsumer<Void> {
+
+        private final MonoSink<StreamedResponse> sink;
+        private final long maxBufferedBytes;
+        private final Queue<DataBuffer> chunks = new ArrayDeque<>();
+        private long bufferedBytes;
+        private FluxSink<DataBuffer> subscriber;
+        private IOControl ioControl;
+        private boolean suspended;
+        private boolean responded;
+        // the whole body arrived or the request failed
+        private boolean received;
+        private Throwable error;
+        private boolean done;
+
+        StreamingConsumer(MonoSink<StreamedResponse> sink, long maxBufferedBytes) {
+            this.sink = sink;
+            this.maxBufferedBytes = maxBufferedBytes;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            HttpStatus status = resolveStatus(response.getStatusLine().getStatusCode());
+            synchronized (this) {
+                responded = true;
+            }
+            sink.success(new StreamedResponse(status, Flux.create(this::subscribe), this::abort));
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioControl) throws IOException {
+            synchronized (this) {
+                this.ioControl = ioControl;
+                if (done) {
+                    ioControl.shutdown();
+                    return;
+                }
+                // buf is reused for the next chunk
+                int bytes = buf.remaining();
+                chunks.add(bufferFactory.allocateBuffer(bytes).write(buf));
+                bufferedBytes += bytes;
+                if (bufferedBytes >= maxBufferedBytes && !suspended) {
+                    suspended = true;
+                    ioControl.suspendInput();
+                }
+            }
+            drain();
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) {
+            synchronized (this) {
+                received = true;
+            }
+            drain();
+            return null;
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+
+        void fail(Exception e) {
+            boolean responded;
+            synchronized (this) {
+                error = e;
+                received = true;
+                responded = this.responded;
+            }
+            if (responded) {
+                drain();
+            } else {
+                sink.error(e);
+            }
+        }
+
+        private void subscribe(FluxSink<DataBuffer> subscriber) {
+            synchronized (this) {
+                if (this.subscriber != null) {
+                    subscriber.error(new IllegalStateException("the body can only be read once"));
+                    return;
+                }
+                this.subscriber = subscriber;
+            }
+            subscriber.onRequest(n -> drain());
+            subscriber.onDispose(this::abort);
+            drain();
+        }
+
+        private synchronized void drain() {
+            if (done || subscriber == null) {
+                return;
+            }
+            while (!chunks.isEmpty() && subscriber.requestedFromDownstream() > 0) {
+                DataBuffer chunk = chunks.poll();
+                bufferedBytes -= chunk.readableByteCount();
+                subscriber.next(chunk);
+            }
+            if (chunks.isEmpty() && received) {
+                done = true;
+                if (error != null) {
+                    subscriber.error(error);
+                } else {
+                    subscriber.complete();
+                }
+            } else if (suspended && bufferedBytes < maxBufferedBytes) {
+                suspended = false;
+                ioControl.requestInput();
+            }
+        }
+
+        private synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            for (DataBuffer chunk : chunks) {
+                DataBufferUtils.release(chunk);
+            }
+            chunks.clear();
+            bufferedBytes = 0;
+            if (ioControl != null && !received) {
+                try {
+                    ioControl.shutdown();
+                } catch (IOException e) {
+                    // the connection is gone either way
+                }
+            }
+        }
+    }
+
+    /**
+     * The id and status of a document written with _bulk, and the error if it failed.
+     */
+    public static class BulkItem {
+        public final String id;
+        public final HttpStatus status;
+        public final String error;
+
+        public BulkItem(String id, HttpStatus status, String error) {
+            this.id = id;
+            this.status = status;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return status == HttpStatus.CREATED || status == HttpStatus.OK;
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import visualsearch.image.FeatureExtractor;
+import visualsearch.image.ProcessedImage;
+import visualsearch.store.FeatureCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the features of every processed url, so that repeated urls are neither fetched nor decoded again. Only the
+ * dHash is cached: if additional hashes are configured with IMAGE_HASHES, indexing does not use the cache.
+ * <p>
+ * Entries expire after FEATURE_CACHE_TTL_MILLIS, the url is then fetched again, which revalidates it with the image
+ * cache, so a changed image behind the same url is picked up.
+ */
+@Service
+public class FeatureCacheService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String FEATURE_CACHE_SIZE = "FEATURE_CACHE_SIZE";
+    public static final String FEATURE_CACHE_TTL_MILLIS = "FEATURE_CACHE_TTL_MILLIS";
+
+    private final FeatureCache featureCache;
+    private final boolean coversAllFeatures;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final Counter hits;
+    private final Counter misses;
+
+    public FeatureCacheService() {
+        this(new SimpleMeterRegistry());
+    }
+
+    @Autowired
+    public FeatureCacheService(MeterRegistry meterRegistry) {
+        this(meterRegistry, Integer.getInteger(FEATURE_CACHE_SIZE, 100000),
+                FeatureExtractor.fromSystemProperties().hashTypes().size() == 1);
+    }
+
+    /**
+     * @param maxEntries        0 disables the cache
+     * @param coversAllFeatures whether the dHash is the only feature that is extracted
+     */
+    public FeatureCacheService(MeterRegistry meterRegistry, int maxEntries, boolean coversAllFeatures) {
+        this(meterRegistry, maxEntries, coversAllFeatures, Long.getLong(FEATURE_CACHE_TTL_MILLIS, 3600000), System::nanoTime);
+    }
+
+    FeatureCacheService(MeterRegistry meterRegistry, int maxEntries, boolean coversAllFeatures, long ttlMillis, LongSupplier nanoClock) {
+        this.featureCache = maxEntries > 0 ? new FeatureCache(maxEntries) : null;
+        this.coversAllFeatures = coversAllFeatures;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.nanoClock = nanoClock;
+        hits = meterRegistry.counter("feature.cache.hits");
+        misses = meterRegistry.counter("feature.cache.misses");
+        if (featureCache != null) {
+            meterRegistry.gauge("feature.cache.size", featureCache, FeatureCache::size);
+            logger.info("Caching the features of up to " + maxEntries + " urls for " + ttlMillis + "ms");
+        }
+    }
+
+    /**
+     * @param dHashOnly whether the caller only needs the dHash, for example to search
+     * @return the processed image of the url as it was processed before, or null
+     */
+    public ProcessedImage get(String imageUrl, boolean dHashOnly) {
+        if (featureCache == null || imageUrl == null || !(dHashOnly || coversAllFeatures)) {
+            return null;
+        }
+        FeatureCache.Features features = featureCache.get(imageUrl);
+        if (features == null || nanoClock.getAsLong() - features.storedAt >= ttlNanos) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ProcessedImage.builder()
+                .imageUrl(imageUrl)
+                .capacity(features.receivedBytes)
+                .numPixels(features.numPixels)
+                .dHash(features.dHash)
+                .build();
+    }
+
+    public void put(ProcessedImage processedImage) {
+        if (featureCache != null) {
+            featureCache.put(processedImage.imageUrl, processedImage.dHashLong, processedImage.numPixels, processedImage.receivedBytes,
+                    nanoClock.getAsLong());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import visualsearch.image.ImageHash;
+import visualsearch.image.ProcessedImage;
+import visualsearch.store.HammingIndex;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the dHash of every indexed image in an in memory {@link HammingIndex} so that searches can be answered without
+ * asking elasticsearch. Enabled with the system property HASH_INDEX. The index is rebuilt from elasticsearch at
+ * startup and is not used for searches until that is done. Images indexed in the meantime are added right away and
+ * skipped when the rebuild comes across them.
+ */
+@Service
+public class HashIndexService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String HASH_INDEX = "HASH_INDEX";
+    static final int SCROLL_SIZE = 1000;
+
+    private final ElasticService elasticService;
+    private final boolean enabled;
+    private final HammingIndex index = new HammingIndex();
+    private final Set<String> addedWhileRebuilding = ConcurrentHashMap.newKeySet();
+    private volatile boolean ready = false;
+
+    @Autowired
+    public HashIndexService(ElasticService elasticService) {
+        this(elasticService, Boolean.getBoolean(HASH_INDEX));
+    }
+
+    public HashIndexService(ElasticService elasticService, boolean enabled) {
+        this.elasticService = elasticService;
+        this.enabled = enabled;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            rebuild().subscribe(
+                    numHashes -> logger.info("Loaded " + numHashes + " hashes from elasticsearch into the hash index"),
+                    t -> logger.error("Could not load hashes from elasticsearch, searching elasticsearch instead", t));
+        }
+    }
+
+    /**
+     * @return whether searches can be answered from the index
+     */
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void add(String id, ProcessedImage processedImage) {
+        if (enabled) {
+            if (!ready) {
+                addedWhileRebuilding.add(id);
+            }
+            index.add(processedImage.dHashLong, id, processedImage.imageUrl);
+        }
+    }
+
+    public HammingIndex.Result search(long hash, int maxDistance, int k) {
+        return index.search(hash, maxDistance, k);
+    }
+
+    Mono<Integer> rebuild() {
+        String query = new JSONObject()
+                .put("size", SCROLL_SIZE)
+                .put("_source", new String[]{"dHashLong", "imageUrl", "dHash"})
+                .put("sort", new String[]{"_doc"})
+                .toString();
+        // the id of the last page, cleared when the rebuild is done or failed
+        AtomicReference<String> scrollId = new AtomicReference<>();
+        return elasticService.startScroll(query)
+                .flatMap(response -> loadPage(response, 0, scrollId))
+                .doOnSuccess(numHashes -> {
+                    ready = true;
+                    addedWhileRebuilding.clear();
+                })
+                .doFinally(signal -> {
+                    if (scrollId.get() != null) {
+                        Mono.defer(() -> elasticService.clearScroll(scrollId.get()))
+                                .subscribe(response -> {
+                                }, e -> logger.warn("Could not clear scroll", e));
+                    }
+                });
+    }
+
+    private Mono<Integer> loadPage(ElasticService.ElasticResponse response, int loaded, AtomicReference<String> scrollId) {
+        JSONObject page;
+        try {
+            if (response.getHttpStatus() != HttpStatus.OK) {
+                return Mono.error(new IOException("Could not scroll through elasticsearch: " + response.getBody()));
+            }
+            page = new JSONObject(response.getBody());
+        } catch (IOException e) {
+            return Mono.error(e);
+        }
+        scrollId.set(page.optString("_scroll_id", null));
+        JSONArray hits = page.getJSONObject("hits").getJSONArray("hits");
+        if (hits.length() == 0) {
+            return Mono.just(loaded);
+        }
+        int added = 0;
+        for (int i = 0; i < hits.length(); i++) {
+            JSONObject hit = hits.getJSONObject(i);
+            String id = hit.getString("_id");
+            JSONObject source = hit.getJSONObject("_source");
+            Long hash = hash(source);
+            if (hash != null && !addedWhileRebuilding.contains(id)) {
+                index.add(hash, id, source.optString("imageUrl", null));
+                added++;
+            }
+        }
+        int total = loaded + added;
+        return elasticService.scroll(page.getString("_scroll_id")).flatMap(next -> loadPage(next, total, scrollId));
+    }
+
+    // documents written before the hash was packed into a long only have the dh_* fields
+    public static Long hash(JSONObject source) {
+        if (source.has("dHashLong")) {
+            return source.getLong("dHashLong");
+        }
+        JSONObject legacyFields = source.optJSONObject("dHash");
+        if (legacyFields == null) {
+            return null;
+        }
+        boolean[] bits = new boolean[ImageHash.NUM_BITS];
+        Iterator<?> keys = legacyFields.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            bits[Integer.parseInt(key.substring("dh_".length()))] = legacyFields.getBoolean(key);
+        }
+        return ImageHash.fromBits(bits);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs CPU heavy work like decoding and hashing images on a fixed size pool with a bounded queue, so that it never
+ * blocks the I/O threads of the http clients. If the queue is full the work is rejected with a
+ * RejectedExecutionException instead of piling up.
+ * <p>
+ * Decodes that read from an image that is still being downloaded wait for the network between chunks. They run on a
+ * second pool of STREAMING_DECODE_THREADS with its own queue, so slow servers cannot keep the processing threads idle.
+ */
+@Service
+public class ImageProcessingService implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String PROCESSING_THREADS = "PROCESSING_THREADS";
+    public static final String PROCESSING_QUEUE_SIZE = "PROCESSING_QUEUE_SIZE";
+    public static final String STREAMING_DECODE_THREADS = "STREAMING_DECODE_THREADS";
+    public static final String STREAMING_DECODE_QUEUE_SIZE = "STREAMING_DECODE_QUEUE_SIZE";
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor streamingExecutor;
+    private final Timer waitTime;
+    private final Timer executionTime;
+    private final Timer streamingWaitTime;
+    private final Timer streamingExecutionTime;
+    private final Counter rejected;
+
+    public ImageProcessingService() {
+        this(new SimpleMeterRegistry());
+    }
+
+    @Autowired
+    public ImageProcessingService(MeterRegistry meterRegistry) {
+        this(meterRegistry,
+                Integer.getInteger(PROCESSING_THREADS, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(PROCESSING_QUEUE_SIZE, 100));
+    }
+
+    public ImageProcessingService(MeterRegistry meterRegistry, int threads, int queueSize) {
+        this(meterRegistry, threads, queueSize,
+                Integer.getInteger(STREAMING_DECODE_THREADS, 4 * Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(STREAMING_DECODE_QUEUE_SIZE, 100));
+    }
+
+    public ImageProcessingService(MeterRegistry meterRegistry, int threads, int queueSize, int streamingThreads, int streamingQueueSize) {
+        executor = pool("image-processing-", threads, queueSize);
+        streamingExecutor = pool("image-streaming-decode-", streamingThreads, streamingQueueSize);
+        meterRegistry.gauge("image.processing.queue.depth", executor, e -> e.getQueue().size());
+        meterRegistry.gauge("image.processing.active", executor, ThreadPoolExecutor::getActiveCount);
+        meterRegistry.gauge("image.streaming.queue.depth", streamingExecutor, e -> e.getQueue().size());
+        meterRegistry.gauge("image.streaming.active", streamingExecutor, ThreadPoolExecutor::getActiveCount);
+        waitTime = meterRegistry.timer("image.processing.wait");
+        executionTime = meterRegistry.timer("image.processing.execution");
+        streamingWaitTime = meterRegistry.timer("image.streaming.wait");
+        streamingExecutionTime = meterRegistry.timer("image.streaming.execution");
+        rejected = meterRegistry.counter("image.processing.rejected");
+        logger.info("Processing images with " + threads + " threads and a queue of " + queueSize);
+    }
+
+    private static ThreadPoolExecutor pool(String threadPrefix, int threads, int queueSize) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, threadPrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> Mono<T> submit(Callable<T> task) {
+        return submit(executor, waitTime, executionTime, task);
+    }
+
+    /**
+     * Runs a task that reads from a stream that is still being received on the streaming decode pool.
+     */
+    public <T> Mono<T> submitStreaming(Callable<T> task) {
+        return submit(streamingExecutor, streamingWaitTime, streamingExecutionTime, task);
+    }
+
+    private <T> Mono<T> submit(ThreadPoolExecutor executor, Timer waitTime, Timer executionTime, Callable<T> task) {
+        return Mono.<T>create(sink -> {
+            long enqueued = System.nanoTime();
+            try {
+                Future<?> future = executor.submit(() -> {
+                    long started = System.nanoTime();
+                    waitTime.record(started - enqueued, TimeUnit.NANOSECONDS);
+                    try {
+                        sink.success(task.call());
+                    } catch (Throwable t) {
+                        sink.error(t);
+                    } finally {
+                        executionTime.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                    }
+                });
+                sink.onCancel(() -> future.cancel(false));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                sink.error(e);
+            }
+        });
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+        streamingExecutor.shutdownNow();
+    }
+}
@@ -16,50 +16,172 @@
 
 package visualsearch.service.services;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import visualsearch.image.ChunkedImageInputStream;
+import visualsearch.image.ImageLimitExceededException;
+import visualsearch.store.ImageCache;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static org.springframework.http.MediaType.IMAGE_GIF_VALUE;
 import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
 
 @Service
 public class ImageRetrieveService implements AutoCloseable {
 
+    // formats ImageDecoder can sniff and decode
+    static final String ACCEPTED_IMAGE_TYPES = IMAGE_JPEG_VALUE + ", " + IMAGE_PNG_VALUE + ", " + IMAGE_GIF_VALUE + ", image/bmp";
+
+    // set to true to start decoding while the image is still being received instead of buffering it first
+    public static final String STREAMING_DECODE = "STREAMING_DECODE";
+    private static final boolean streamingDecode = Boolean.getBoolean(STREAMING_DECODE);
+
+    // larger responses are aborted, checked against Content-Length and while receiving
+    public static final String MAX_IMAGE_BYTES = "MAX_IMAGE_BYTES";
+    private static final long maxImageBytes = Long.getLong(MAX_IMAGE_BYTES, 20L * 1024 * 1024);
+
     // cannot use this client probably because of https://github.com/reactor/reactor-netty/issues/119
     // check in again in a few weeks?
     // or maybe it is because I did not release the buffer. Look at Jackson2Tokenizer to see how this goes
     // private WebClient client = WebClient.create();
 
+    // set to a directory to keep fetched images on disk, see ImageCache
+    public static final String IMAGE_CACHE_PATH = "IMAGE_CACHE_PATH";
+    public static final String IMAGE_CACHE_MAX_BYTES = "IMAGE_CACHE_MAX_BYTES";
+    // cached images younger than this are used without asking the server, older ones are revalidated
+    public static final String IMAGE_CACHE_FRESH_MILLIS = "IMAGE_CACHE_FRESH_MILLIS";
+    // how long a failed fetch is remembered and returned again instead of fetching, also when a stream breaks off
+    public static final String FAILED_FETCH_TTL_MILLIS = "FAILED_FETCH_TTL_MILLIS";
+    private static final int MAX_FAILED_FETCHES = 100000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final CloseableHttpAsyncClient client = HttpAsyncClients.createDefault();
+    private final ImageCache imageCache;
+    private final long freshMillis;
+    private final long failedFetchTtlNanos;
+    private final Map<String, FailedFetch> failedFetches = new LinkedHashMap<String, FailedFetch>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FailedFetch> eldest) {
+            return size() > MAX_FAILED_FETCHES;
+        }
+    };
 
     public ImageRetrieveService() {
+        this(openImageCache(), Long.getLong(IMAGE_CACHE_FRESH_MILLIS, 60000), Long.getLong(FAILED_FETCH_TTL_MILLIS, 30000));
+    }
+
+    /**
+     * @param imageCache null to always fetch
+     */
+    public ImageRetrieveService(ImageCache imageCache, long freshMillis, long failedFetchTtlMillis) {
+        this.imageCache = imageCache;
+        this.freshMillis = freshMillis;
+        this.failedFetchTtlNanos = TimeUnit.MILLISECONDS.toNanos(failedFetchTtlMillis);
         client.start();
     }
 
+    private static ImageCache openImageCache() {
+        String path = System.getProperty(IMAGE_CACHE_PATH);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return ImageCache.open(Paths.get(path), Long.getLong(IMAGE_CACHE_MAX_BYTES, 1024L * 1024 * 1024));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open image cache at " + path, e);
+        }
+    }
 
     public Mono<ImageFetchResponse> fetchImage(FetchImageRequest request) {
+        return fetchImage(request, streamingDecode);
+    }
+
+    /**
+     * @param stream whether the response may be streamed, false to always get the whole body
+     */
+    public Mono<ImageFetchResponse> fetchImage(FetchImageRequest request, boolean stream) {
+        return Mono.defer(() -> {
+            FailedFetch failedFetch = failedFetch(request.imageUrl);
+            if (failedFetch != null) {
+                return failedFetch.replay(request.imageUrl);
+            }
+            ImageCache.Entry entry = imageCache == null ? null : imageCache.get(request.imageUrl);
+            if (entry != null && System.currentTimeMillis() - entry.storedAtMillis < freshMillis) {
+                ImageFetchResponse cached = cachedResponse(entry);
+                if (cached != null) {
+                    return Mono.just(cached);
+                }
+            }
+            return fetch(request, entry != null && entry.hasValidators() ? entry : null, stream)
+                    .doOnNext(response -> {
+                        if (response.statusCode() != HttpStatus.OK) {
+                            rememberFailure(request.imageUrl, response.statusCode(), null);
+                        }
+                    })
+                    .doOnError(e -> rememberFailure(request.imageUrl, null, e));
+        });
+    }
 
+    /**
+     * @param cached an entry of the image cache to revalidate, the cached body is returned if the server answers 304
+     */
+    private Mono<ImageFetchResponse> fetch(FetchImageRequest request, ImageCache.Entry cached, boolean stream) {
+        if (cached != null) {
+            return bufferImage(request, cached).flatMap(response -> {
+                if (response.statusCode() != HttpStatus.NOT_MODIFIED) {
+                    return Mono.just(response);
+                }
+                try {
+                    ImageFetchResponse revalidated = cachedResponse(imageCache.touch(cached));
+                    // evicted while revalidating
+                    return revalidated != null ? Mono.just(revalidated) : fetch(request, null, stream);
+                } catch (IOException e) {
+                    return Mono.error(e);
+                }
+            });
+        }
+        if (stream) {
+            return streamImage(request);
+        }
+        return bufferImage(request, null);
+    }
+
+    private Mono<ImageFetchResponse> bufferImage(FetchImageRequest request, ImageCache.Entry cached) {
         return Mono.<ImageFetchResponse>create(sink -> {
-            FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+            FutureCallback<ImageFetchResponse> callback = new FutureCallback<ImageFetchResponse>() {
 
                 @Override
-                public void completed(HttpResponse result) {
-
-                    try {
-                        sink.success(new ImageFetchResponse(ByteBuffer.wrap(EntityUtils.toByteArray(result.getEntity())), HttpStatus.resolve(result.getStatusLine().getStatusCode()), request.imageUrl));
-                    } catch (IOException e) {
-                        sink.error(e);
-                    }
+                public void completed(ImageFetchResponse result) {
+                    sink.success(result);
                 }
 
                 @Override
@@ -74,21 +196,384 @@ public class ImageRetrieveService implements AutoCloseable {
 
             };
             HttpGet getRequest = new HttpGet(request.imageUrl);
-            getRequest.addHeader("accept", IMAGE_JPEG_VALUE);
-            client.execute(getRequest, callback);
+            getRequest.addHeader("accept", ACCEPTED_IMAGE_TYPES);
+            if (cached != null && cached.etag != null) {
+                getRequest.addHeader("If-None-Match", cached.etag);
+            }
+            if (cached != null && cached.lastModified != null) {
+                getRequest.addHeader("If-Modified-Since", cached.lastModified);
+            }
+            client.execute(HttpAsyncMethods.create(getRequest), new BufferingConsumer(request.imageUrl, maxImageBytes, imageCache), callback);
+
+        });
+    }
+
+    private ImageFetchResponse cachedResponse(ImageCache.Entry entry) {
+        try {
+            ByteBuffer body = imageCache.read(entry);
+            return body == null ? null : new ImageFetchResponse(body, HttpStatus.OK, entry.url);
+        } catch (IOException e) {
+            logger.warn("Could not read " + entry.url + " from the image cache", e);
+            return null;
+        }
+    }
+
+    private FailedFetch failedFetch(String imageUrl) {
+        synchronized (failedFetches) {
+            FailedFetch failedFetch = failedFetches.get(imageUrl);
+            if (failedFetch != null && System.nanoTime() - failedFetch.expiresNanos >= 0) {
+                failedFetches.remove(imageUrl);
+                return null;
+            }
+            return failedFetch;
+        }
+    }
+
+    private void rememberFailure(String imageUrl, HttpStatus status, Throwable error) {
+        if (failedFetchTtlNanos > 0) {
+            FailedFetch failedFetch = new FailedFetch(status, error, System.nanoTime() + failedFetchTtlNanos);
+            synchronized (failedFetches) {
+                failedFetches.put(imageUrl, failedFetch);
+            }
+        }
+    }
+
+    /**
+     * Either the status of a response other than 200 or the exception the fetch failed with.
+     */
+    private static class FailedFetch {
+        final HttpStatus status;
+        final Throwable error;
+        final long expiresNanos;
+
+        FailedFetch(HttpStatus status, Throwable error, long expiresNanos) {
+            this.status = status;
+            this.error = error;
+            this.expiresNanos = expiresNanos;
+        }
+
+        Mono<ImageFetchResponse> replay(String imageUrl) {
+            if (error != null) {
+                return Mono.error(error);
+            }
+            return Mono.just(new ImageFetchResponse(ByteBuffer.allocate(0), status, imageUrl));
+        }
+    }
+
+    /**
+     * Emits the response as soon as the headers arrived. The body is appended to the stream of the response while it
+     * is received. Closing the stream shuts the connection down, so a decoder that is done or failed stops the download.
+     */
+    public Mono<ImageFetchResponse> streamImage(FetchImageRequest request) {
+        return Mono.<ImageFetchResponse>create(sink -> {
+            StreamingConsumer consumer = new StreamingConsumer(sink, request.imageUrl, maxImageBytes, imageCache);
+            FutureCallback<ChunkedImageInputStream> callback = new FutureCallback<ChunkedImageInputStream>() {
+
+                @Override
+                public void completed(ChunkedImageInputStream result) {
+                    consumer.commitCache();
+                    result.finish();
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    consumer.fail(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    consumer.fail(new Exception("request was cancelled"));
+                }
+            };
+            HttpGet getRequest = new HttpGet(request.imageUrl);
+            getRequest.addHeader("accept", ACCEPTED_IMAGE_TYPES);
+            client.execute(HttpAsyncMethods.create(getRequest), consumer, callback);
+        });
+    }
 
+    /**
+     * Streams an image uploaded with a request to the decoder while it is received, like {@link #streamImage}. Every
+     * chunk is released once it was appended, closing the stream stops reading the body.
+     *
+     * @param contentLength the length of the body or -1 if not known
+     */
+    public Mono<ImageFetchResponse> receiveImage(Flux<DataBuffer> body, long contentLength) {
+        if (contentLength > maxImageBytes) {
+            return Mono.error(tooLarge(contentLength, maxImageBytes));
+        }
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(contentLength);
+        Disposable receiving = limited(body).subscribe(chunk -> {
+            try {
+                stream.append(chunk.asByteBuffer());
+            } finally {
+                DataBufferUtils.release(chunk);
+            }
+        }, stream::fail, stream::finish);
+        stream.onClose(receiving::dispose);
+        return Mono.just(new ImageFetchResponse(stream, HttpStatus.OK, "none"));
+    }
+
+    /**
+     * The whole body of an image uploaded with a request.
+     */
+    public Mono<ImageFetchResponse> receiveImageBytes(Flux<DataBuffer> body, long contentLength) {
+        if (contentLength > maxImageBytes) {
+            return Mono.error(tooLarge(contentLength, maxImageBytes));
+        }
+        return DataBufferUtils.join(limited(body))
+                .map(joined -> {
+                    ByteBuffer bytes = ByteBuffer.allocate(joined.readableByteCount());
+                    bytes.put(joined.asByteBuffer()).flip();
+                    DataBufferUtils.release(joined);
+                    return bytes;
+                })
+                .defaultIfEmpty(ByteBuffer.allocate(0))
+                .map(bytes -> new ImageFetchResponse(bytes, HttpStatus.OK, "none"));
+    }
+
+    // fails as soon as more than MAX_IMAGE_BYTES were received
+    private static Flux<DataBuffer> limited(Flux<DataBuffer> body) {
+        return Flux.defer(() -> {
+            long[] received = {0};
+            return body.handle((chunk, sink) -> {
+                received[0] += chunk.readableByteCount();
+                if (received[0] > maxImageBytes) {
+                    DataBufferUtils.release(chunk);
+                    sink.error(tooLarge(received[0], maxImageBytes));
+                } else {
+                    sink.next(chunk);
+                }
+            });
         });
     }
 
-    public static class ImageFetchResponse {
+    private static ImageLimitExceededException tooLarge(long bytes, long maxBytes) {
+        return new ImageLimitExceededException(ImageLimitExceededException.Limit.BYTES,
+                "Image has at least " + bytes + " bytes, the limit is " + maxBytes + ".");
+    }
+
+    /**
+     * Fails the request as soon as the announced Content-Length or the bytes received so far exceed the limit. The
+     * exception closes the connection, so nothing more is downloaded.
+     */
+    private abstract static class LimitedConsumer<T> extends AsyncByteConsumer<T> {
+
+        private final long maxBytes;
+        private long received = 0;
+
+        LimitedConsumer(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        protected long contentLength(HttpResponse response) throws ImageLimitExceededException {
+            HttpEntity entity = response.getEntity();
+            long contentLength = entity == null ? -1 : entity.getContentLength();
+            if (contentLength > maxBytes) {
+                throw tooLarge(contentLength, maxBytes);
+            }
+            return contentLength;
+        }
+
+        protected void count(int bytes) throws ImageLimitExceededException {
+            received += bytes;
+            if (received > maxBytes) {
+                throw tooLarge(received, maxBytes);
+            }
+        }
+    }
+
+    private static String header(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private class BufferingConsumer extends LimitedConsumer<ImageFetchResponse> {
+
+        private final String imageUrl;
+        private final ImageCache imageCache;
+        private HttpStatus statusCode;
+        private String etag;
+        private String lastModified;
+        private byte[] body;
+        private int size = 0;
+
+        BufferingConsumer(String imageUrl, long maxBytes, ImageCache imageCache) {
+            super(maxBytes);
+            this.imageUrl = imageUrl;
+            this.imageCache = imageCache;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws ImageLimitExceededException {
+            long contentLength = contentLength(response);
+            statusCode = ElasticService.resolveStatus(response.getStatusLine().getStatusCode());
+            etag = header(response, "ETag");
+            lastModified = header(response, "Last-Modified");
+            body = new byte[contentLength >= 0 ? (int) contentLength : 64 * 1024];
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioControl) throws ImageLimitExceededException {
+            int bytes = buf.remaining();
+            count(bytes);
+            if (size + bytes > body.length) {
+                body = Arrays.copyOf(body, Math.max(size + bytes, body.length * 2));
+            }
+            buf.get(body, size, bytes);
+            size += bytes;
+        }
+
+        @Override
+        protected ImageFetchResponse buildResult(HttpContext context) {
+            ByteBuffer result = ByteBuffer.wrap(body == null ? new byte[0] : body, 0, size).slice();
+            if (imageCache != null && statusCode == HttpStatus.OK) {
+                try {
+                    imageCache.put(imageUrl, result, etag, lastModified);
+                } catch (IOException e) {
+                    logger.warn("Could not write " + imageUrl + " to the image cache", e);
+                }
+            }
+            return new ImageFetchResponse(result, statusCode, imageUrl);
+        }
+
+        @Override
+        protected void releaseResources() {
+            body = null;
+        }
+    }
+
+    /**
+     * Also writes the body to the image cache while it is received and commits it once the whole body arrived.
+     */
+    private class StreamingConsumer extends LimitedConsumer<ChunkedImageInputStream> {
+
+        private final MonoSink<ImageFetchResponse> sink;
+        private final String imageUrl;
+        private final ImageCache imageCache;
+        private volatile ChunkedImageInputStream stream;
+        private volatile IOControl ioControl;
+        private volatile ImageCache.Writer cacheWriter;
+        private String etag;
+        private String lastModified;
+
+        StreamingConsumer(MonoSink<ImageFetchResponse> sink, String imageUrl, long maxBytes, ImageCache imageCache) {
+            super(maxBytes);
+            this.sink = sink;
+            this.imageUrl = imageUrl;
+            this.imageCache = imageCache;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws ImageLimitExceededException {
+            ChunkedImageInputStream stream = new ChunkedImageInputStream(contentLength(response));
+            if (imageCache != null && response.getStatusLine().getStatusCode() == HttpStatus.OK.value()) {
+                etag = header(response, "ETag");
+                lastModified = header(response, "Last-Modified");
+                try {
+                    cacheWriter = imageCache.writer(imageUrl);
+                } catch (IOException e) {
+                    logger.warn("Could not write " + imageUrl + " to the image cache", e);
+                }
+            }
+            stream.onClose(() -> {
+                IOControl ioControl = this.ioControl;
+                if (ioControl != null && !isDone()) {
+                    try {
+                        ioControl.shutdown();
+                    } catch (IOException e) {
+                        // the connection is gone either way
+                    }
+                }
+            });
+            this.stream = stream;
+            sink.success(new ImageFetchResponse(stream, ElasticService.resolveStatus(response.getStatusLine().getStatusCode()), imageUrl));
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioControl) throws IOException {
+            this.ioControl = ioControl;
+            if (stream.isClosed()) {
+                ioControl.shutdown();
+                return;
+            }
+            count(buf.remaining());
+            ImageCache.Writer cacheWriter = this.cacheWriter;
+            if (cacheWriter != null) {
+                try {
+                    cacheWriter.write(buf.duplicate());
+                } catch (IOException e) {
+                    logger.warn("Could not write " + imageUrl + " to the image cache", e);
+                    abortCache();
+                }
+            }
+            stream.append(buf);
+        }
+
+        void commitCache() {
+            ImageCache.Writer cacheWriter = this.cacheWriter;
+            this.cacheWriter = null;
+            if (cacheWriter != null) {
+                try {
+                    cacheWriter.commit(etag, lastModified);
+                } catch (IOException e) {
+                    logger.warn("Could not write " + imageUrl + " to the image cache", e);
+                    cacheWriter.abort();
+                }
+            }
+        }
+
+        void abortCache() {
+            ImageCache.Writer cacheWriter = this.cacheWriter;
+            this.cacheWriter = null;
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+            }
+        }
+
+        @Override
+        protected ChunkedImageInputStream buildResult(HttpContext context) {
+            return stream;
+        }
+
+        /**
+         * Before the headers the error goes to the sink, after them to the stream. A download that broke off is
+         * remembered as a failed fetch, unless the decoder closed the stream itself.
+         */
+        void fail(Exception e) {
+            abortCache();
+            ChunkedImageInputStream stream = this.stream;
+            if (stream == null) {
+                sink.error(e);
+            } else {
+                if (!stream.isClosed()) {
+                    rememberFailure(imageUrl, null, e);
+                }
+                stream.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Either the whole body in a ByteBuffer or, when streaming, a stream that is still being filled.
+     */
+    public static class ImageFetchResponse implements AutoCloseable {
 
         private final ByteBuffer body;
+        private final ChunkedImageInputStream stream;
         private final HttpStatus statusCode;
         private final String imageUrl;
 
         public ImageFetchResponse(ByteBuffer body, HttpStatus statusCode, String imageUrl) {
 
             this.body = body;
+            this.stream = null;
+            this.statusCode = statusCode;
+            this.imageUrl = imageUrl;
+        }
+
+        public ImageFetchResponse(ChunkedImageInputStream stream, HttpStatus statusCode, String imageUrl) {
+            this.body = null;
+            this.stream = stream;
             this.statusCode = statusCode;
             this.imageUrl = imageUrl;
         }
@@ -97,6 +582,28 @@ public class ImageRetrieveService implements AutoCloseable {
             return body;
         }
 
+        public ChunkedImageInputStream stream() {
+            return stream;
+        }
+
+        public boolean isStreaming() {
+            return stream != null;
+        }
+
+        /**
+         * Stops receiving the body if it is still streaming.
+         */
+        @Override
+        public void close() {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // nothing to release
+                }
+            }
+        }
+
         public HttpStatus statusCode() {
             return statusCode;
         }
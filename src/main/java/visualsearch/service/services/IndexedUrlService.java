@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import visualsearch.store.UrlBloomFilter;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Remembers the urls of indexed images in a {@link UrlBloomFilter}, enabled with {@code -DINDEXED_URLS_PATH}. A url
+ * the filter has never seen is new without asking elasticsearch, for the others a search for the url tells whether
+ * the filter was right.
+ */
+@Service
+public class IndexedUrlService implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String INDEXED_URLS_PATH = "INDEXED_URLS_PATH";
+    public static final String INDEXED_URLS_EXPECTED = "INDEXED_URLS_EXPECTED";
+    public static final String INDEXED_URLS_FALSE_POSITIVE_RATE = "INDEXED_URLS_FALSE_POSITIVE_RATE";
+
+    private final ElasticService elasticService;
+    private final UrlBloomFilter filter;
+
+    @Autowired
+    public IndexedUrlService(ElasticService elasticService) {
+        this(elasticService,
+                System.getProperty(INDEXED_URLS_PATH) == null ? null : Paths.get(System.getProperty(INDEXED_URLS_PATH)),
+                Long.getLong(INDEXED_URLS_EXPECTED, 10000000),
+                Double.parseDouble(System.getProperty(INDEXED_URLS_FALSE_POSITIVE_RATE, "0.01")));
+    }
+
+    /**
+     * @param path null disables the filter
+     */
+    public IndexedUrlService(ElasticService elasticService, Path path, long expectedUrls, double falsePositiveRate) {
+        this.elasticService = elasticService;
+        if (path == null) {
+            filter = null;
+            return;
+        }
+        try {
+            filter = UrlBloomFilter.open(path, expectedUrls, falsePositiveRate);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open indexed urls at " + path, e);
+        }
+        logger.info("Remembering indexed urls in " + path.toAbsolutePath() + ", " + filter.numBits() / 8 / 1024 + "kb and "
+                + filter.numHashes() + " hashes");
+    }
+
+    public boolean isEnabled() {
+        return filter != null;
+    }
+
+    /**
+     * Called after an image was indexed.
+     */
+    public void add(String url) {
+        if (filter != null && url != null) {
+            filter.add(url);
+        }
+    }
+
+    /**
+     * Best effort: the search does not see documents written since the last refresh of the index, so a url indexed
+     * within the refresh interval is not found and would be indexed again.
+     *
+     * @return the id of a document with the url as imageUrl or alias, empty if there is none
+     */
+    public Mono<String> findIndexed(String url) {
+        if (filter == null || !filter.mightContain(url)) {
+            return Mono.empty();
+        }
+        return elasticService.search(urlQuery(url)).flatMap(elasticResponse -> {
+            if (elasticResponse.getHttpStatus() != HttpStatus.OK) {
+                return Mono.error(new IllegalStateException("Could not look up " + url + ", elasticsearch answered " + elasticResponse.getHttpStatus()));
+            }
+            JSONArray hits = new JSONObject(elasticResponse.body).getJSONObject("hits").getJSONArray("hits");
+            for (int i = 0; i < hits.length(); i++) {
+                // the phrase query also matches urls that contain this one
+                JSONObject hit = hits.getJSONObject(i);
+                JSONObject source = hit.optJSONObject("_source");
+                if (source != null && (url.equals(source.optString("imageUrl")) || contains(source.optJSONArray("aliases"), url))) {
+                    return Mono.just(hit.getString("_id"));
+                }
+            }
+            return Mono.empty();
+        });
+    }
+
+    static byte[] urlQuery(String url) {
+        JSONArray should = new JSONArray();
+        for (String field : new String[]{"imageUrl", "aliases"}) {
+            // keyword sub fields only hold values of up to 256 chars
+            should.put(new JSONObject().put("term", new JSONObject().put(field + ".keyword", url)));
+            should.put(new JSONObject().put("match_phrase", new JSONObject().put(field, url)));
+        }
+        return new JSONObject()
+                .put("size", 10)
+                .put("_source", new JSONArray().put("imageUrl").put("aliases"))
+                .put("query", new JSONObject().put("bool", new JSONObject().put("should", should)))
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean contains(JSONArray aliases, String url) {
+        if (aliases == null) {
+            return false;
+        }
+        for (int i = 0; i < aliases.length(); i++) {
+            if (url.equals(aliases.optString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        if (filter != null) {
+            filter.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Caches search responses by hash and query parameters. Entries are evicted least recently used first and expire after
+ * a ttl. Every indexed image bumps the cache version, which makes all entries stale. Stale entries are still served for
+ * a while, but the first request that hits one refreshes it in the background.
+ * <p>
+ * Elasticsearch only sees new documents after its next refresh, so entries that were computed shortly after a write
+ * expire once the write is visible.
+ */
+@Service
+public class SearchCacheService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String SEARCH_CACHE_SIZE = "SEARCH_CACHE_SIZE";
+    public static final String SEARCH_CACHE_TTL_MILLIS = "SEARCH_CACHE_TTL_MILLIS";
+    public static final String SEARCH_CACHE_STALE_MILLIS = "SEARCH_CACHE_STALE_MILLIS";
+    public static final String SEARCH_CACHE_WRITE_VISIBILITY_MILLIS = "SEARCH_CACHE_WRITE_VISIBILITY_MILLIS";
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final long writeVisibilityNanos;
+    private final LongSupplier nanoClock;
+    private final Map<Key, Entry> entries;
+    private final AtomicLong version = new AtomicLong();
+    private volatile long lastWriteNanos;
+    private final Counter hits;
+    private final Counter staleHits;
+    private final Counter misses;
+
+    public SearchCacheService() {
+        this(new SimpleMeterRegistry());
+    }
+
+    @Autowired
+    public SearchCacheService(MeterRegistry meterRegistry) {
+        this(meterRegistry,
+                Integer.getInteger(SEARCH_CACHE_SIZE, 10000),
+                Long.getLong(SEARCH_CACHE_TTL_MILLIS, 60000),
+                Long.getLong(SEARCH_CACHE_STALE_MILLIS, 60000),
+                Long.getLong(SEARCH_CACHE_WRITE_VISIBILITY_MILLIS, 1000));
+    }
+
+    /**
+     * A maxSize of 0 disables the cache.
+     */
+    public SearchCacheService(MeterRegistry meterRegistry, int maxSize, long ttlMillis, long staleMillis, long writeVisibilityMillis) {
+        this(meterRegistry, maxSize, ttlMillis, staleMillis, writeVisibilityMillis, System::nanoTime);
+    }
+
+    SearchCacheService(MeterRegistry meterRegistry, int maxSize, long ttlMillis, long staleMillis, long writeVisibilityMillis, LongSupplier nanoClock) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+        this.writeVisibilityNanos = TimeUnit.MILLISECONDS.toNanos(writeVisibilityMillis);
+        this.nanoClock = nanoClock;
+        this.lastWriteNanos = nanoClock.getAsLong() - writeVisibilityNanos;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > SearchCacheService.this.maxSize;
+            }
+        };
+        hits = meterRegistry.counter("search.cache.hits");
+        staleHits = meterRegistry.counter("search.cache.stale");
+        misses = meterRegistry.counter("search.cache.misses");
+        meterRegistry.gauge("search.cache.size", this, SearchCacheService::size);
+        if (isEnabled()) {
+            logger.info("Caching up to " + maxSize + " search responses for " + ttlMillis + "ms");
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * The cached response for the key, or the response of search which is then cached.
+     */
+    public Mono<String> get(Key key, Supplier<Mono<String>> search) {
+        if (!isEnabled()) {
+            return search.get();
+        }
+        long now = nanoClock.getAsLong();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (entry.version == version.get() && now - entry.expiresNanos < 0) {
+                hits.increment();
+                return Mono.just(entry.response);
+            }
+            if (now - (entry.expiresNanos + staleNanos) < 0) {
+                staleHits.increment();
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    load(key, search).subscribe(response -> {
+                    }, e -> {
+                        entry.refreshing.set(false);
+                        logger.warn("Could not refresh cached search", e);
+                    });
+                }
+                return Mono.just(entry.response);
+            }
+        }
+        misses.increment();
+        return load(key, search);
+    }
+
+    /**
+     * Called after every write, makes all cached responses stale.
+     */
+    public void invalidate() {
+        lastWriteNanos = nanoClock.getAsLong();
+        version.incrementAndGet();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Mono<String> load(Key key, Supplier<Mono<String>> search) {
+        long loadVersion = version.get();
+        long started = nanoClock.getAsLong();
+        return search.get().doOnNext(response -> {
+            long expires = started + ttlNanos;
+            long writeVisible = lastWriteNanos + writeVisibilityNanos;
+            if (started - writeVisible < 0 && writeVisible - expires < 0) {
+                expires = writeVisible;
+            }
+            Entry entry = new Entry(response, loadVersion, expires);
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        });
+    }
+
+    public static final class Key {
+        final long hash;
+        final int minimumShouldMatch;
+        final int size;
+        // responses in different formats are cached separately, null for the default
+        final String format;
+        // pages and source filters, null if not set
+        final List<Object> searchAfter;
+        final List<String> source;
+
+        public Key(long hash, int minimumShouldMatch, int size) {
+            this(hash, minimumShouldMatch, size, null);
+        }
+
+        public Key(long hash, int minimumShouldMatch, int size, String format) {
+            this(hash, minimumShouldMatch, size, format, null, null);
+        }
+
+        public Key(long hash, int minimumShouldMatch, int size, String format, List<Object> searchAfter, List<String> source) {
+            this.hash = hash;
+            this.minimumShouldMatch = minimumShouldMatch;
+            this.size = size;
+            this.format = format;
+            this.searchAfter = searchAfter;
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hash == key.hash && minimumShouldMatch == key.minimumShouldMatch && size == key.size && Objects.equals(format, key.format)
+                    && Objects.equals(searchAfter, key.searchAfter) && Objects.equals(source, key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(hash);
+            result = 31 * result + minimumShouldMatch;
+            result = 31 * result + size;
+            result = 31 * result + Objects.hashCode(format);
+            result = 31 * result + Objects.hashCode(searchAfter);
+            result = 31 * result + Objects.hashCode(source);
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        final String response;
+        final long version;
+        final long expiresNanos;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(String response, long version, long expiresNanos) {
+            this.response = response;
+            this.version = version;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
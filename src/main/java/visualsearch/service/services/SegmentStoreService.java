@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import visualsearch.store.HammingIndex;
+import visualsearch.store.SegmentStore;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores processed images in a {@link SegmentStore} instead of elasticsearch. Selected with {@code -DSTORE=segments}.
+ * Writes are committed in groups every COMMIT_INTERVAL_MILLIS, a write completes once the commit that covers it is on
+ * disk.
+ */
+@Service
+public class SegmentStoreService implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    public static final String STORE = "STORE";
+    public static final String SEGMENTS = "segments";
+    public static final String SEGMENT_STORE_PATH = "SEGMENT_STORE_PATH";
+    public static final String COMMIT_INTERVAL_MILLIS = "COMMIT_INTERVAL_MILLIS";
+    public static final String SEGMENT_SCAN_THREADS = "SEGMENT_SCAN_THREADS";
+
+    private final boolean enabled;
+    private final Path path;
+    private final long commitIntervalMillis;
+    private SegmentStore store;
+    private ForkJoinPool scanPool;
+    private ScheduledExecutorService committer;
+    private final Object pendingLock = new Object();
+    private CompletableFuture<Void> nextCommit = new CompletableFuture<>();
+    private boolean dirty = false;
+
+    public SegmentStoreService() {
+        this(SEGMENTS.equals(System.getProperty(STORE)), Paths.get(System.getProperty(SEGMENT_STORE_PATH, "segments")),
+                Long.getLong(COMMIT_INTERVAL_MILLIS, 100));
+    }
+
+    public SegmentStoreService(boolean enabled, Path path, long commitIntervalMillis) {
+        this.enabled = enabled;
+        this.path = path;
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        store = SegmentStore.open(path);
+        scanPool = new ForkJoinPool(Integer.getInteger(SEGMENT_SCAN_THREADS, Runtime.getRuntime().availableProcessors()));
+        committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-store-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Storing images in segments at " + path.toAbsolutePath() + ", " + store.size() + " committed hashes");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the doc id, once the document is committed
+     */
+    public Mono<String> add(long hash, String document) {
+        long id;
+        CompletableFuture<Void> commit;
+        try {
+            synchronized (pendingLock) {
+                id = store.add(hash, document.getBytes(StandardCharsets.UTF_8));
+                dirty = true;
+                commit = nextCommit;
+            }
+        } catch (IOException e) {
+            return Mono.error(e);
+        }
+        return Mono.fromFuture(commit).thenReturn(Long.toString(id));
+    }
+
+    private void commit() {
+        CompletableFuture<Void> commit;
+        synchronized (pendingLock) {
+            if (!dirty) {
+                return;
+            }
+            commit = nextCommit;
+            nextCommit = new CompletableFuture<>();
+            dirty = false;
+        }
+        try {
+            store.commit();
+            commit.complete(null);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not commit segments", e);
+            commit.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Scans all hashes on the scan pool, so the calling thread, usually an event loop, is never blocked. Hits carry the
+     * imageUrl of their stored document.
+     */
+    public Mono<HammingIndex.Result> search(long hash, int maxDistance, int k) {
+        return Mono.create(sink -> {
+            try {
+                Future<?> future = scanPool.submit(() -> {
+                    try {
+                        sink.success(scan(hash, maxDistance, k));
+                    } catch (Throwable t) {
+                        sink.error(t);
+                    }
+                });
+                sink.onCancel(() -> future.cancel(false));
+            } catch (RejectedExecutionException e) {
+                sink.error(e);
+            }
+        });
+    }
+
+    private HammingIndex.Result scan(long hash, int maxDistance, int k) throws IOException {
+        // invoked from a worker of the pool, the scan forks into the same pool
+        SegmentStore.Result result = store.search(hash, maxDistance, k, scanPool);
+        List<HammingIndex.Hit> hits = new ArrayList<>(result.hits.size());
+        for (SegmentStore.Hit hit : result.hits) {
+            JSONObject source = new JSONObject(new String(hit.source, StandardCharsets.UTF_8));
+            hits.add(new HammingIndex.Hit(Long.toString(hit.id), source.optString("imageUrl", null), hit.hash, hit.distance));
+        }
+        return new HammingIndex.Result((int) Math.min(result.total, Integer.MAX_VALUE), hits);
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        if (!enabled || store == null) {
+            return;
+        }
+        committer.shutdown();
+        try {
+            committer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        store.close();
+        scanPool.shutdown();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.store;
+
+/**
+ * Maps urls to the dHash, number of pixels and number of bytes of the image, and when they were stored. Urls are not
+ * stored, only a 64 bit fingerprint of them, so an entry takes four longs in a linear probing table and no objects. With
+ * millions of urls the chance that two of them share a fingerprint is still negligible.
+ * <p>
+ * When the table is full an entry is evicted with the clock algorithm: entries that were read since the clock hand
+ * passed them last get a second chance.
+ */
+public class FeatureCache {
+
+    private static final long EMPTY = 0;
+
+    private final int maxEntries;
+    private final int mask;
+    private final long[] fingerprints;
+    private final long[] hashes;
+    // numPixels << 32 | receivedBytes
+    private final long[] sizes;
+    // in the unit of the clock of the caller
+    private final long[] storedAt;
+    private final long[] referenced;
+    private int size;
+    private int clockHand;
+
+    public FeatureCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive but was " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        // load factor of at most 0.75
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(1 << 30, maxEntries * 4L / 3 + 1)) - 1) << 1;
+        this.mask = capacity - 1;
+        this.fingerprints = new long[capacity];
+        this.hashes = new long[capacity];
+        this.sizes = new long[capacity];
+        this.storedAt = new long[capacity];
+        this.referenced = new long[(capacity + 63) / 64];
+    }
+
+    /**
+     * @return the cached features of the url or null
+     */
+    public synchronized Features get(String url) {
+        int slot = find(fingerprint(url));
+        if (fingerprints[slot] == EMPTY) {
+            return null;
+        }
+        referenced[slot >>> 6] |= 1L << slot;
+        return new Features(hashes[slot], (int) (sizes[slot] >>> 32), (int) sizes[slot], storedAt[slot]);
+    }
+
+    public void put(String url, long dHash, int numPixels, int receivedBytes) {
+        put(url, dHash, numPixels, receivedBytes, 0);
+    }
+
+    public synchronized void put(String url, long dHash, int numPixels, int receivedBytes, long storedAt) {
+        long fingerprint = fingerprint(url);
+        int slot = find(fingerprint);
+        if (fingerprints[slot] == EMPTY) {
+            if (size == maxEntries) {
+                evict();
+                slot = find(fingerprint);
+            }
+            fingerprints[slot] = fingerprint;
+            size++;
+        }
+        hashes[slot] = dHash;
+        sizes[slot] = (long) numPixels << 32 | (receivedBytes & 0xffffffffL);
+        this.storedAt[slot] = storedAt;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // the slot of the fingerprint or the empty slot where it would be inserted
+    private int find(long fingerprint) {
+        int slot = (int) fingerprint & mask;
+        while (fingerprints[slot] != EMPTY && fingerprints[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void evict() {
+        while (true) {
+            clockHand = (clockHand + 1) & mask;
+            if (fingerprints[clockHand] == EMPTY) {
+                continue;
+            }
+            long bit = 1L << clockHand;
+            if ((referenced[clockHand >>> 6] & bit) != 0) {
+                referenced[clockHand >>> 6] &= ~bit;
+            } else {
+                remove(clockHand);
+                return;
+            }
+        }
+    }
+
+    // shifts the following entries back so that lookups never stop at the removed slot
+    private void remove(int slot) {
+        int gap = slot;
+        for (int next = (gap + 1) & mask; fingerprints[next] != EMPTY; next = (next + 1) & mask) {
+            int home = (int) fingerprints[next] & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                move(next, gap);
+                gap = next;
+            }
+        }
+        fingerprints[gap] = EMPTY;
+        referenced[gap >>> 6] &= ~(1L << gap);
+        size--;
+    }
+
+    private void move(int from, int to) {
+        fingerprints[to] = fingerprints[from];
+        hashes[to] = hashes[from];
+        sizes[to] = sizes[from];
+        storedAt[to] = storedAt[from];
+        if ((referenced[from >>> 6] & (1L << from)) != 0) {
+            referenced[to >>> 6] |= 1L << to;
+        } else {
+            referenced[to >>> 6] &= ~(1L << to);
+        }
+    }
+
+    // FNV-1a over the chars followed by the murmur3 finalizer, never EMPTY
+    static long fingerprint(String url) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            h ^= url.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+
+    public static class Features {
+        public final long dHash;
+        public final int numPixels;
+        public final int receivedBytes;
+        public final long storedAt;
+
+        Features(long dHash, int numPixels, int receivedBytes, long storedAt) {
+            this.dHash = dHash;
+            this.numPixels = numPixels;
+            this.receivedBytes = receivedBytes;
+            this.storedAt = storedAt;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory index of 64 bit hashes for Hamming distance search, using multi-index hashing
+ * (Norouzi et al., "Fast Search in Hamming Space with Multi-Index Hashing"). Every hash is split into four 16 bit
+ * substrings and each substring has its own table with one bucket per value. Two hashes within distance r have at
+ * least one substring within distance r / 4, so a search only has to look into the buckets of the substrings that
+ * are close enough and then verifies the candidates with the full hash. For large radii that would touch most
+ * buckets the hashes are scanned linearly instead.
+ * <p>
+ * Hashes are kept in a long array and buckets in int arrays of ordinals. Adds and searches may run concurrently.
+ */
+public class HammingIndex {
+
+    static final int NUM_TABLES = 4;
+    static final int SUBSTRING_BITS = 64 / NUM_TABLES;
+    private static final int NUM_BUCKETS = 1 << SUBSTRING_BITS;
+    // probing substrings within distance 3 means 697 buckets per table, beyond that scanning is cheaper
+    static final int MAX_SUBSTRING_RADIUS = 2;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] hashes = new long[1024];
+    private String[] ids = new String[1024];
+    private String[] imageUrls = new String[1024];
+    private int size = 0;
+    private final int[][][] buckets = new int[NUM_TABLES][NUM_BUCKETS][];
+    private final int[][] bucketSizes = new int[NUM_TABLES][NUM_BUCKETS];
+
+    public void add(long hash, String id, String imageUrl) {
+        lock.writeLock().lock();
+        try {
+            if (size == hashes.length) {
+                int capacity = size * 2;
+                hashes = Arrays.copyOf(hashes, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                imageUrls = Arrays.copyOf(imageUrls, capacity);
+            }
+            int ordinal = size;
+            hashes[ordinal] = hash;
+            ids[ordinal] = id;
+            imageUrls[ordinal] = imageUrl;
+            for (int table = 0; table < NUM_TABLES; table++) {
+                int value = substring(hash, table);
+                int[] bucket = buckets[table][value];
+                int bucketSize = bucketSizes[table][value];
+                if (bucket == null) {
+                    bucket = new int[2];
+                    buckets[table][value] = bucket;
+                } else if (bucketSize == bucket.length) {
+                    bucket = Arrays.copyOf(bucket, bucketSize * 2);
+                    buckets[table][value] = bucket;
+                }
+                bucket[bucketSize] = ordinal;
+                bucketSizes[table][value] = bucketSize + 1;
+            }
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds all hashes within maxDistance and returns the k closest, closest first. Hashes with the same distance are
+     * returned in the order they were added.
+     */
+    public Result search(long hash, int maxDistance, int k) {
+        // no two hashes are further apart than their number of bits
+        maxDistance = Math.min(maxDistance, Long.SIZE);
+        lock.readLock().lock();
+        try {
+            if (maxDistance / NUM_TABLES <= MAX_SUBSTRING_RADIUS) {
+                return select(probe(hash, maxDistance), k);
+            } else {
+                return scan(hash, maxDistance, k);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static int substring(long hash, int table) {
+        return (int) (hash >>> (table * SUBSTRING_BITS)) & (NUM_BUCKETS - 1);
+    }
+
+    // ordinals and distances of all hashes within maxDistance, found through the substring tables
+    private Candidates probe(long hash, int maxDistance) {
+        int substringRadius = maxDistance / NUM_TABLES;
+        Candidates candidates = new Candidates();
+        for (int table = 0; table < NUM_TABLES; table++) {
+            int value = substring(hash, table);
+            probeBuckets(hash, maxDistance, table, value, substringRadius, 0, candidates);
+        }
+        return candidates;
+    }
+
+    // visits every bucket whose value differs from value in at most flips bits at positions >= fromBit
+    private void probeBuckets(long hash, int maxDistance, int table, int value, int flips, int fromBit, Candidates candidates) {
+        collect(hash, maxDistance, table, value, candidates);
+        if (flips == 0) {
+            return;
+        }
+        for (int bit = fromBit; bit < SUBSTRING_BITS; bit++) {
+            probeBuckets(hash, maxDistance, table, value ^ (1 << bit), flips - 1, bit + 1, candidates);
+        }
+    }
+
+    private void collect(long hash, int maxDistance, int table, int value, Candidates candidates) {
+        int[] bucket = buckets[table][value];
+        int bucketSize = bucketSizes[table][value];
+        int substringRadius = maxDistance / NUM_TABLES;
+        for (int i = 0; i < bucketSize; i++) {
+            int ordinal = bucket[i];
+            long candidate = hashes[ordinal];
+            int distance = Long.bitCount(candidate ^ hash);
+            if (distance > maxDistance || foundInEarlierTable(candidate, hash, table, substringRadius)) {
+                continue;
+            }
+            candidates.add(ordinal, distance);
+        }
+    }
+
+    // a candidate is found in the first table its substring is close enough in, skipping it in later tables
+    // avoids duplicates without keeping a set of visited ordinals
+    private static boolean foundInEarlierTable(long candidate, long hash, int table, int substringRadius) {
+        for (int earlier = 0; earlier < table; earlier++) {
+            if (Integer.bitCount(substring(candidate, earlier) ^ substring(hash, earlier)) <= substringRadius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Result scan(long hash, int maxDistance, int k) {
+        int[] histogram = new int[Long.SIZE + 1];
+        for (int i = 0; i < size; i++) {
+            histogram[Long.bitCount(hashes[i] ^ hash)]++;
+        }
+        int total = 0;
+        for (int distance = 0; distance <= maxDistance; distance++) {
+            total += histogram[distance];
+        }
+        int cutoff = cutoff(histogram, maxDistance, k);
+        Candidates candidates = new Candidates();
+        for (int i = 0; i < size; i++) {
+            int distance = Long.bitCount(hashes[i] ^ hash);
+            if (distance <= cutoff) {
+                candidates.add(i, distance);
+            }
+        }
+        Result result = select(candidates, k);
+        return new Result(total, result.hits);
+    }
+
+    // the smallest distance up to which there are at least k hashes
+    private static int cutoff(int[] histogram, int maxDistance, int k) {
+        int count = 0;
+        for (int distance = 0; distance <= maxDistance; distance++) {
+            count += histogram[distance];
+            if (count >= k) {
+                return distance;
+            }
+        }
+        return maxDistance;
+    }
+
+    // the k closest candidates, closest first
+    private Result select(Candidates candidates, int k) {
+        long[] keys = candidates.keys;
+        Arrays.sort(keys, 0, candidates.size);
+        List<Hit> hits = new ArrayList<>(Math.min(k, candidates.size));
+        for (int i = 0; i < candidates.size && hits.size() < k; i++) {
+            int ordinal = (int) keys[i];
+            hits.add(new Hit(ids[ordinal], imageUrls[ordinal], hashes[ordinal], (int) (keys[i] >>> 32)));
+        }
+        return new Result(candidates.size, hits);
+    }
+
+    // ordinal and distance packed into one long so that sorting orders by distance first
+    private static class Candidates {
+        long[] keys = new long[16];
+        int size = 0;
+
+        void add(int ordinal, int distance) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = ((long) distance << 32) | ordinal;
+        }
+    }
+
+    public static class Hit {
+        public final String id;
+        public final String imageUrl;
+        public final long hash;
+        public final int distance;
+
+        public Hit(String id, String imageUrl, long hash, int distance) {
+            this.id = id;
+            this.imageUrl = imageUrl;
+            this.hash = hash;
+            this.distance = distance;
+        }
+    }
+
+    public static class Result {
+        // number of hashes within the distance, may be more than hits
+        public final int total;
+        public final List<Hit> hits;
+
+        public Result(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps fetched images on disk, keyed by url. Every entry is a body file and a small properties file with the url, the
+ * validators of the response (ETag and Last-Modified) and when it was stored. Both are written to temporary files and
+ * then moved in place, so a crash never leaves a half written entry behind.
+ * <p>
+ * The total size of the bodies is bounded, the least recently read entries are deleted first. Bodies are read by
+ * memory mapping them.
+ */
+public class ImageCache {
+
+    static final String BODY_SUFFIX = ".body";
+    static final String META_SUFFIX = ".meta";
+    static final String TMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private ImageCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the cache in directory and loads the entries that are already there, oldest first.
+     */
+    public static ImageCache open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        ImageCache cache = new ImageCache(directory, maxBytes);
+        List<Entry> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(META_SUFFIX)) {
+                    Entry entry = readMeta(file);
+                    if (entry == null) {
+                        Files.delete(file);
+                        Files.deleteIfExists(cache.body(name.substring(0, name.length() - META_SUFFIX.length())));
+                    } else {
+                        found.add(entry);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(entry -> entry.storedAtMillis));
+        synchronized (cache) {
+            for (Entry entry : found) {
+                if (Files.exists(cache.body(entry.key)) && Files.size(cache.body(entry.key)) == entry.size) {
+                    cache.entries.put(entry.key, entry);
+                    cache.totalBytes += entry.size;
+                } else {
+                    cache.delete(entry.key);
+                }
+            }
+            cache.evict();
+        }
+        return cache;
+    }
+
+    public synchronized Entry get(String url) {
+        return entries.get(key(url));
+    }
+
+    /**
+     * Maps the body of the entry into memory. Returns null if the entry was evicted in the meantime.
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(body(entry.key), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public Entry put(String url, ByteBuffer body, String etag, String lastModified) throws IOException {
+        Writer writer = writer(url);
+        try {
+            writer.write(body.duplicate());
+            return writer.commit(etag, lastModified);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a body while it is being received. Nothing is visible before {@link Writer#commit}.
+     */
+    public Writer writer(String url) throws IOException {
+        String key = key(url);
+        Path tmp = Files.createTempFile(directory, key, BODY_SUFFIX + TMP_SUFFIX);
+        return new Writer(url, key, tmp, FileChannel.open(tmp, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Records that the entry was revalidated, it counts as just stored.
+     */
+    public Entry touch(Entry entry) throws IOException {
+        Entry touched = new Entry(entry.url, entry.key, entry.size, entry.etag, entry.lastModified, System.currentTimeMillis());
+        synchronized (this) {
+            if (entries.get(entry.key) != entry) {
+                return entry;
+            }
+            writeMeta(touched);
+            entries.put(entry.key, touched);
+        }
+        return touched;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized Entry commit(Entry entry, Path tmpBody) throws IOException {
+        if (entry.size > maxBytes) {
+            Files.delete(tmpBody);
+            return null;
+        }
+        Entry previous = entries.remove(entry.key);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        Files.move(tmpBody, body(entry.key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        writeMeta(entry);
+        entries.put(entry.key, entry);
+        totalBytes += entry.size;
+        evict();
+        return entry;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (totalBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            Entry entry = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            totalBytes -= entry.size;
+            delete(entry.key);
+        }
+    }
+
+    private void delete(String key) throws IOException {
+        // mapped bodies stay readable after the file is deleted
+        Files.deleteIfExists(meta(key));
+        Files.deleteIfExists(body(key));
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.url);
+        properties.setProperty("size", Long.toString(entry.size));
+        properties.setProperty("storedAt", Long.toString(entry.storedAtMillis));
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+        Path tmp = Files.createTempFile(directory, entry.key, META_SUFFIX + TMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        Files.move(tmp, meta(entry.key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Entry readMeta(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        String url = properties.getProperty("url");
+        String size = properties.getProperty("size");
+        String storedAt = properties.getProperty("storedAt");
+        if (url == null || size == null || storedAt == null) {
+            return null;
+        }
+        return new Entry(url, key(url), Long.parseLong(size), properties.getProperty("etag"), properties.getProperty("lastModified"), Long.parseLong(storedAt));
+    }
+
+    private Path body(String key) {
+        return directory.resolve(key + BODY_SUFFIX);
+    }
+
+    private Path meta(String key) {
+        return directory.resolve(key + META_SUFFIX);
+    }
+
+    static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Entry {
+        public final String url;
+        final String key;
+        public final long size;
+        // validators of the cached response, null if the server did not send them
+        public final String etag;
+        public final String lastModified;
+        public final long storedAtMillis;
+
+        Entry(String url, String key, long size, String etag, String lastModified, long storedAtMillis) {
+            this.url = url;
+            this.key = key;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAtMillis = storedAtMillis;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    public class Writer {
+        private final String url;
+        private final String key;
+        private final Path tmp;
+        private final FileChannel channel;
+        private long size;
+
+        private Writer(String url, String key, Path tmp, FileChannel channel) {
+            this.url = url;
+            this.key = key;
+            this.tmp = tmp;
+            this.channel = channel;
+        }
+
+        /**
+         * Writes the remaining bytes of buffer and advances its position.
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+        }
+
+        /**
+         * @return the new entry, or null if the body is larger than the whole cache
+         */
+        public Entry commit(String etag, String lastModified) throws IOException {
+            channel.close();
+            return ImageCache.this.commit(new Entry(url, key, size, etag, lastModified, System.currentTimeMillis()), tmp);
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                // a leftover temporary file is deleted the next time the cache is opened
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One append-only segment of a {@link SegmentStore}. Hashes, doc ids and source offsets are parallel long arrays in
+ * files that are memory mapped at their full capacity up front (the files are sparse until written), so appending is a
+ * store into the mapping and a scan reads the page cache directly. Sources are appended to a fourth file, each one
+ * prefixed with its length.
+ * <p>
+ * There is a single writer; readers only look at positions below {@link #size()}, which is published after the arrays
+ * were written.
+ */
+final class Segment implements Closeable {
+
+    final int number;
+    final int capacity;
+    private final FileChannel hashesChannel;
+    private final FileChannel idsChannel;
+    private final FileChannel offsetsChannel;
+    private final FileChannel sourcesChannel;
+    private final MappedByteBuffer hashesMap;
+    private final MappedByteBuffer idsMap;
+    private final MappedByteBuffer offsetsMap;
+    final LongBuffer hashes;
+    final LongBuffer ids;
+    private final LongBuffer offsets;
+    private volatile int size;
+    private volatile long sourcesLength;
+
+    private Segment(Path directory, int number, int capacity, int size, long sourcesLength) throws IOException {
+        this.number = number;
+        this.capacity = capacity;
+        hashesChannel = open(file(directory, number, "hashes"));
+        idsChannel = open(file(directory, number, "ids"));
+        offsetsChannel = open(file(directory, number, "offsets"));
+        sourcesChannel = open(file(directory, number, "sources"));
+        hashesMap = map(hashesChannel, capacity);
+        idsMap = map(idsChannel, capacity);
+        offsetsMap = map(offsetsChannel, capacity);
+        hashes = hashesMap.asLongBuffer();
+        ids = idsMap.asLongBuffer();
+        offsets = offsetsMap.asLongBuffer();
+        // anything after the last commit may be incomplete
+        sourcesChannel.truncate(sourcesLength);
+        this.size = size;
+        this.sourcesLength = sourcesLength;
+    }
+
+    static Segment open(Path directory, int number, int capacity, int size, long sourcesLength) throws IOException {
+        return new Segment(directory, number, capacity, size, sourcesLength);
+    }
+
+    static Path file(Path directory, int number, String extension) {
+        return directory.resolve("segment-" + number + "." + extension);
+    }
+
+    static void delete(Path directory, int number) throws IOException {
+        for (String extension : new String[]{"hashes", "ids", "offsets", "sources"}) {
+            Files.deleteIfExists(file(directory, number, extension));
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, int capacity) throws IOException {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * Long.BYTES);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return map;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long sourcesLength() {
+        return sourcesLength;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    void append(long hash, long id, byte[] source) throws IOException {
+        int position = size;
+        long offset = sourcesLength;
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + source.length);
+        entry.putInt(source.length).put(source).flip();
+        while (entry.hasRemaining()) {
+            sourcesChannel.write(entry, offset + entry.position());
+        }
+        hashes.put(position, hash);
+        ids.put(position, id);
+        offsets.put(position, offset);
+        sourcesLength = offset + entry.limit();
+        size = position + 1;
+    }
+
+    byte[] source(int position) throws IOException {
+        long offset = offsets.get(position);
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(length, offset);
+        ByteBuffer source = ByteBuffer.allocate(length.getInt(0));
+        readFully(source, offset + Integer.BYTES);
+        return source.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (sourcesChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + number + " sources.");
+            }
+        }
+    }
+
+    /**
+     * Writes everything appended so far to disk.
+     */
+    void force() throws IOException {
+        hashesMap.force();
+        idsMap.force();
+        offsetsMap.force();
+        sourcesChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        hashesChannel.close();
+        idsChannel.close();
+        offsetsChannel.close();
+        sourcesChannel.close();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Stores 64 bit hashes with a doc id and a source document in append-only, memory mapped {@link Segment}s and searches
+ * them with a parallel brute force scan, so that search time only depends on the number of hashes and cores and not on
+ * how the hashes are distributed.
+ * <p>
+ * Appended documents are searchable right away but only survive a crash once {@link #commit()} returned. A commit
+ * forces the segments to disk and then atomically replaces the commit file, which records how many documents and source
+ * bytes of each segment are committed. Opening the store discards whatever was written after the last commit.
+ */
+public class SegmentStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_CAPACITY = 1 << 24;
+    static final String COMMIT_FILE = "commit";
+    private static final int COMMIT_MAGIC = 0x48534731;
+    // hashes scanned by one fork join leaf task
+    static final int LEAF_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final int segmentCapacity;
+    private final Object commitLock = new Object();
+    private volatile Segment[] segments;
+    private long nextId;
+
+    private SegmentStore(Path directory, int segmentCapacity, Segment[] segments) {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+        this.segments = segments;
+        for (Segment segment : segments) {
+            nextId += segment.size();
+        }
+    }
+
+    public static SegmentStore open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    public static SegmentStore open(Path directory, int segmentCapacity) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(COMMIT_FILE + ".tmp"));
+        long[][] committed = readCommit(directory.resolve(COMMIT_FILE));
+        List<Segment> segments = new ArrayList<>();
+        try {
+            for (int i = 0; i < committed.length; i++) {
+                segments.add(Segment.open(directory, i, segmentCapacity, (int) committed[i][0], committed[i][1]));
+            }
+            // segments that were started after the last commit
+            for (int i = committed.length; Files.exists(Segment.file(directory, i, "hashes")); i++) {
+                Segment.delete(directory, i);
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.open(directory, 0, segmentCapacity, 0, 0));
+            }
+        } catch (IOException e) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+        return new SegmentStore(directory, segmentCapacity, segments.toArray(new Segment[0]));
+    }
+
+    /**
+     * @return number of documents and source bytes of each committed segment
+     */
+    private static long[][] readCommit(Path commitFile) throws IOException {
+        if (!Files.exists(commitFile)) {
+            return new long[0][];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(commitFile));
+        if (buffer.remaining() < 12 || buffer.getInt() != COMMIT_MAGIC) {
+            throw new IOException("Corrupt commit file " + commitFile + ".");
+        }
+        int numSegments = buffer.getInt();
+        if (buffer.remaining() != numSegments * 16L + Long.BYTES) {
+            throw new IOException("Corrupt commit file " + commitFile + ".");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit() - Long.BYTES);
+        long[][] committed = new long[numSegments][2];
+        for (int i = 0; i < numSegments; i++) {
+            committed[i][0] = buffer.getLong();
+            committed[i][1] = buffer.getLong();
+        }
+        if (buffer.getLong() != crc.getValue()) {
+            throw new IOException("Checksum mismatch in commit file " + commitFile + ".");
+        }
+        return committed;
+    }
+
+    /**
+     * Appends a document, it can be found by searches as soon as this returns.
+     *
+     * @return the doc id
+     */
+    public synchronized long add(long hash, byte[] source) throws IOException {
+        Segment[] segments = this.segments;
+        Segment active = segments[segments.length - 1];
+        if (active.isFull()) {
+            active = Segment.open(directory, segments.length, segmentCapacity, 0, 0);
+            Segment[] withNew = Arrays.copyOf(segments, segments.length + 1);
+            withNew[segments.length] = active;
+            this.segments = withNew;
+        }
+        long id = nextId++;
+        active.append(hash, id, source);
+        return id;
+    }
+
+    /**
+     * Makes everything added before this call durable.
+     */
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            Segment[] segments;
+            long[][] snapshot;
+            synchronized (this) {
+                segments = this.segments;
+                snapshot = new long[segments.length][];
+                for (int i = 0; i < segments.length; i++) {
+                    snapshot[i] = new long[]{segments[i].size(), segments[i].sourcesLength()};
+                }
+            }
+            // documents appended after the snapshot may be forced as well, the commit file just does not point to them
+            for (Segment segment : segments) {
+                segment.force();
+            }
+            writeCommit(snapshot);
+        }
+    }
+
+    private void writeCommit(long[][] snapshot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + snapshot.length * 16 + Long.BYTES);
+        buffer.putInt(COMMIT_MAGIC).putInt(snapshot.length);
+        for (long[] segment : snapshot) {
+            buffer.putLong(segment[0]).putLong(segment[1]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+        Path tmp = directory.resolve(COMMIT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(COMMIT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not every platform can sync a directory
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Scans all hashes in parallel and returns the k closest within maxDistance, closest first. Hashes with the same
+     * distance are returned in the order they were added.
+     */
+    public Result search(long hash, int maxDistance, int k, ForkJoinPool pool) throws IOException {
+        Segment[] segments = this.segments;
+        TopK topK = pool.invoke(new ScanTask(segments, hash, maxDistance, k, 0, 0, segments.length, 0));
+        long[] keys = topK.sorted();
+        List<Hit> hits = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            Segment segment = segments[(int) (key >>> 32) & 0xFFFFFF];
+            int position = (int) key;
+            hits.add(new Hit(segment.ids.get(position), segment.hashes.get(position), (int) (key >>> 56), segment.source(position)));
+        }
+        return new Result(topK.count, hits);
+    }
+
+    // distance in the top byte, then segment number and position, so that smaller keys are better hits
+    static long key(int distance, int segment, int position) {
+        return ((long) distance << 56) | ((long) segment << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Scans the hashes from (fromSegment, fromPosition) to (toSegment, toPosition), splitting itself until at most
+     * LEAF_SIZE hashes are left.
+     */
+    private static class ScanTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+        private final Segment[] segments;
+        private final long hash;
+        private final int maxDistance;
+        private final int k;
+        private final int fromSegment;
+        private final int fromPosition;
+        private final int toSegment;
+        private final int toPosition;
+
+        ScanTask(Segment[] segments, long hash, int maxDistance, int k, int fromSegment, int fromPosition, int toSegment, int toPosition) {
+            this.segments = segments;
+            this.hash = hash;
+            this.maxDistance = maxDistance;
+            this.k = k;
+            this.fromSegment = fromSegment;
+            this.fromPosition = fromPosition;
+            this.toSegment = toSegment;
+            this.toPosition = toPosition;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (toSegment - fromSegment > 1 || (toSegment - fromSegment == 1 && toPosition > 0)) {
+                // one task per segment first
+                int middle = (fromSegment + toSegment + 1) / 2;
+                ScanTask left = new ScanTask(segments, hash, maxDistance, k, fromSegment, fromPosition, middle, 0);
+                ScanTask right = new ScanTask(segments, hash, maxDistance, k, middle, 0, toSegment, toPosition);
+                right.fork();
+                TopK result = left.compute();
+                result.merge(right.join());
+                return result;
+            }
+            int segment = fromSegment;
+            int end = toSegment == fromSegment ? toPosition : segments[segment].size();
+            if (end - fromPosition > LEAF_SIZE) {
+                int middle = (fromPosition + end) >>> 1;
+                ScanTask left = new ScanTask(segments, hash, maxDistance, k, segment, fromPosition, segment, middle);
+                ScanTask right = new ScanTask(segments, hash, maxDistance, k, segment, middle, segment, end);
+                right.fork();
+                TopK result = left.compute();
+                result.merge(right.join());
+                return result;
+            }
+            return scan(segments[segment], fromPosition, end);
+        }
+
+        private TopK scan(Segment segment, int from, int to) {
+            TopK topK = new TopK(k);
+            LongBuffer hashes = segment.hashes;
+            long worst = topK.worst();
+            long count = 0;
+            for (int i = from; i < to; i++) {
+                int distance = Long.bitCount(hashes.get(i) ^ hash);
+                if (distance <= maxDistance) {
+                    count++;
+                    long key = key(distance, segment.number, i);
+                    if (key < worst) {
+                        topK.offer(key);
+                        worst = topK.worst();
+                    }
+                }
+            }
+            topK.count = count;
+            return topK;
+        }
+    }
+
+    public static class Hit {
+        public final long id;
+        public final long hash;
+        public final int distance;
+        public final byte[] source;
+
+        public Hit(long id, long hash, int distance, byte[] source) {
+            this.id = id;
+            this.hash = hash;
+            this.distance = distance;
+            this.source = source;
+        }
+    }
+
+    public static class Result {
+        // number of hashes within the distance, may be more than hits
+        public final long total;
+        public final List<Hit> hits;
+
+        public Result(long total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.store;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the k smallest of a stream of long keys in a max heap. Keys pack distance and position so that smaller keys are
+ * better hits.
+ */
+final class TopK {
+
+    private final long[] heap;
+    private int size = 0;
+    // number of matches seen by whoever fills the heap, not only the ones kept
+    long count = 0;
+
+    TopK(int k) {
+        heap = new long[Math.max(k, 0)];
+    }
+
+    /**
+     * @return the largest key that can still get into the heap, Long.MIN_VALUE if k is 0 and nothing can
+     */
+    long worst() {
+        if (heap.length == 0) {
+            return Long.MIN_VALUE;
+        }
+        return size < heap.length ? Long.MAX_VALUE : heap[0];
+    }
+
+    void offer(long key) {
+        if (size < heap.length) {
+            heap[size] = key;
+            siftUp(size++);
+        } else if (size > 0 && key < heap[0]) {
+            heap[0] = key;
+            siftDown(0);
+        }
+    }
+
+    void merge(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.heap[i]);
+        }
+        count += other.count;
+    }
+
+    long[] sorted() {
+        long[] keys = Arrays.copyOf(heap, size);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] >= heap[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] > heap[largest]) {
+                largest = left;
+            }
+            if (right < size && heap[right] > heap[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
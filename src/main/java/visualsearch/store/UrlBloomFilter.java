@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Bloom filter of urls in a memory mapped file. {@link #mightContain} never misses an added url, for other urls it is
+ * wrong with about the false positive rate the filter was created with, as long as it holds at most the expected number
+ * of urls. Bits are set in the mapped file right away, the operating system writes them back to disk.
+ * <p>
+ * The file starts with a header: a magic int, the number of hash functions as int and the number of bits as long. A
+ * file that exists already is opened with the sizes in its header.
+ */
+public class UrlBloomFilter implements Closeable {
+
+    static final int MAGIC = 0x56534246;
+    static final int HEADER_BYTES = 16;
+    // a single mapping is limited to 2GB, the bits fill whole longs of it after the header
+    static final long MAX_BITS = (Integer.MAX_VALUE - HEADER_BYTES) / 8 * 64L;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int numHashes;
+    private final long numBits;
+
+    private UrlBloomFilter(FileChannel channel, MappedByteBuffer buffer, int numHashes, long numBits) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.numHashes = numHashes;
+        this.numBits = numBits;
+    }
+
+    public static UrlBloomFilter open(Path path, long expectedUrls, double falsePositiveRate) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int numHashes;
+            long numBits;
+            if (channel.size() >= HEADER_BYTES) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException(path + " is not a url bloom filter");
+                }
+                numHashes = header.getInt(4);
+                numBits = header.getLong(8);
+            } else {
+                double bits = -expectedUrls * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+                numBits = Math.min(MAX_BITS, Math.max(64, ((long) Math.ceil(bits) + 63) / 64 * 64));
+                numHashes = Math.max(1, (int) Math.round(numBits / (double) Math.max(1, expectedUrls) * Math.log(2)));
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + numBits / 8);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, numHashes);
+            buffer.putLong(8, numBits);
+            return new UrlBloomFilter(channel, buffer, numHashes, numBits);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public synchronized void add(String url) {
+        long h1 = FeatureCache.fingerprint(url);
+        long h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int index = HEADER_BYTES + (int) (bit >>> 3);
+            buffer.put(index, (byte) (buffer.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * @return false if the url was never added, true if it probably was
+     */
+    public synchronized boolean mightContain(String url) {
+        long h1 = FeatureCache.fingerprint(url);
+        long h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((buffer.get(HEADER_BYTES + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int numHashes() {
+        return numHashes;
+    }
+
+    public long numBits() {
+        return numBits;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    // a second hash for double hashing, odd so that it cycles through all bits of a power of two sized filter
+    private static long mix(long h) {
+        h += 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return (h ^ (h >>> 31)) | 1;
+    }
+}
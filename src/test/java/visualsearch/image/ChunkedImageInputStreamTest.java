@@ -0,0 +1,114 @@
+package visualsearch.image;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class ChunkedImageInputStreamTest {
+
+    private static byte[] testImage() throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(new File("src/test/resources/nginx/data/test.jpg"))) {
+            return IOUtils.toByteArray(fileInputStream);
+        }
+    }
+
+    @Test
+    public void testDecodeWhileReceiving() throws Exception {
+        byte[] imageBytes = testImage();
+        ProcessedImage buffered = ProcessImage.getProcessingResult(ByteBuffer.wrap(imageBytes), ProcessedImage.builder().imageUrl(""));
+
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(-1);
+        Thread producer = new Thread(() -> {
+            for (int offset = 0; offset < imageBytes.length; offset += 500) {
+                stream.append(ByteBuffer.wrap(imageBytes, offset, Math.min(500, imageBytes.length - offset)));
+                Thread.yield();
+            }
+            stream.finish();
+        });
+        producer.start();
+        ProcessedImage streamed = ProcessImage.getProcessingResult(stream, ProcessedImage.builder().imageUrl(""));
+        producer.join();
+
+        assertThat(streamed.dHashLong, equalTo(buffered.dHashLong));
+        assertThat(streamed.numPixels, equalTo(buffered.numPixels));
+    }
+
+    @Test
+    public void testReceivedBytesFromLength() throws Exception {
+        byte[] imageBytes = testImage();
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(imageBytes.length);
+        stream.append(ByteBuffer.wrap(imageBytes));
+        stream.finish();
+        ProcessedImage streamed = ProcessImage.getProcessingResult(stream, ProcessedImage.builder().imageUrl(""));
+        assertThat(streamed.receivedBytes, equalTo(imageBytes.length));
+    }
+
+    @Test
+    public void testFailureIsPropagatedToReader() {
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(-1);
+        stream.append(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+        stream.fail(new Exception("connection reset"));
+        try {
+            stream.readFully(new byte[4]);
+            fail("read should have failed");
+        } catch (IOException e) {
+            assertThat(e.getCause().getMessage(), equalTo("connection reset"));
+        }
+    }
+
+    @Test
+    public void testLimitExceededWhileReceiving() throws IOException {
+        byte[] imageBytes = testImage();
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(-1);
+        stream.append(ByteBuffer.wrap(imageBytes, 0, imageBytes.length / 2));
+        stream.fail(new ImageLimitExceededException(ImageLimitExceededException.Limit.BYTES, "too large"));
+        try {
+            ProcessImage.getProcessingResult(stream, ProcessedImage.builder().imageUrl(""));
+            fail("decoding should have failed");
+        } catch (ImageLimitExceededException e) {
+            assertThat(e.limit, equalTo(ImageLimitExceededException.Limit.BYTES));
+        }
+    }
+
+    @Test
+    public void testCloseRunsCallbackAndDropsData() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(-1);
+        stream.onClose(() -> closed.set(true));
+        stream.append(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        stream.close();
+        stream.append(ByteBuffer.wrap(new byte[]{4}));
+        assertThat(closed.get(), equalTo(true));
+        assertThat(stream.isClosed(), equalTo(true));
+        assertThat(stream.received(), equalTo(3L));
+        // closing again is a no-op
+        closed.set(false);
+        stream.close();
+        assertThat(closed.get(), equalTo(false));
+    }
+
+    @Test
+    public void testReadAcrossChunksAndFlush() throws IOException {
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(6);
+        stream.append(ByteBuffer.wrap(new byte[]{1, 2}));
+        stream.append(ByteBuffer.wrap(new byte[]{3, 4, 5}));
+        stream.append(ByteBuffer.wrap(new byte[]{6}));
+        stream.finish();
+        byte[] bytes = new byte[4];
+        stream.readFully(bytes);
+        assertThat(bytes, equalTo(new byte[]{1, 2, 3, 4}));
+        stream.flushBefore(4);
+        assertThat(stream.read(), equalTo(5));
+        assertThat(stream.read(), equalTo(6));
+        assertThat(stream.read(), equalTo(-1));
+    }
+}
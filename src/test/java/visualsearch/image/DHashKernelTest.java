@@ -0,0 +1,96 @@
+package visualsearch.image;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_BGR;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class DHashKernelTest {
+
+    private static final int[] IMAGE_TYPES = new int[]{TYPE_BYTE_GRAY, TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR};
+
+    @Test
+    public void testIdenticalToGraphics2dFor8x9() {
+        for (int imageType : IMAGE_TYPES) {
+            for (int round = 0; round < 20; round++) {
+                BufferedImage testImage = randomBlockImage(imageType, 1);
+                assertThat(DHashKernel.dHash(testImage), equalTo(graphics2dDHash(testImage)));
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalToGraphics2dForUniformBlocks() {
+        for (int imageType : IMAGE_TYPES) {
+            for (int scale = 2; scale < 6; scale++) {
+                BufferedImage testImage = randomBlockImage(imageType, scale);
+                assertThat(DHashKernel.dHash(testImage), equalTo(graphics2dDHash(testImage)));
+            }
+        }
+    }
+
+    @Test
+    public void testSubImage() {
+        BufferedImage testImage = randomBlockImage(TYPE_3BYTE_BGR, 2);
+        BufferedImage paddedImage = new BufferedImage(testImage.getWidth() + 5, testImage.getHeight() + 7, TYPE_3BYTE_BGR);
+        Graphics2D graphics2D = paddedImage.createGraphics();
+        graphics2D.drawImage(testImage, 3, 4, null);
+        graphics2D.dispose();
+        BufferedImage subImage = paddedImage.getSubimage(3, 4, testImage.getWidth(), testImage.getHeight());
+        assertThat(DHashKernel.dHash(subImage), equalTo(DHashKernel.dHash(testImage)));
+    }
+
+    @Test
+    public void testImageSmallerThanGrid() {
+        BufferedImage testImage = new BufferedImage(3, 2, TYPE_INT_RGB);
+        testImage.setRGB(0, 1, Color.WHITE.getRGB());
+        // must not fail on empty cells
+        DHashKernel.dHash(testImage);
+    }
+
+    /**
+     * Graphics2D picks one pixel per cell while the kernel averages all pixels, so real images do not hash identically.
+     * The test image is mostly white background where neighbouring cells differ by one gray level, so at most 12 of 64
+     * bits are allowed to differ.
+     */
+    @Test
+    public void testActualImageWithinTolerance() throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(new File("src/test/resources/nginx/data/test.jpg"))) {
+            BufferedImage img = ProcessImage.byteBufferToBufferedImage(ByteBuffer.wrap(IOUtils.toByteArray(fileInputStream)));
+            assertThat(ImageHash.hammingDistance(DHashKernel.dHash(img), graphics2dDHash(img)), lessThanOrEqualTo(12));
+        }
+    }
+
+    private static long graphics2dDHash(BufferedImage img) {
+        return ProcessImage.pixelDiffsLeftToRight(ProcessImage.shrinkImage(img));
+    }
+
+    private static BufferedImage randomBlockImage(int imageType, int scale) {
+        BufferedImage testImage = new BufferedImage(8 * scale, 9 * scale, imageType);
+        Graphics2D testGraphics2d = testImage.createGraphics();
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 9; j++) {
+                testGraphics2d.setColor(new Color(RandomUtils.nextInt(0, 256), RandomUtils.nextInt(0, 256), RandomUtils.nextInt(0, 256)));
+                testGraphics2d.fill(new Rectangle(i * scale, j * scale, scale, scale));
+            }
+        }
+        testGraphics2d.dispose();
+        return testImage;
+    }
+}
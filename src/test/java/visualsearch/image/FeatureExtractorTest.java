@@ -0,0 +1,100 @@
+package visualsearch.image;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class FeatureExtractorTest {
+
+    @Test
+    public void testAHashOfHalves() {
+        // left half black, right half white
+        BufferedImage testImage = new BufferedImage(64, 64, TYPE_BYTE_GRAY);
+        Graphics2D testGraphics2d = testImage.createGraphics();
+        testGraphics2d.setColor(Color.WHITE);
+        testGraphics2d.fill(new Rectangle(32, 0, 32, 64));
+        testGraphics2d.dispose();
+        ProcessedImage processedImage = extract(testImage, EnumSet.of(HashType.AHASH, HashType.WHASH));
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertThat(ImageHash.bit(processedImage.aHashLong, y * 8 + x), equalTo(x >= 4));
+                assertThat(ImageHash.bit(processedImage.wHashLong, y * 8 + x), equalTo(x >= 4));
+            }
+        }
+        assertThat(processedImage.pHashLong, nullValue());
+    }
+
+    @Test
+    public void testHashesRobustToScalingAndBrightness() throws IOException {
+        BufferedImage testImage = ImageDecoder.decode(ByteBuffer.wrap(getTestImageBytes())).image;
+        BufferedImage scaled = new BufferedImage(200, 150, TYPE_3BYTE_BGR);
+        Graphics2D graphics2D = scaled.createGraphics();
+        graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics2D.drawImage(testImage, 0, 0, 200, 150, null);
+        graphics2D.setColor(new Color(255, 255, 255, 40));
+        graphics2D.fill(new Rectangle(0, 0, 200, 150));
+        graphics2D.dispose();
+
+        EnumSet<HashType> all = EnumSet.allOf(HashType.class);
+        ProcessedImage original = extract(testImage, all);
+        ProcessedImage modified = extract(scaled, all);
+        assertThat(ImageHash.hammingDistance(original.aHashLong, modified.aHashLong), lessThanOrEqualTo(4));
+        assertThat(ImageHash.hammingDistance(original.pHashLong, modified.pHashLong), lessThanOrEqualTo(4));
+        assertThat(ImageHash.hammingDistance(original.wHashLong, modified.wHashLong), lessThanOrEqualTo(4));
+        assertThat(ImageHash.hammingDistance(original.dHashLong, modified.dHashLong), lessThanOrEqualTo(4));
+    }
+
+    @Test
+    public void testDHashIsAlwaysComputed() throws IOException {
+        BufferedImage testImage = randomBlockImage(64, 72);
+        ProcessedImage processedImage = extract(testImage, EnumSet.noneOf(HashType.class));
+        assertThat(processedImage.dHashLong, equalTo(DHashKernel.dHash(testImage)));
+        assertThat(processedImage.aHashLong, nullValue());
+        assertThat(FeatureExtractor.parseHashTypes(" ahash, PHASH"), equalTo(EnumSet.of(HashType.AHASH, HashType.PHASH)));
+
+        ProcessedImage fromBytes = ProcessImage.getProcessingResult(JpegDcDecoderTest.encodeJpeg(testImage, false), ProcessedImage.builder().imageUrl(""),
+                new FeatureExtractor(EnumSet.allOf(HashType.class)));
+        assertThat(fromBytes.pHashLong, notNullValue());
+    }
+
+    private static byte[] getTestImageBytes() throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(new File("src/test/resources/nginx/data/test.jpg"))) {
+            return IOUtils.toByteArray(fileInputStream);
+        }
+    }
+
+    private static ProcessedImage extract(BufferedImage image, EnumSet<HashType> hashTypes) {
+        ProcessedImage.Builder builder = ProcessedImage.builder().imageUrl("");
+        new FeatureExtractor(hashTypes).extract(image, builder);
+        return builder.build();
+    }
+
+    private static BufferedImage randomBlockImage(int width, int height) {
+        BufferedImage testImage = new BufferedImage(width, height, TYPE_3BYTE_BGR);
+        Graphics2D testGraphics2d = testImage.createGraphics();
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                testGraphics2d.setColor(new Color(RandomUtils.nextInt(0, 256), RandomUtils.nextInt(0, 256), RandomUtils.nextInt(0, 256)));
+                testGraphics2d.fill(new Rectangle(i * width / 4, j * height / 4, width / 4 + 1, height / 4 + 1));
+            }
+        }
+        testGraphics2d.dispose();
+        return testImage;
+    }
+}
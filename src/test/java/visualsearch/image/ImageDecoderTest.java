@@ -0,0 +1,124 @@
+package visualsearch.image;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ImageDecoderTest {
+
+    @Test
+    public void testSniffAndDecodeAllFormats() throws IOException {
+        BufferedImage testImage = stripedImage(80, 90);
+        for (ImageFormat format : ImageFormat.values()) {
+            ByteBuffer encoded = encode(testImage, format);
+            assertThat(ImageFormat.sniff(encoded), equalTo(format));
+            DecodedImage decodedImage = ImageDecoder.decode(encoded);
+            assertThat(decodedImage.format, equalTo(format));
+            assertThat(decodedImage.image.getWidth(), equalTo(80));
+            assertThat(decodedImage.image.getHeight(), equalTo(90));
+            // decode twice to make sure the pooled reader was reset
+            assertThat(ImageDecoder.decode(encoded).image.getWidth(), equalTo(80));
+        }
+    }
+
+    @Test
+    public void testSubsampledDecoding() throws IOException {
+        ByteBuffer encoded = encode(stripedImage(1000, 700), ImageFormat.JPEG);
+        DecodedImage decodedImage = ImageDecoder.decode(encoded, 64, 72);
+        assertThat(decodedImage.width, equalTo(1000));
+        assertThat(decodedImage.height, equalTo(700));
+        assertThat(decodedImage.image.getWidth(), greaterThanOrEqualTo(64));
+        assertThat(decodedImage.image.getHeight(), greaterThanOrEqualTo(72));
+        assertThat(decodedImage.image.getHeight(), lessThan(72 * 2));
+
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(encoded, ProcessedImage.builder().imageUrl(""));
+        assertThat(processedImage.numPixels, equalTo(1000 * 700));
+    }
+
+    @Test
+    public void testUnknownFormat() throws IOException {
+        ByteBuffer notAnImage = ByteBuffer.wrap("<html>not found</html>".getBytes());
+        assertThat(ImageFormat.sniff(notAnImage), nullValue());
+        try {
+            ImageDecoder.decode(notAnImage);
+            fail();
+        } catch (UnsupportedImageFormatException e) {
+            assertThat(e.getMessage(), equalTo("Unknown image format."));
+        }
+    }
+
+    @Test
+    public void testPixelLimit() throws IOException {
+        ByteBuffer encoded = encode(stripedImage(1000, 700), ImageFormat.JPEG);
+        DecodeLimits limits = new DecodeLimits(1000 * 700 - 1, 0);
+        try {
+            ImageDecoder.decode(encoded, 64, 72, limits);
+            fail();
+        } catch (ImageLimitExceededException e) {
+            assertThat(e.limit, equalTo(ImageLimitExceededException.Limit.PIXELS));
+        }
+        try {
+            JpegDcDecoder.decode(encoded, limits);
+            fail();
+        } catch (ImageLimitExceededException e) {
+            assertThat(e.limit, equalTo(ImageLimitExceededException.Limit.PIXELS));
+        }
+        assertThat(ImageDecoder.decode(encoded, 64, 72, new DecodeLimits(1000 * 700, 0)).width, equalTo(1000));
+    }
+
+    @Test
+    public void testDecodeTimeLimit() throws IOException {
+        ByteBuffer encoded = encode(stripedImage(1000, 700), ImageFormat.PNG);
+        // only half of the image ever arrives
+        ChunkedImageInputStream stream = new ChunkedImageInputStream(encoded.remaining());
+        ByteBuffer half = encoded.duplicate();
+        half.limit(encoded.remaining() / 2);
+        stream.append(half);
+        try {
+            ImageDecoder.decode(stream, 64, 72, new DecodeLimits(Long.MAX_VALUE, 100));
+            fail();
+        } catch (ImageLimitExceededException e) {
+            assertThat(e.limit, equalTo(ImageLimitExceededException.Limit.DECODE_TIME));
+        }
+        assertThat(stream.isClosed(), equalTo(true));
+        // the pooled reader must not stay aborted
+        assertThat(ImageDecoder.decode(encoded, 64, 72, new DecodeLimits(Long.MAX_VALUE, 10_000)).width, equalTo(1000));
+    }
+
+    @Test
+    public void testSubsampling() {
+        assertThat(ImageDecoder.subsampling(4000, 3000, 64, 72), equalTo(41));
+        assertThat(ImageDecoder.subsampling(50, 50, 64, 72), equalTo(1));
+        assertThat(ImageDecoder.subsampling(4000, 3000, 0, 0), equalTo(1));
+    }
+
+    private static BufferedImage stripedImage(int width, int height) {
+        BufferedImage testImage = new BufferedImage(width, height, TYPE_3BYTE_BGR);
+        Graphics2D testGraphics2d = testImage.createGraphics();
+        for (int j = 0; j < 9; j++) {
+            testGraphics2d.setColor(j % 2 == 0 ? Color.BLACK : Color.WHITE);
+            testGraphics2d.fill(new Rectangle(0, j * height / 9, width, height / 9 + 1));
+        }
+        testGraphics2d.dispose();
+        return testImage;
+    }
+
+    private static ByteBuffer encode(BufferedImage image, ImageFormat format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, format.formatName, baos);
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+}
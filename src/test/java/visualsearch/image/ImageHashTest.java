@@ -0,0 +1,75 @@
+package visualsearch.image;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class ImageHashTest {
+
+    @Test
+    public void testHexRoundTrip() {
+        for (int i = 0; i < 100; i++) {
+            long hash = RandomUtils.nextLong(0, Long.MAX_VALUE) * (RandomUtils.nextBoolean() ? -1 : 1);
+            String hex = ImageHash.toHex(hash);
+            assertThat(hex.length(), equalTo(16));
+            assertThat(ImageHash.fromHex(hex), equalTo(hash));
+        }
+        assertThat(ImageHash.toHex(1L), equalTo("0000000000000001"));
+        assertThat(ImageHash.toHex(-1L), equalTo("ffffffffffffffff"));
+    }
+
+    @Test
+    public void testBitsRoundTrip() {
+        boolean[] bits = new boolean[64];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = RandomUtils.nextBoolean();
+        }
+        long hash = ImageHash.fromBits(bits);
+        boolean[] unpacked = ImageHash.toBits(hash);
+        for (int i = 0; i < bits.length; i++) {
+            assertThat(unpacked[i], equalTo(bits[i]));
+            assertThat(ImageHash.bit(hash, i), equalTo(bits[i]));
+        }
+    }
+
+    @Test
+    public void testHammingDistance() {
+        assertThat(ImageHash.hammingDistance(0L, 0L), equalTo(0));
+        assertThat(ImageHash.hammingDistance(0L, -1L), equalTo(64));
+        assertThat(ImageHash.hammingDistance(0x0fL, 0xf0L), equalTo(8));
+        assertThat(ImageHash.hammingDistance(Long.MIN_VALUE, 0L), equalTo(1));
+    }
+
+    @Test
+    public void testChunkTermsFindAllHashesWithinDistance() {
+        for (int i = 0; i < 100; i++) {
+            long hash = RandomUtils.nextLong(0, Long.MAX_VALUE) * (RandomUtils.nextBoolean() ? -1 : 1);
+            int maxDistance = RandomUtils.nextInt(0, 12);
+            long other = hash;
+            for (int flip = 0; flip < maxDistance; flip++) {
+                other ^= 1L << RandomUtils.nextInt(0, 64);
+            }
+            Set<Integer> terms = new HashSet<>();
+            for (int term : ImageHash.chunkTerms(hash, maxDistance / ImageHash.NUM_CHUNKS)) {
+                terms.add(term);
+            }
+            boolean shared = false;
+            for (int term : ImageHash.chunkTerms(other)) {
+                shared |= terms.contains(term);
+            }
+            assertThat(shared, equalTo(true));
+        }
+    }
+
+    @Test
+    public void testChunkTerms() {
+        assertThat(ImageHash.chunkTerms(0x0004000300020001L), equalTo(new int[]{0x00001, 0x10002, 0x20003, 0x30004}));
+        assertThat(ImageHash.chunkTerms(0L, 1).length, equalTo(4 * 17));
+        assertThat(ImageHash.chunkTerms(0L, 2).length, equalTo(4 * (1 + 16 + 120)));
+    }
+}
@@ -19,6 +19,7 @@ import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
 import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
 
 public class ImageProcessTest {
     Logger logger = Loggers.getLogger(this.getClass());
@@ -68,11 +69,11 @@ public class ImageProcessTest {
         }
 
         testGraphics2d.dispose();
-        boolean[] result = ProcessImage.dHash(testImage);
+        long result = ProcessImage.dHash(testImage);
 
         for (int i = 0; i < 8; i++) {
             for (int j = 0; j < 8; j++) {
-                assertThat(result[i * 8 + j], equalTo(j % 2 == 0));
+                assertThat(ImageHash.bit(result, i * 8 + j), equalTo(j % 2 == 0));
             }
         }
     }
@@ -88,11 +89,11 @@ public class ImageProcessTest {
         }
 
         testGraphics2d.dispose();
-        boolean[] result = ProcessImage.dHash(testImage);
+        long result = ProcessImage.dHash(testImage);
 
         for (int i = 0; i < 8; i++) {
             for (int j = 0; j < 8; j++) {
-                assertThat(result[i * 8 + j], equalTo(j % 2 == 0));
+                assertThat(ImageHash.bit(result, i * 8 + j), equalTo(j % 2 == 0));
             }
         }
     }
@@ -117,10 +118,19 @@ public class ImageProcessTest {
         ProcessedImage processedImage = ProcessImage.getProcessingResult(ByteBuffer.wrap(imageInByte), ProcessedImage.builder().imageUrl(""));
         for (int i = 0; i < 8; i++) {
             for (int j = 0; j < 8; j++) {
-                String label = "dh_" + (i * 8 + j);
-                assertThat(processedImage.dHash.get(label), equalTo(j % 2 == 0));
+                assertThat(ImageHash.bit(processedImage.dHashLong, i * 8 + j), equalTo(j % 2 == 0));
             }
         }
+        assertThat(processedImage.dHashHex, equalTo("5555555555555555"));
+        assertThat(processedImage.dHash, nullValue());
+    }
+
+    @Test
+    public void testLegacyDHashFields() throws IOException {
+        ProcessedImage processedImage = ProcessedImage.builder().imageUrl("").dHash(0x5555555555555555L).legacyDHashFields(true).build();
+        for (int i = 0; i < 64; i++) {
+            assertThat(processedImage.dHash.get("dh_" + i), equalTo(i % 2 == 0));
+        }
     }
 
     @Test
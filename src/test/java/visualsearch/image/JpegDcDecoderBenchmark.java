@@ -0,0 +1,73 @@
+package visualsearch.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares hashing JPEGs via the DC fast path with the full ImageIO decode. Run with
+ * {@code ./gradlew jpegDcBenchmark -PimageDir=data/images}, the default is the test image.
+ */
+public class JpegDcDecoderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        File imageDir = new File(args.length > 0 ? args[0] : "src/test/resources/nginx/data");
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        List<ByteBuffer> images = new ArrayList<>();
+        File[] files = imageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                ByteBuffer image = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                if (ImageFormat.sniff(image) == ImageFormat.JPEG) {
+                    images.add(image);
+                }
+            }
+        }
+        if (images.isEmpty()) {
+            System.out.println("No JPEGs found in " + imageDir);
+            return;
+        }
+
+        int fastPathHits = 0;
+        long totalDistance = 0;
+        int identical = 0;
+        for (ByteBuffer image : images) {
+            DecodedImage dcImage = JpegDcDecoder.decode(image);
+            long fullHash = ProcessImage.dHash(ProcessImage.decode(image, false).image);
+            long hash = dcImage == null ? fullHash : ProcessImage.dHash(dcImage.image);
+            fastPathHits += dcImage == null ? 0 : 1;
+            int distance = ImageHash.hammingDistance(hash, fullHash);
+            totalDistance += distance;
+            identical += distance == 0 ? 1 : 0;
+        }
+        System.out.println(images.size() + " JPEGs, " + fastPathHits + " supported by the DC fast path");
+        System.out.println("hash agreement: " + identical + " identical, mean hamming distance " + ((double) totalDistance / images.size()));
+
+        // first round of each is warmup
+        for (int i = 0; i < 2; i++) {
+            double full = imagesPerSecond(images, rounds, false);
+            double dc = imagesPerSecond(images, rounds, true);
+            if (i == 1) {
+                System.out.println(String.format("full decode: %.1f images/s, DC fast path: %.1f images/s, speedup %.2fx", full, dc, dc / full));
+            }
+        }
+    }
+
+    private static double imagesPerSecond(List<ByteBuffer> images, int rounds, boolean jpegDcFastPath) throws IOException {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (ByteBuffer image : images) {
+                checksum += ProcessImage.dHash(ProcessImage.decode(image, jpegDcFastPath).image);
+            }
+        }
+        long took = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return rounds * images.size() / (took / 1e9);
+    }
+}
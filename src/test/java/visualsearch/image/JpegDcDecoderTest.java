@@ -0,0 +1,165 @@
+package visualsearch.image;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class JpegDcDecoderTest {
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    @Test
+    public void testBaselineAndProgressiveBlockAverages() throws IOException {
+        for (int imageType : new int[]{TYPE_BYTE_GRAY, TYPE_3BYTE_BGR}) {
+            BufferedImage testImage = randomBlockImage(imageType, 13, 11);
+            for (boolean progressive : new boolean[]{false, true}) {
+                ByteBuffer jpeg = encodeJpeg(testImage, progressive);
+                DecodedImage decodedImage = JpegDcDecoder.decode(jpeg);
+                assertThat(decodedImage.width, equalTo(13 * 16));
+                assertThat(decodedImage.height, equalTo(11 * 16));
+                assertThat(decodedImage.image.getWidth(), equalTo(13 * 2));
+                assertThat(decodedImage.image.getHeight(), equalTo(11 * 2));
+                BufferedImage fullImage = ImageDecoder.decode(jpeg).image;
+                for (int x = 0; x < decodedImage.image.getWidth(); x++) {
+                    for (int y = 0; y < decodedImage.image.getHeight(); y++) {
+                        int dc = decodedImage.image.getRaster().getSample(x, y, 0);
+                        int gray = luminance(fullImage, x * 8, y * 8);
+                        // uniform 8x8 blocks, so the DC value is the pixel value up to quantization and rgb to luma rounding
+                        assertThat(Math.abs(dc - gray), lessThanOrEqualTo(8));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRestartIntervals() throws IOException {
+        BufferedImage testImage = randomBlockImage(TYPE_3BYTE_BGR, 13, 11);
+        ByteBuffer withRestarts = encodeJpeg(testImage, false, 3);
+        ByteBuffer withoutRestarts = encodeJpeg(testImage, false, 0);
+        BufferedImage expected = JpegDcDecoder.decode(withoutRestarts).image;
+        BufferedImage actual = JpegDcDecoder.decode(withRestarts).image;
+        for (int x = 0; x < expected.getWidth(); x++) {
+            for (int y = 0; y < expected.getHeight(); y++) {
+                assertThat(actual.getRaster().getSample(x, y, 0), equalTo(expected.getRaster().getSample(x, y, 0)));
+            }
+        }
+    }
+
+    @Test
+    public void testActualImageHashAgreement() throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(new File("src/test/resources/nginx/data/test.jpg"))) {
+            ByteBuffer jpeg = ByteBuffer.wrap(IOUtils.toByteArray(fileInputStream));
+            DecodedImage dcImage = ProcessImage.decode(jpeg, true);
+            DecodedImage fullImage = ProcessImage.decode(jpeg, false);
+            assertThat(dcImage.image.getWidth(), equalTo((dcImage.width + 7) / 8));
+            assertThat(dcImage.width, equalTo(fullImage.width));
+            assertThat(dcImage.height, equalTo(fullImage.height));
+            assertThat(ImageHash.hammingDistance(ProcessImage.dHash(dcImage.image), ProcessImage.dHash(fullImage.image)), lessThanOrEqualTo(12));
+        }
+    }
+
+    @Test
+    public void testTooSmallOrNotJpeg() throws IOException {
+        assertThat(JpegDcDecoder.decode(encodeJpeg(randomBlockImage(TYPE_3BYTE_BGR, 2, 2), false)), nullValue());
+        assertThat(JpegDcDecoder.decode(ByteBuffer.wrap(new byte[]{'G', 'I', 'F', '8'})), nullValue());
+        // the fast path falls back to ImageIO
+        DecodedImage decodedImage = ProcessImage.decode(encodeJpeg(randomBlockImage(TYPE_3BYTE_BGR, 2, 2), false), true);
+        assertThat(decodedImage.image.getWidth(), equalTo(32));
+    }
+
+    @Test
+    public void testMalformedHuffmanTable() throws IOException {
+        ByteBuffer jpeg = encodeJpeg(randomBlockImage(TYPE_3BYTE_BGR, 13, 11), false);
+        int dht = 2;
+        while ((jpeg.get(dht) & 0xFF) != 0xFF || (jpeg.get(dht + 1) & 0xFF) != 0xC4) {
+            dht++;
+        }
+        // three codes of length one
+        jpeg.put(dht + 5, (byte) 3);
+        try {
+            JpegDcDecoder.decode(jpeg.duplicate());
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("Invalid Huffman table in JPEG."));
+        }
+    }
+
+    private static int luminance(BufferedImage image, int x, int y) {
+        if (image.getType() == TYPE_BYTE_GRAY) {
+            return image.getRaster().getSample(x, y, 0);
+        }
+        int rgb = image.getRGB(x, y);
+        return BoxFilter.gray(rgb >> 16 & 0xff, rgb >> 8 & 0xff, rgb & 0xff);
+    }
+
+    private static BufferedImage randomBlockImage(int imageType, int blocksX, int blocksY) {
+        BufferedImage testImage = new BufferedImage(blocksX * 16, blocksY * 16, imageType);
+        Graphics2D testGraphics2d = testImage.createGraphics();
+        // seeded, the tolerance of the block averages test holds for these colors
+        Random random = new Random(42);
+        for (int i = 0; i < blocksX; i++) {
+            for (int j = 0; j < blocksY; j++) {
+                testGraphics2d.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+                testGraphics2d.fill(new Rectangle(i * 16, j * 16, 16, 16));
+            }
+        }
+        testGraphics2d.dispose();
+        return testImage;
+    }
+
+    static ByteBuffer encodeJpeg(BufferedImage image, boolean progressive) throws IOException {
+        return encodeJpeg(image, progressive, 0);
+    }
+
+    static ByteBuffer encodeJpeg(BufferedImage image, boolean progressive, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.95f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (restartInterval > 0) {
+            IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+            IIOMetadataNode markerSequence = (IIOMetadataNode) tree.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            markerSequence.insertBefore(dri, markerSequence.getFirstChild());
+            metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+}
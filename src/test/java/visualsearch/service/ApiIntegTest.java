@@ -234,7 +234,7 @@ public class ApiIntegTest {
                 .when(imageRetrieveService).fetchImage(fetchImageRequest);
 
         ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponseMono.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
-        String queryBody = SearchImageHandler.generateQuery(processedImage, new SearchImageRequest(DUMMY_IMAGE_URL, 10));
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, new SearchImageRequest(DUMMY_IMAGE_URL, 10));
         doReturn(createElasticSearchResponse(Duration.ZERO, HttpStatus.OK))
                 .when(elasticService).search(queryBody);
 
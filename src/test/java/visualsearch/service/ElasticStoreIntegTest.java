@@ -42,6 +42,7 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Mono;
+import visualsearch.image.ImageHash;
 import visualsearch.image.ProcessImage;
 import visualsearch.image.ProcessedImage;
 import visualsearch.service.services.ElasticService;
@@ -52,10 +53,8 @@ import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
 
 import static io.netty.handler.codec.http.HttpHeaders.Values.APPLICATION_JSON;
-import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.equalTo;
@@ -150,11 +149,9 @@ public class ElasticStoreIntegTest {
                 HashMap<String, Object> source = (HashMap<String, Object>) hit.get("_source");
                 assertThat(source.get("imageUrl"), equalTo(DUMMY_IMAGE_URL));
                 assertThat(source.get("receivedBytes"), equalTo(processedImage.receivedBytes));
-                assertThat(source.get("dHash"), instanceOf(Map.class));
-                Map<String, Boolean> dHash = (Map<String, Boolean>) source.get("dHash");
-                for (int i = 0; i < 64; i++) {
-                    assertTrue(dHash.keySet().contains("dh_" + i));
-                }
+                assertThat(((Number) source.get("dHashLong")).longValue(), equalTo(processedImage.dHashLong));
+                assertThat(source.get("dHashHex"), equalTo(processedImage.dHashHex));
+                assertThat(source.containsKey("dHash"), equalTo(false));
             }
         }
     }
@@ -230,19 +227,15 @@ public class ElasticStoreIntegTest {
 
     private String generateDocument(ProcessedImage processedImage, int numMatching) {
 
-        JSONObject dHash = new JSONObject();
-        int i = 0;
-        for (String key : processedImage.dHash.keySet()) {
-            boolean value = processedImage.dHash.get(key);
-            if (i > numMatching) {
-                value = !value;
-            }
-            dHash.put(key, value);
-            i++;
+        // flip all bits above numMatching, so that numMatching + 1 bits are equal to the searched hash
+        long dHash = processedImage.dHashLong;
+        for (int i = numMatching + 1; i < 64; i++) {
+            dHash ^= 1L << i;
         }
         JSONObject doc = new JSONObject();
         doc.put("receivedBytes", numMatching);
-        doc.put("dHash", dHash);
+        doc.put("dHashLong", dHash);
+        doc.put("dHashHex", ImageHash.toHex(dHash));
         return doc.toString();
     }
 }
\ No newline at end of file
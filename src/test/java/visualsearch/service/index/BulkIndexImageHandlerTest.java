@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.index;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import visualsearch.service.Handler;
+import visualsearch.service.services.BulkWriteService;
+import visualsearch.service.services.ContentIdService;
+import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.ImageProcessingService;
+import visualsearch.service.services.IndexedUrlService;
+import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static visualsearch.service.HelperMethods.DUMMY_IMAGE_URL;
+import static visualsearch.service.HelperMethods.getImageClientResponse;
+
+public class BulkIndexImageHandlerTest {
+
+    private static final String MISSING_IMAGE_URL = "http://nothing.here";
+
+    @Test
+    public void testItemsInRequestOrder() throws IOException {
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(getImageClientResponse(Duration.ZERO))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL));
+        doReturn(getImageClientResponse(Duration.ZERO, HttpStatus.NOT_FOUND))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(MISSING_IMAGE_URL));
+
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"errors\":true,\"items\":["
+                + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+                + "{\"index\":{\"_id\":\"2\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}", 200)))
+                .when(elasticService).bulk(any());
+
+        BulkIndexImageHandler handler = handler(imageRetrieveService, elasticService);
+        BulkIndexImageRequest request = new BulkIndexImageRequest();
+        request.add(indexImageRequest(DUMMY_IMAGE_URL));
+        request.add(indexImageRequest(MISSING_IMAGE_URL));
+        request.add(indexImageRequest(DUMMY_IMAGE_URL));
+        BulkIndexImageResponse response = handler.computeResponse(Mono.just(request)).block();
+
+        assertThat(response.errors, equalTo(true));
+        assertThat(response.items.size(), equalTo(3));
+        assertThat(response.items.get(0)._id, equalTo("1"));
+        assertThat(response.items.get(0).status, equalTo(201));
+        assertThat(response.items.get(1).status, equalTo(404));
+        assertThat(response.items.get(2).status, equalTo(400));
+
+        // both processed images go out in one request
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(elasticService, times(1)).bulk(body.capture());
+        String[] lines = new String(body.getValue(), StandardCharsets.UTF_8).split("\n");
+        assertThat(lines.length, equalTo(4));
+        assertThat(lines[0], equalTo("{\"index\":{}}"));
+        assertThat(new JSONObject(lines[1]).getString("imageUrl"), equalTo(DUMMY_IMAGE_URL));
+    }
+
+    @Test
+    public void testChunksAreBoundedByCountAndBytes() {
+        List<BulkIndexImageHandler.Item> items = new ArrayList<>();
+        for (int size : new int[]{10, 10, 10, 30, 100, 10}) {
+            BulkIndexImageHandler.Item item = new BulkIndexImageHandler.Item(new IndexImageRequest());
+            item.document = new byte[size];
+            items.add(item);
+        }
+        List<List<BulkIndexImageHandler.Item>> chunks = BulkIndexImageHandler.chunks(items, 2, 50);
+        assertThat(chunks.size(), equalTo(4));
+        assertThat(chunks.get(0).size(), equalTo(2));
+        assertThat(chunks.get(1).size(), equalTo(2));
+        // larger than the limit but still written, alone
+        assertThat(chunks.get(2).size(), equalTo(1));
+        assertThat(chunks.get(2).get(0).document.length, equalTo(100));
+        assertThat(chunks.get(3).size(), equalTo(1));
+    }
+
+    @Test
+    public void testNoImages() {
+        BulkIndexImageHandler handler = handler(mock(ImageRetrieveService.class), mock(ElasticService.class));
+        try {
+            handler.computeResponse(Mono.just(new BulkIndexImageRequest())).block();
+            fail();
+        } catch (Handler.RequestFailedException e) {
+            assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    private static IndexImageRequest indexImageRequest(String imageUrl) {
+        IndexImageRequest indexImageRequest = new IndexImageRequest();
+        indexImageRequest.imageUrl = imageUrl;
+        return indexImageRequest;
+    }
+
+    private static BulkIndexImageHandler handler(ImageRetrieveService imageRetrieveService, ElasticService elasticService) {
+        return new BulkIndexImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(),
+                new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false),
+                new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0),
+                new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, false), new IndexedUrlService(elasticService, null, 0, 0));
+    }
+}
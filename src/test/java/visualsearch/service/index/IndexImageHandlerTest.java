@@ -17,14 +17,25 @@
 package visualsearch.service.index;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.http.HttpStatus;
 import reactor.core.publisher.Mono;
 import visualsearch.image.ProcessImage;
 import visualsearch.image.ProcessedImage;
 import visualsearch.service.Handler;
+import visualsearch.service.services.BulkWriteService;
+import visualsearch.service.services.ContentIdService;
 import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.ImageProcessingService;
+import visualsearch.service.services.IndexedUrlService;
 import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -34,9 +45,13 @@ import java.util.Base64;
 import static junit.framework.TestCase.fail;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static visualsearch.service.HelperMethods.DUMMY_IMAGE_URL;
 import static visualsearch.service.HelperMethods.createElasticPutResponse;
 import static visualsearch.service.HelperMethods.getImageClientResponse;
@@ -44,6 +59,9 @@ import static visualsearch.service.HelperMethods.getTestImageBytes;
 
 public class IndexImageHandlerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testJsonResponseContainsId() throws IOException {
         // mock the image retrieval
@@ -64,7 +82,7 @@ public class IndexImageHandlerTest {
 
 
         // now check that the response actually conatains the id
-        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, elasticService);
+        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, false), new IndexedUrlService(elasticService, null, 0, 0));
         IndexImageRequest indexImageRequest = new IndexImageRequest();
         indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
         IndexImageResponse imageIndexServerResponse = imageHandler.computeResponse(Mono.just(indexImageRequest)).block();
@@ -85,7 +103,7 @@ public class IndexImageHandlerTest {
                 .when(elasticService).post(storedBody);
 
         // now check that the response actually contains the id
-        IndexImageHandler imageHandler = new IndexImageHandler(null, elasticService);
+        IndexImageHandler imageHandler = new IndexImageHandler(null, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, false), new IndexedUrlService(elasticService, null, 0, 0));
         IndexImageRequest indexImageRequest = new IndexImageRequest();
         indexImageRequest.imageUrl = null;
         indexImageRequest.image = Base64.getEncoder().encodeToString(imageBytes);
@@ -103,7 +121,7 @@ public class IndexImageHandlerTest {
                 when(imageRetrieveService).fetchImage(fetchImageRequest);
 
         // test that exception is actually caught
-        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, null);
+        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(null, 500, 5 * 1024 * 1024, 0), new ContentIdService(null, false), new IndexedUrlService(null, null, 0, 0));
         IndexImageRequest indexImageRequest = new IndexImageRequest();
         indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
         try {
@@ -123,7 +141,7 @@ public class IndexImageHandlerTest {
                 .when(imageRetrieveService).fetchImage(fetchImageRequest);
 
         // test that 302 from image is returned
-        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, null);
+        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(null, 500, 5 * 1024 * 1024, 0), new ContentIdService(null, false), new IndexedUrlService(null, null, 0, 0));
         IndexImageRequest indexImageRequest = new IndexImageRequest();
         indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
         try {
@@ -134,4 +152,65 @@ public class IndexImageHandlerTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testIndexedContentIsNotProcessedAgain() throws IOException {
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(getImageClientResponse(Duration.ZERO))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL), false);
+        String contentId = ContentIdService.contentId(ByteBuffer.wrap(getTestImageBytes()));
+
+        // the document exists, the url is added as alias
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"result\":\"updated\"}", 200)))
+                .when(elasticService).update(eq(contentId), any());
+
+        ImageProcessingService imageProcessingService = mock(ImageProcessingService.class);
+        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, elasticService, imageProcessingService, new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, true), new IndexedUrlService(elasticService, null, 0, 0));
+        IndexImageRequest indexImageRequest = new IndexImageRequest();
+        indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
+
+        assertThat(imageHandler.computeResponse(Mono.just(indexImageRequest)).block()._id, equalTo(contentId));
+        verify(imageProcessingService, never()).submit(any());
+        verify(elasticService, never()).create(any(), any());
+    }
+
+    @Test
+    public void testNewContentIsCreatedWithContentId() throws IOException {
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(getImageClientResponse(Duration.ZERO))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL), false);
+        String contentId = ContentIdService.contentId(ByteBuffer.wrap(getTestImageBytes()));
+
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"error\":{\"type\":\"document_missing_exception\"}}", 404)))
+                .when(elasticService).update(eq(contentId), any());
+        doReturn(createElasticPutResponse(Duration.ZERO, HttpStatus.CREATED, contentId))
+                .when(elasticService).create(eq(contentId), any());
+
+        IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, true), new IndexedUrlService(elasticService, null, 0, 0));
+        IndexImageRequest indexImageRequest = new IndexImageRequest();
+        indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
+
+        assertThat(imageHandler.computeResponse(Mono.just(indexImageRequest)).block()._id, equalTo(contentId));
+        verify(elasticService).create(eq(contentId), any());
+        verify(elasticService, never()).post(any());
+    }
+
+    @Test
+    public void testIndexedUrlIsNotFetchedAgain() throws IOException {
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"hits\":{\"total\":1,\"hits\":[{\"_id\":\"123\",\"_source\":{\"imageUrl\":\"" + DUMMY_IMAGE_URL + "\"}}]}}", 200)))
+                .when(elasticService).search(any());
+
+        try (IndexedUrlService indexedUrlService = new IndexedUrlService(elasticService, temporaryFolder.getRoot().toPath().resolve("urls"), 1000, 0.01)) {
+            indexedUrlService.add(DUMMY_IMAGE_URL);
+            IndexImageHandler imageHandler = new IndexImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0), new BulkWriteService(elasticService, 500, 5 * 1024 * 1024, 0), new ContentIdService(elasticService, false), indexedUrlService);
+            IndexImageRequest indexImageRequest = new IndexImageRequest();
+            indexImageRequest.imageUrl = DUMMY_IMAGE_URL;
+
+            assertThat(imageHandler.computeResponse(Mono.just(indexImageRequest)).block()._id, equalTo("123"));
+            verify(imageRetrieveService, never()).fetchImage(any());
+        }
+    }
+}
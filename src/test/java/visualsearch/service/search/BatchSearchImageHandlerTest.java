@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import visualsearch.service.Handler;
+import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.ImageProcessingService;
+import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static visualsearch.service.HelperMethods.DUMMY_IMAGE_URL;
+import static visualsearch.service.HelperMethods.getImageClientResponse;
+
+public class BatchSearchImageHandlerTest {
+
+    private static final String MISSING_IMAGE_URL = "http://nothing.here";
+
+    @Test
+    public void testResponsesInRequestOrder() throws IOException {
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(getImageClientResponse(Duration.ZERO))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL));
+        doReturn(getImageClientResponse(Duration.ZERO, HttpStatus.NOT_FOUND))
+                .when(imageRetrieveService).fetchImage(new ImageRetrieveService.FetchImageRequest(MISSING_IMAGE_URL));
+
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"responses\":[{\"hits\":{\"total\":0,\"hits\":[]}},{\"error\":\"boom\",\"status\":400}]}", 200)))
+                .when(elasticService).multiSearch(any());
+
+        BatchSearchImageHandler handler = handler(imageRetrieveService, elasticService);
+        BatchSearchImageRequest request = new BatchSearchImageRequest(Arrays.asList(
+                new SearchImageRequest(DUMMY_IMAGE_URL, 50),
+                new SearchImageRequest(MISSING_IMAGE_URL, 50),
+                new SearchImageRequest(DUMMY_IMAGE_URL, 50),
+                new SearchImageRequest(DUMMY_IMAGE_URL, 60)));
+        JSONArray responses = new JSONObject(handler.computeResponse(Mono.just(request)).block().response).getJSONArray("responses");
+
+        assertThat(responses.length(), equalTo(4));
+        assertThat(responses.getJSONObject(0).getJSONObject("hits").getInt("total"), equalTo(0));
+        assertThat(responses.getJSONObject(1).getJSONObject("error").getInt("status"), equalTo(404));
+        assertThat(responses.getJSONObject(2).getJSONObject("hits").getInt("total"), equalTo(0));
+        assertThat(responses.getJSONObject(3).getJSONObject("error").getInt("status"), equalTo(400));
+
+        // the duplicate search is only sent once
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(elasticService, times(1)).multiSearch(body.capture());
+        String[] lines = new String(body.getValue(), StandardCharsets.UTF_8).split("\n");
+        assertThat(lines.length, equalTo(4));
+        assertThat(lines[0], equalTo("{}"));
+        assertThat(new JSONObject(lines[3]).getInt("size"), equalTo(SearchImageHandler.DEFAULT_SIZE));
+    }
+
+    @Test
+    public void testIdsAreResolvedWithOneMultiGet() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"docs\":["
+                + "{\"_id\":\"a\",\"found\":true,\"_source\":{\"dHashLong\":1}},"
+                + "{\"_id\":\"missing\",\"found\":false}]}", 200)))
+                .when(elasticService).multiGet(Arrays.asList("a", "missing"), SearchImageHandler.HASH_FIELDS);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"responses\":[{\"hits\":{\"total\":0,\"hits\":[]}}]}", 200)))
+                .when(elasticService).multiSearch(any());
+
+        BatchSearchImageHandler handler = handler(mock(ImageRetrieveService.class), elasticService);
+        SearchImageRequest byId = new SearchImageRequest(null, 50);
+        byId.id = "a";
+        SearchImageRequest byMissingId = new SearchImageRequest(null, 50);
+        byMissingId.id = "missing";
+        SearchImageRequest byHash = new SearchImageRequest(null, 50);
+        byHash.dHashLong = 1L;
+        JSONArray responses = new JSONObject(handler.computeResponse(Mono.just(new BatchSearchImageRequest(Arrays.asList(byId, byMissingId, byHash)))).block().response)
+                .getJSONArray("responses");
+
+        assertThat(responses.getJSONObject(0).getJSONObject("hits").getInt("total"), equalTo(0));
+        assertThat(responses.getJSONObject(1).getJSONObject("error").getInt("status"), equalTo(404));
+        assertThat(responses.getJSONObject(2).getJSONObject("hits").getInt("total"), equalTo(0));
+        // the id and the hash search for the same hash
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(elasticService, times(1)).multiSearch(body.capture());
+        assertThat(new String(body.getValue(), StandardCharsets.UTF_8).split("\n").length, equalTo(2));
+    }
+
+    @Test
+    public void testSegmentStoreRejectsElasticsearchOnlyOptionsPerSearch() {
+        ElasticService elasticService = mock(ElasticService.class);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        ImageProcessingService imageProcessingService = new ImageProcessingService();
+        FeatureCacheService featureCacheService = new FeatureCacheService(new SimpleMeterRegistry(), 0, true);
+        SearchImageHandler searchImageHandler = new SearchImageHandler(imageRetrieveService, elasticService, imageProcessingService, featureCacheService,
+                new HashIndexService(null, false), new SegmentStoreService(true, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        BatchSearchImageHandler handler = new BatchSearchImageHandler(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, searchImageHandler);
+        SearchImageRequest byId = new SearchImageRequest(null, 50);
+        byId.id = "a";
+        SearchImageRequest paged = new SearchImageRequest(null, 50);
+        paged.dHashLong = 1L;
+        paged.searchAfter = Collections.emptyList();
+        JSONArray responses = new JSONObject(handler.computeResponse(Mono.just(new BatchSearchImageRequest(Arrays.asList(byId, paged)))).block().response)
+                .getJSONArray("responses");
+
+        assertThat(responses.getJSONObject(0).getJSONObject("error").getInt("status"), equalTo(400));
+        assertThat(responses.getJSONObject(1).getJSONObject("error").getInt("status"), equalTo(400));
+        verifyNoMoreInteractions(elasticService);
+    }
+
+    @Test
+    public void testNoSearches() {
+        BatchSearchImageHandler handler = handler(mock(ImageRetrieveService.class), mock(ElasticService.class));
+        try {
+            handler.computeResponse(Mono.just(new BatchSearchImageRequest(Collections.emptyList()))).block();
+            fail();
+        } catch (Handler.RequestFailedException e) {
+            assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    private static BatchSearchImageHandler handler(ImageRetrieveService imageRetrieveService, ElasticService elasticService) {
+        ImageProcessingService imageProcessingService = new ImageProcessingService();
+        FeatureCacheService featureCacheService = new FeatureCacheService(new SimpleMeterRegistry(), 0, true);
+        SearchImageHandler searchImageHandler = new SearchImageHandler(imageRetrieveService, elasticService, imageProcessingService, featureCacheService,
+                new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        return new BatchSearchImageHandler(imageRetrieveService, elasticService, imageProcessingService, featureCacheService, searchImageHandler);
+    }
+}
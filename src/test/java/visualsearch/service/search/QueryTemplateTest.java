@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.search;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import visualsearch.image.ProcessedImage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+
+public class QueryTemplateTest {
+
+    @Test
+    public void testRender() {
+        QueryTemplate template = QueryTemplate.compile("{\"a\":{{a}},\"b\":{\"c\":{{c}},\"again\":{{a}}},\"d\":{{d}},\"e\":{{e}}}");
+        assertThat(template.numValues(), equalTo(4));
+        byte[] body = template.renderer()
+                .put(Long.MIN_VALUE)
+                .put(new int[]{1, -20, 300})
+                .put("quote \" and \\ backslash")
+                .put(0)
+                .toBytes();
+        assertThat(new String(body, StandardCharsets.UTF_8), equalTo("{\"a\":-9223372036854775808,\"b\":{\"c\":[1,-20,300],\"again\":-9223372036854775808},"
+                + "\"d\":\"quote \\\" and \\\\ backslash\",\"e\":0}"));
+        JSONObject parsed = new JSONObject(new String(body, StandardCharsets.UTF_8));
+        assertThat(parsed.getString("d"), equalTo("quote \" and \\ backslash"));
+        assertThat(parsed.getJSONObject("b").getLong("again"), equalTo(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testMissingValues() {
+        QueryTemplate template = QueryTemplate.compile("{\"a\":{{a}},\"b\":{{b}}}");
+        try {
+            template.renderer().put(1).toBytes();
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("no value for slot b"));
+        }
+        try {
+            template.renderer().put(1).put(2).put(3);
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("template has only 2 slots"));
+        }
+        // the renderer is reset by the next rendering
+        assertThat(new String(template.renderer().put(1).put(2).toBytes(), StandardCharsets.UTF_8), equalTo("{\"a\":1,\"b\":2}"));
+    }
+
+    @Test
+    public void testQueryMatchesJson() {
+        SearchImageRequest searchImageRequest = new SearchImageRequest("url", 50);
+        byte[] query = SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("url").dHash(-42L).build(), searchImageRequest);
+        JSONObject parsed = new JSONObject(new String(query, StandardCharsets.UTF_8));
+        assertThat(parsed.getInt("size"), equalTo(SearchImageHandler.DEFAULT_SIZE));
+        JSONObject functionScore = parsed.getJSONObject("query").getJSONObject("function_score");
+        JSONObject params = functionScore.getJSONObject("query").getJSONObject("bool").getJSONObject("filter")
+                .getJSONObject("script").getJSONObject("script").getJSONObject("params");
+        assertThat(params.getLong("hash"), equalTo(-42L));
+        assertThat(params.getInt("minimumShouldMatch"), equalTo(50));
+        assertThat(functionScore.getJSONArray("functions").getJSONObject(0).getJSONObject("script_score")
+                .getJSONObject("script").getJSONObject("params").getLong("hash"), equalTo(-42L));
+        // same input, same bytes
+        assertThat(SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("url").dHash(-42L).build(), searchImageRequest), equalTo(query));
+    }
+
+    @Test
+    public void testPagedQueryWithSource() {
+        SearchImageRequest searchImageRequest = new SearchImageRequest("url", 50);
+        searchImageRequest.searchAfter = Arrays.asList(63, "processed_images#first");
+        searchImageRequest.source = Arrays.asList("imageUrl", "dHash\"quoted");
+        byte[] query = SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("url").dHash(-42L).build(), searchImageRequest);
+        assertThat(new String(query, StandardCharsets.UTF_8), startsWith("{\"size\":" + SearchImageHandler.DEFAULT_SIZE
+                + ",\"_source\":[\"imageUrl\",\"dHash\\\"quoted\"],\"sort\":[{\"_score\":\"desc\"},{\"_uid\":\"asc\"}],\"track_scores\":true,"
+                + "\"search_after\":[63,\"processed_images#first\"],\"query\":"));
+        JSONObject parsed = new JSONObject(new String(query, StandardCharsets.UTF_8));
+        assertThat(parsed.getJSONArray("_source").getString(1), equalTo("dHash\"quoted"));
+        assertThat(SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("url").dHash(-42L).build(), searchImageRequest), equalTo(query));
+    }
+}
@@ -16,23 +16,45 @@
 
 package visualsearch.service.search;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.reactive.function.server.MockServerRequest;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import visualsearch.image.ProcessImage;
 import visualsearch.image.ProcessedImage;
+import visualsearch.service.Handler;
 import visualsearch.service.services.ElasticService;
+import visualsearch.service.services.FeatureCacheService;
+import visualsearch.service.services.HashIndexService;
+import visualsearch.service.services.ImageProcessingService;
 import visualsearch.service.services.ImageRetrieveService;
+import visualsearch.service.services.SearchCacheService;
+import visualsearch.service.services.SegmentStoreService;
+import visualsearch.store.HammingIndex;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Arrays;
 
 import static junit.framework.TestCase.fail;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static visualsearch.service.HelperMethods.DUMMY_IMAGE_URL;
 import static visualsearch.service.HelperMethods.createElasticSearchResponse;
 import static visualsearch.service.HelperMethods.getImageClientResponse;
@@ -52,12 +74,12 @@ public class SearchImageHandlerTest {
 
         // mock elasticsearch
         ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
-        String queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
         ElasticService elasticService = mock(ElasticService.class);
         doReturn(createElasticSearchResponse(Duration.ZERO, HttpStatus.OK))
                 .when(elasticService).search(queryBody);
 
-        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService);
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
 
         SearchImageResponse searchImageResponse = imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
         assertThat(searchImageResponse.response, equalTo("{ this is really irrelevant because we only pass on the elasticsearch response here }"));
@@ -72,7 +94,7 @@ public class SearchImageHandlerTest {
         ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
         doThrow(new IllegalArgumentException("No can do.")).
                 when(imageRetrieveService).fetchImage(fetchImageRequest);
-        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, null);
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
 
         try {
             imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
@@ -81,4 +103,374 @@ public class SearchImageHandlerTest {
             assertThat(e.getMessage(), equalTo("No can do."));
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSearchHashIndex() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        searchImageRequest.size = 1;
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+
+        // no elasticsearch needed once the index is loaded
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"_scroll_id\":\"1\",\"hits\":{\"hits\":[]}}", 200)))
+                .when(elasticService).startScroll(anyString());
+        HashIndexService hashIndexService = new HashIndexService(elasticService, true);
+        hashIndexService.start();
+        hashIndexService.add("same", processedImage);
+        hashIndexService.add("similar", ProcessedImage.builder().imageUrl("similar").dHash(processedImage.dHashLong ^ 0b111).build());
+        hashIndexService.add("different", ProcessedImage.builder().imageUrl("different").dHash(~processedImage.dHashLong).build());
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), hashIndexService, new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        SearchImageResponse searchImageResponse = imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+        JSONObject hits = new JSONObject(searchImageResponse.response).getJSONObject("hits");
+        assertThat(hits.getInt("total"), equalTo(2));
+        assertThat(hits.getJSONArray("hits").length(), equalTo(1));
+        assertThat(hits.getJSONArray("hits").getJSONObject(0).getString("_id"), equalTo("same"));
+        assertThat(hits.getJSONArray("hits").getJSONObject(0).getInt("_score"), equalTo(64));
+        assertThat(hits.getJSONArray("hits").getJSONObject(0).getJSONObject("_source").getString("imageUrl"), equalTo(DUMMY_IMAGE_URL));
+    }
+
+    @Test
+    public void testRepeatedUrlIsNotFetchedAgain() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 10);
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(createElasticSearchResponse(Duration.ZERO, HttpStatus.OK))
+                .when(elasticService).search(queryBody);
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 10, true),
+                new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+        SearchImageResponse searchImageResponse = imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+        assertThat(searchImageResponse.response, equalTo("{ this is really irrelevant because we only pass on the elasticsearch response here }"));
+        verify(imageRetrieveService, times(1)).fetchImage(fetchImageRequest);
+    }
+
+    @Test
+    public void testRerankCandidates() {
+        long hash = 0x5555555555555555L;
+        JSONArray candidates = new JSONArray()
+                .put(candidate("far", hash ^ 0xffffL))
+                .put(candidate("similar", hash ^ 0b11))
+                .put(candidate("same", hash))
+                .put(candidate("close", hash ^ 0b1000_0001));
+        HammingIndex.Result result = SearchImageHandler.rerank(candidates, hash, 4, 2);
+        assertThat(result.total, equalTo(3));
+        assertThat(result.hits.size(), equalTo(2));
+        assertThat(result.hits.get(0).id, equalTo("same"));
+        assertThat(result.hits.get(1).distance, equalTo(2));
+    }
+
+    @Test
+    public void testCandidatesQuery() {
+        JSONObject query = new JSONObject(new String(SearchImageHandler.generateCandidatesQuery(0L, 9), StandardCharsets.UTF_8));
+        JSONArray terms = query.getJSONObject("query").getJSONObject("constant_score").getJSONObject("filter")
+                .getJSONObject("terms").getJSONArray("dHashChunks");
+        assertThat(terms.length(), equalTo(4 * (1 + 16 + 120)));
+        assertThat(query.getInt("size"), equalTo(SearchImageHandler.MAX_CANDIDATES));
+    }
+
+    @Test
+    public void testHitsFormat() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        searchImageRequest.format = SearchImageRequest.FORMAT_HITS;
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+
+        // only the hash and url of the hits are requested
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
+        assertThat(new JSONObject(new String(queryBody, StandardCharsets.UTF_8)).getJSONArray("_source").toString(), equalTo("[\"imageUrl\",\"dHashLong\"]"));
+        long hash = processedImage.dHashLong;
+        String elasticsearchResponse = new JSONObject().put("hits", new JSONObject()
+                .put("total", 2310)
+                .put("hits", new JSONArray()
+                        .put(candidate("close", hash ^ 0b11))
+                        .put(candidate("same", hash))))
+                .toString();
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse(elasticsearchResponse, 200)))
+                .when(elasticService).search(queryBody);
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        JSONObject response = new JSONObject(imageHandler.computeResponse(Mono.just(searchImageRequest)).block().response);
+
+        assertThat(response.getInt("total"), equalTo(2310));
+        JSONArray hits = response.getJSONArray("hits");
+        assertThat(hits.length(), equalTo(2));
+        assertThat(hits.getJSONObject(0).toString(), equalTo(new JSONObject().put("id", "same").put("imageUrl", "same").put("distance", 0).toString()));
+        assertThat(hits.getJSONObject(1).getInt("distance"), equalTo(2));
+    }
+
+    @Test
+    public void testRawFormatStreamsElasticsearchResponse() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 10);
+        searchImageRequest.format = SearchImageRequest.FORMAT_RAW;
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        Flux<DataBuffer> body = Flux.just("{\"took\":3,", "\"hits\":{}}").map(chunk -> bufferFactory.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.StreamedResponse(HttpStatus.OK, body, () -> {
+        })))
+                .when(elasticService).streamSearch(queryBody);
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        SearchImageResponse searchImageResponse = imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+
+        assertThat(searchImageResponse.response, equalTo(null));
+        String streamed = searchImageResponse.body.map(chunk -> StandardCharsets.UTF_8.decode(chunk.asByteBuffer()).toString())
+                .collect(StringBuilder::new, StringBuilder::append).block().toString();
+        assertThat(streamed, equalTo("{\"took\":3,\"hits\":{}}"));
+        verify(elasticService, times(0)).search(queryBody);
+    }
+
+    @Test
+    public void testSearchAfter() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        searchImageRequest.format = SearchImageRequest.FORMAT_HITS;
+        searchImageRequest.size = 1;
+        searchImageRequest.searchAfter = Arrays.asList(63, "processed_images#first");
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+
+        byte[] queryBody = SearchImageHandler.generateQuery(processedImage, searchImageRequest);
+        JSONObject query = new JSONObject(new String(queryBody, StandardCharsets.UTF_8));
+        assertThat(query.getJSONArray("search_after").toString(), equalTo("[63,\"processed_images#first\"]"));
+        assertThat(query.getJSONArray("sort").length(), equalTo(2));
+        String elasticsearchResponse = new JSONObject().put("hits", new JSONObject()
+                .put("total", 3)
+                .put("hits", new JSONArray().put(candidate("second", processedImage.dHashLong ^ 0b11))))
+                .toString();
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse(elasticsearchResponse, 200)))
+                .when(elasticService).search(queryBody);
+
+        // the hash index is ready but cannot paginate
+        HashIndexService hashIndexService = mock(HashIndexService.class);
+        doReturn(true).when(hashIndexService).isReady();
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), hashIndexService, new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        JSONObject response = new JSONObject(imageHandler.computeResponse(Mono.just(searchImageRequest)).block().response);
+
+        assertThat(response.getJSONArray("hits").getJSONObject(0).getString("id"), equalTo("second"));
+        assertThat(response.getJSONArray("searchAfter").toString(), equalTo("[62,\"processed_images#second\"]"));
+    }
+
+    @Test
+    public void testNdjsonScrollsThroughAllPages() throws IOException {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        searchImageRequest.format = SearchImageRequest.FORMAT_NDJSON;
+        searchImageRequest.source = Arrays.asList("imageUrl");
+
+        ImageRetrieveService.FetchImageRequest fetchImageRequest = new ImageRetrieveService.FetchImageRequest(DUMMY_IMAGE_URL);
+        Mono<ImageRetrieveService.ImageFetchResponse> imageResponse = getImageClientResponse(Duration.ZERO);
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+        doReturn(imageResponse)
+                .when(imageRetrieveService).fetchImage(fetchImageRequest);
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(imageResponse.block().body(), ProcessedImage.builder().imageUrl(fetchImageRequest.imageUrl));
+
+        String query = SearchImageHandler.exportQuery(processedImage, searchImageRequest);
+        assertThat(new JSONObject(query).getInt("size"), equalTo(SearchImageHandler.DEFAULT_PAGE_SIZE));
+        assertThat(new JSONObject(query).getJSONArray("_source").toString(), equalTo("[\"imageUrl\"]"));
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse(scrollPage("scroll-1", "a", "b"), 200)))
+                .when(elasticService).startScroll(query);
+        doReturn(Mono.just(new ElasticService.ElasticResponse(scrollPage("scroll-2", "c"), 200)))
+                .when(elasticService).scroll("scroll-1");
+        doReturn(Mono.just(new ElasticService.ElasticResponse(scrollPage("scroll-3"), 200)))
+                .when(elasticService).scroll("scroll-2");
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{}", 200)))
+                .when(elasticService).clearScroll(anyString());
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        SearchImageResponse searchImageResponse = imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+
+        assertThat(searchImageResponse.contentType, equalTo(SearchImageHandler.NDJSON));
+        String lines = searchImageResponse.body.map(chunk -> StandardCharsets.UTF_8.decode(chunk.asByteBuffer()).toString())
+                .collect(StringBuilder::new, StringBuilder::append).block().toString();
+        assertThat(lines, equalTo("{\"_id\":\"a\"}\n{\"_id\":\"b\"}\n{\"_id\":\"c\"}\n"));
+        verify(elasticService, times(1)).clearScroll("scroll-3");
+    }
+
+    private static String scrollPage(String scrollId, String... ids) {
+        JSONArray hits = new JSONArray();
+        for (String id : ids) {
+            hits.put(new JSONObject().put("_id", id));
+        }
+        return new JSONObject().put("_scroll_id", scrollId).put("hits", new JSONObject().put("hits", hits)).toString();
+    }
+
+    @Test
+    public void testSearchByHashDoesNotFetchImage() {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(null, 60);
+        searchImageRequest.dHashHex = "00000000000000ff";
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"hits\":{}}", 200)))
+                .when(elasticService).search(SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("none").dHash(255).build(), searchImageRequest));
+        ImageRetrieveService imageRetrieveService = mock(ImageRetrieveService.class);
+
+        SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        assertThat(imageHandler.computeResponse(Mono.just(searchImageRequest)).block().response, equalTo("{\"hits\":{}}"));
+        verifyNoMoreInteractions(imageRetrieveService);
+
+        searchImageRequest.dHashHex = "not hex";
+        try {
+            imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+            fail();
+        } catch (Handler.RequestFailedException e) {
+            assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    @Test
+    public void testSearchById() {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(null, 60);
+        searchImageRequest.id = "indexed";
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"_id\":\"indexed\",\"found\":true,\"_source\":{\"dHashLong\":-7}}", 200)))
+                .when(elasticService).get("indexed", SearchImageHandler.HASH_FIELDS);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"_id\":\"missing\",\"found\":false}", 404)))
+                .when(elasticService).get("missing", SearchImageHandler.HASH_FIELDS);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"hits\":{}}", 200)))
+                .when(elasticService).search(SearchImageHandler.generateQuery(ProcessedImage.builder().imageUrl("none").dHash(-7).build(), searchImageRequest));
+
+        SearchImageHandler imageHandler = new SearchImageHandler(mock(ImageRetrieveService.class), elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        assertThat(imageHandler.computeResponse(Mono.just(searchImageRequest)).block().response, equalTo("{\"hits\":{}}"));
+
+        searchImageRequest.id = "missing";
+        try {
+            imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+            fail();
+        } catch (Handler.RequestFailedException e) {
+            assertThat(e.getHttpStatus(), equalTo(HttpStatus.NOT_FOUND));
+        }
+    }
+
+    @Test
+    public void testUploadedImageIsSearched() throws IOException {
+        ByteBuffer image = getImageClientResponse(Duration.ZERO).block().body();
+        ProcessedImage processedImage = ProcessImage.getProcessingResult(image.duplicate(), ProcessedImage.builder().imageUrl("none"));
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(createElasticSearchResponse(Duration.ZERO, HttpStatus.OK))
+                .when(elasticService).search(SearchImageHandler.generateQuery(processedImage, new SearchImageRequest(null, 10)));
+
+        try (ImageRetrieveService imageRetrieveService = new ImageRetrieveService(null, 0, 0)) {
+            SearchImageHandler imageHandler = new SearchImageHandler(imageRetrieveService, elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+            // the image arrives in two chunks
+            int half = image.remaining() / 2;
+            ByteBuffer first = image.duplicate();
+            first.limit(first.position() + half);
+            ByteBuffer second = image.duplicate();
+            second.position(second.position() + half);
+            DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+            ServerRequest request = MockServerRequest.builder()
+                    .header("Content-Type", "application/octet-stream")
+                    .queryParam("minimumShouldMatch", "10")
+                    .body(Flux.just(bufferFactory.wrap(first), bufferFactory.wrap(second)));
+
+            assertThat(imageHandler.handle(request).block().statusCode(), equalTo(HttpStatus.OK));
+            verify(elasticService).search(SearchImageHandler.generateQuery(processedImage, new SearchImageRequest(null, 10)));
+        }
+    }
+
+    @Test
+    public void testMinimumShouldMatchOutOfRange() {
+        SearchImageHandler imageHandler = new SearchImageHandler(mock(ImageRetrieveService.class), null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        for (int minimumShouldMatch : new int[]{-1, 65}) {
+            try {
+                imageHandler.computeResponse(Mono.just(new SearchImageRequest(DUMMY_IMAGE_URL, minimumShouldMatch))).block();
+                fail();
+            } catch (Handler.RequestFailedException e) {
+                assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+            }
+        }
+    }
+
+    @Test
+    public void testSizeOutOfRange() {
+        SearchImageHandler imageHandler = new SearchImageHandler(mock(ImageRetrieveService.class), null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        for (int size : new int[]{-1, 0, SearchImageHandler.MAX_CANDIDATES + 1}) {
+            SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+            searchImageRequest.size = size;
+            try {
+                imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+                fail();
+            } catch (Handler.RequestFailedException e) {
+                assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentStoreRejectsElasticsearchOnlyOptions() {
+        ElasticService elasticService = mock(ElasticService.class);
+        SearchImageHandler imageHandler = new SearchImageHandler(mock(ImageRetrieveService.class), elasticService, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(true, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        SearchImageRequest paged = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        paged.searchAfter = Arrays.asList();
+        SearchImageRequest filtered = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        filtered.source = Arrays.asList("imageUrl");
+        SearchImageRequest exported = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        exported.format = SearchImageRequest.FORMAT_NDJSON;
+        SearchImageRequest byId = new SearchImageRequest(null, 60);
+        byId.id = "0";
+        for (SearchImageRequest searchImageRequest : Arrays.asList(paged, filtered, exported, byId)) {
+            try {
+                imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+                fail();
+            } catch (Handler.RequestFailedException e) {
+                assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+                assertThat(e.getMessage().endsWith("cannot be used with STORE=segments"), equalTo(true));
+            }
+        }
+        verifyNoMoreInteractions(elasticService);
+    }
+
+    @Test
+    public void testUnknownFormat() {
+        SearchImageRequest searchImageRequest = new SearchImageRequest(DUMMY_IMAGE_URL, 60);
+        searchImageRequest.format = "xml";
+        SearchImageHandler imageHandler = new SearchImageHandler(mock(ImageRetrieveService.class), null, new ImageProcessingService(), new FeatureCacheService(new SimpleMeterRegistry(), 0, true), new HashIndexService(null, false), new SegmentStoreService(false, null, 0), new SearchCacheService(new SimpleMeterRegistry(), 0, 0, 0, 0));
+        try {
+            imageHandler.computeResponse(Mono.just(searchImageRequest)).block();
+            fail();
+        } catch (Handler.RequestFailedException e) {
+            assertThat(e.getHttpStatus(), equalTo(HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    private static JSONObject candidate(String id, long hash) {
+        return new JSONObject()
+                .put("_id", id)
+                .put("_source", new JSONObject().put("imageUrl", id).put("dHashLong", hash));
+    }
+}
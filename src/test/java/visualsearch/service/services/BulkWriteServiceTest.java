@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class BulkWriteServiceTest {
+
+    @Test
+    public void testFullBatchIsWrittenWithOneRequest() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"errors\":true,\"items\":["
+                + "{\"index\":{\"_id\":\"a\",\"status\":201}},"
+                + "{\"index\":{\"_id\":\"b\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+                + "{\"index\":{\"_id\":\"c\",\"status\":201}}]}", 200)))
+                .when(elasticService).bulk(any());
+        BulkWriteService bulkWriteService = new BulkWriteService(elasticService, 3, 1024, 60000);
+
+        CompletableFuture<ElasticService.BulkItem> first = bulkWriteService.index(document(1)).toFuture();
+        CompletableFuture<ElasticService.BulkItem> second = bulkWriteService.index(document(2)).toFuture();
+        verify(elasticService, never()).bulk(any());
+        CompletableFuture<ElasticService.BulkItem> third = bulkWriteService.index(document(3)).toFuture();
+
+        assertThat(first.join().id, equalTo("a"));
+        assertThat(second.join().isSuccess(), equalTo(false));
+        assertThat(second.join().status, equalTo(HttpStatus.TOO_MANY_REQUESTS));
+        assertThat(third.join().id, equalTo("c"));
+
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(elasticService, times(1)).bulk(body.capture());
+        assertThat(new String(body.getValue(), StandardCharsets.UTF_8),
+                equalTo("{\"index\":{}}\n{\"n\":1}\n{\"index\":{}}\n{\"n\":2}\n{\"index\":{}}\n{\"n\":3}\n"));
+        bulkWriteService.close();
+    }
+
+    @Test
+    public void testBatchIsWrittenAfterLinger() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"items\":[{\"index\":{\"_id\":\"a\",\"status\":201}}]}", 200)))
+                .when(elasticService).bulk(any());
+        BulkWriteService bulkWriteService = new BulkWriteService(elasticService, 100, 1024, 10);
+
+        assertThat(bulkWriteService.index(document(1)).block().id, equalTo("a"));
+        bulkWriteService.close();
+    }
+
+    @Test
+    public void testBatchIsWrittenBeforeItExceedsMaxBytes() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"items\":[{\"index\":{\"_id\":\"a\",\"status\":201}}]}", 200)))
+                .when(elasticService).bulk(any());
+        BulkWriteService bulkWriteService = new BulkWriteService(elasticService, 100, 12, 60000);
+
+        CompletableFuture<ElasticService.BulkItem> first = bulkWriteService.index(document(1)).toFuture();
+        verify(elasticService, never()).bulk(any());
+        // the second document does not fit, the first is written alone
+        CompletableFuture<ElasticService.BulkItem> second = bulkWriteService.index(document(2)).toFuture();
+        assertThat(first.join().id, equalTo("a"));
+        verify(elasticService, times(1)).bulk(any());
+        assertThat(second.isDone(), equalTo(false));
+        // closing writes what is left
+        bulkWriteService.close();
+        assertThat(second.join().id, equalTo("a"));
+        verify(elasticService, times(2)).bulk(any());
+    }
+
+    @Test
+    public void testFailedRequestFailsEveryDocument() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"error\":\"unavailable\"}", 503)))
+                .when(elasticService).bulk(any());
+        BulkWriteService bulkWriteService = new BulkWriteService(elasticService, 2, 1024, 60000);
+
+        CompletableFuture<ElasticService.BulkItem> first = bulkWriteService.index(document(1)).toFuture();
+        CompletableFuture<ElasticService.BulkItem> second = bulkWriteService.index(document(2)).toFuture();
+        assertThat(first.join().status, equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+        assertThat(second.join().status, equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+        bulkWriteService.close();
+    }
+
+    private static byte[] document(int n) {
+        return ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+    }
+}
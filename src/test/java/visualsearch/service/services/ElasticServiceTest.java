@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.IOControl;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ElasticServiceTest {
+
+    @Test
+    public void testUnknownStatusIsBadGateway() {
+        assertThat(new ElasticService.ElasticResponse("{}", 599).getHttpStatus(), equalTo(HttpStatus.BAD_GATEWAY));
+        assertThat(new ElasticService.ElasticResponse("{}", 404).getHttpStatus(), equalTo(HttpStatus.NOT_FOUND));
+    }
+
+    @Test
+    public void testStreamedResponseSuspendsInputWhileBufferIsFull() throws IOException {
+        CompletableFuture<ElasticService.StreamedResponse> streamedResponse = new CompletableFuture<>();
+        ElasticService.StreamingConsumer consumer = consumer(streamedResponse, 8);
+        IOControl ioControl = mock(IOControl.class);
+
+        consumer.onResponseReceived(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        assertThat(streamedResponse.join().getHttpStatus(), equalTo(HttpStatus.OK));
+        consumer.onByteReceived(bytes("{\"hi"), ioControl);
+        verify(ioControl, never()).suspendInput();
+        consumer.onByteReceived(bytes("ts\":1"), ioControl);
+        verify(ioControl, times(1)).suspendInput();
+
+        ChunkSubscriber subscriber = new ChunkSubscriber();
+        streamedResponse.join().body().subscribe(subscriber);
+        verify(ioControl, never()).requestInput();
+        subscriber.request(1);
+        assertThat(subscriber.chunks, equalTo(Arrays.asList("{\"hi")));
+        verify(ioControl, times(1)).requestInput();
+
+        consumer.onByteReceived(bytes("}"), ioControl);
+        consumer.buildResult(null);
+        assertThat(subscriber.completed, equalTo(false));
+        subscriber.request(2);
+        assertThat(subscriber.chunks, equalTo(Arrays.asList("{\"hi", "ts\":1", "}")));
+        assertThat(subscriber.completed, equalTo(true));
+    }
+
+    @Test
+    public void testCancelledBodyShutsConnectionDown() throws IOException {
+        CompletableFuture<ElasticService.StreamedResponse> streamedResponse = new CompletableFuture<>();
+        ElasticService.StreamingConsumer consumer = consumer(streamedResponse, 1024);
+        IOControl ioControl = mock(IOControl.class);
+
+        consumer.onResponseReceived(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        consumer.onByteReceived(bytes("{"), ioControl);
+        ChunkSubscriber subscriber = new ChunkSubscriber();
+        streamedResponse.join().body().subscribe(subscriber);
+        subscriber.cancel();
+        verify(ioControl, times(1)).shutdown();
+
+        consumer.onByteReceived(bytes("}"), ioControl);
+        verify(ioControl, times(2)).shutdown();
+        assertThat(subscriber.chunks.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testFailureBeforeResponseFailsRequest() {
+        CompletableFuture<ElasticService.StreamedResponse> streamedResponse = new CompletableFuture<>();
+        ElasticService.StreamingConsumer consumer = consumer(streamedResponse, 1024);
+
+        consumer.fail(new IOException("connection refused"));
+        assertThat(streamedResponse.isCompletedExceptionally(), equalTo(true));
+    }
+
+    private static ElasticService.StreamingConsumer consumer(CompletableFuture<ElasticService.StreamedResponse> streamedResponse, long maxBufferedBytes) {
+        List<ElasticService.StreamingConsumer> consumer = new ArrayList<>();
+        Mono.<ElasticService.StreamedResponse>create(sink -> consumer.add(new ElasticService.StreamingConsumer(sink, maxBufferedBytes)))
+                .subscribe(streamedResponse::complete, streamedResponse::completeExceptionally);
+        return consumer.get(0);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class ChunkSubscriber extends BaseSubscriber<DataBuffer> {
+        final List<String> chunks = new ArrayList<>();
+        boolean completed;
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            // requests are made by the test
+        }
+
+        @Override
+        protected void hookOnNext(DataBuffer chunk) {
+            chunks.add(StandardCharsets.UTF_8.decode(chunk.asByteBuffer()).toString());
+            DataBufferUtils.release(chunk);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            completed = true;
+        }
+    }
+}
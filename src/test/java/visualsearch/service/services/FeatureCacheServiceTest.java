@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import visualsearch.image.ProcessedImage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class FeatureCacheServiceTest {
+
+    @Test
+    public void testEntriesExpire() {
+        AtomicLong clock = new AtomicLong();
+        FeatureCacheService featureCacheService = new FeatureCacheService(new SimpleMeterRegistry(), 10, true, 1000, clock::get);
+        featureCacheService.put(ProcessedImage.builder().imageUrl("http://a").dHash(42).build());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertThat(featureCacheService.get("http://a", true).dHashLong, equalTo(42L));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(featureCacheService.get("http://a", true), nullValue());
+
+        // processing the url again starts a new ttl
+        featureCacheService.put(ProcessedImage.builder().imageUrl("http://a").dHash(43).build());
+        assertThat(featureCacheService.get("http://a", true).dHashLong, equalTo(43L));
+    }
+}
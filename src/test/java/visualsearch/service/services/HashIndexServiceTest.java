@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import visualsearch.image.ImageHash;
+import visualsearch.image.ProcessedImage;
+import visualsearch.store.HammingIndex;
+
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class HashIndexServiceTest {
+
+    private static String page(String scrollId, String... hits) {
+        return "{\"_scroll_id\":\"" + scrollId + "\",\"hits\":{\"total\":" + hits.length + ",\"hits\":[" + String.join(",", hits) + "]}}";
+    }
+
+    @Test
+    public void testRebuildFromElasticsearch() {
+        ElasticService elasticService = mock(ElasticService.class);
+        String legacyFields = ImageHash.toLegacyFields(0xFFL).entrySet().stream()
+                .map(entry -> "\"" + entry.getKey() + "\":" + entry.getValue())
+                .reduce((a, b) -> a + "," + b).get();
+        String firstPage = page("scroll-1",
+                "{\"_id\":\"a\",\"_source\":{\"imageUrl\":\"http://a\",\"dHashLong\":15}}",
+                "{\"_id\":\"b\",\"_source\":{\"imageUrl\":\"http://b\",\"dHash\":{" + legacyFields + "}}}",
+                "{\"_id\":\"c\",\"_source\":{\"imageUrl\":\"http://c\",\"dHashLong\":15}}");
+        doReturn(Mono.just(new ElasticService.ElasticResponse(firstPage, 200))).when(elasticService).startScroll(anyString());
+        doReturn(Mono.just(new ElasticService.ElasticResponse(page("scroll-1"), 200))).when(elasticService).scroll("scroll-1");
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{}", 200))).when(elasticService).clearScroll("scroll-1");
+
+        HashIndexService hashIndexService = new HashIndexService(elasticService, true);
+        assertThat(hashIndexService.isReady(), equalTo(false));
+        // indexed while rebuilding, must not end up in the index twice
+        hashIndexService.add("c", ProcessedImage.builder().imageUrl("http://c").dHash(15).build());
+
+        assertThat(hashIndexService.rebuild().block(Duration.ofSeconds(10)), equalTo(2));
+        assertThat(hashIndexService.isReady(), equalTo(true));
+
+        HammingIndex.Result result = hashIndexService.search(0L, 8, 10);
+        assertThat(result.total, equalTo(3));
+        assertThat(result.hits.get(0).id, equalTo("c"));
+        assertThat(result.hits.get(1).id, equalTo("a"));
+        assertThat(result.hits.get(2).id, equalTo("b"));
+        assertThat(result.hits.get(2).imageUrl, equalTo("http://b"));
+        assertThat(result.hits.get(2).distance, equalTo(8));
+        verify(elasticService).clearScroll("scroll-1");
+    }
+
+    @Test
+    public void testFailedRebuildKeepsIndexUnused() {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{}", HttpStatus.NOT_FOUND.value()))).when(elasticService).startScroll(anyString());
+        HashIndexService hashIndexService = new HashIndexService(elasticService, true);
+        hashIndexService.start();
+        assertThat(hashIndexService.isReady(), equalTo(false));
+    }
+}
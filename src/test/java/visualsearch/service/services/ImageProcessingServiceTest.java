@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+
+public class ImageProcessingServiceTest {
+
+    @Test
+    public void testRunsOnProcessingThread() {
+        try (ImageProcessingService service = new ImageProcessingService()) {
+            String threadName = service.submit(() -> Thread.currentThread().getName()).block(Duration.ofSeconds(10));
+            assertThat(threadName, startsWith("image-processing-"));
+        }
+    }
+
+    @Test
+    public void testWaitingStreamedDecodesDoNotBlockProcessing() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ImageProcessingService service = new ImageProcessingService(new SimpleMeterRegistry(), 1, 1, 1, 1)) {
+            service.submitStreaming(() -> {
+                started.countDown();
+                release.await();
+                return Thread.currentThread().getName();
+            }).subscribe();
+            started.await();
+            assertThat(service.submit(() -> Thread.currentThread().getName()).block(Duration.ofSeconds(10)), startsWith("image-processing-"));
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ImageProcessingService service = new ImageProcessingService(meterRegistry, 1, 1)) {
+            service.submit(() -> {
+                started.countDown();
+                release.await();
+                return 1;
+            }).subscribe();
+            started.await();
+            service.submit(() -> 2).subscribe();
+            assertThat(service.queueDepth(), equalTo(1));
+            try {
+                service.submit(() -> 3).block(Duration.ofSeconds(10));
+                fail("should have been rejected");
+            } catch (RejectedExecutionException e) {
+                assertThat(meterRegistry.get("image.processing.rejected").counter().count(), equalTo(1.0));
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+}
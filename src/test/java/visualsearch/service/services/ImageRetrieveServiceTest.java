@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import visualsearch.image.ImageLimitExceededException;
+import visualsearch.store.ImageCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ImageRetrieveServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.jpg", exchange -> {
+            String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(String.valueOf(etag));
+            if ("\"v1\"".equals(etag)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = "not really an image".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.createContext("/missing.jpg", exchange -> {
+            ifNoneMatch.add("missing");
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFreshImageIsNotFetchedAgain() throws IOException {
+        try (ImageRetrieveService service = new ImageRetrieveService(ImageCache.open(temporaryFolder.getRoot().toPath(), 1000), 60000, 60000)) {
+            assertThat(body(fetch(service, "/image.jpg")), equalTo("not really an image"));
+            ImageRetrieveService.ImageFetchResponse cached = fetch(service, "/image.jpg");
+            assertThat(cached.statusCode(), equalTo(HttpStatus.OK));
+            assertThat(body(cached), equalTo("not really an image"));
+            assertThat(ifNoneMatch.size(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void testStaleImageIsRevalidated() throws IOException {
+        try (ImageRetrieveService service = new ImageRetrieveService(ImageCache.open(temporaryFolder.getRoot().toPath(), 1000), 0, 60000)) {
+            fetch(service, "/image.jpg");
+            ImageRetrieveService.ImageFetchResponse revalidated = fetch(service, "/image.jpg");
+            assertThat(revalidated.statusCode(), equalTo(HttpStatus.OK));
+            assertThat(body(revalidated), equalTo("not really an image"));
+            assertThat(ifNoneMatch, equalTo(Arrays.asList("null", "\"v1\"")));
+        }
+    }
+
+    @Test
+    public void testFailedFetchIsRemembered() throws IOException {
+        try (ImageRetrieveService service = new ImageRetrieveService(ImageCache.open(temporaryFolder.getRoot().toPath(), 1000), 60000, 60000)) {
+            assertThat(fetch(service, "/missing.jpg").statusCode(), equalTo(HttpStatus.NOT_FOUND));
+            assertThat(fetch(service, "/missing.jpg").statusCode(), equalTo(HttpStatus.NOT_FOUND));
+            assertThat(ifNoneMatch.size(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void testBrokenOffStreamIsRememberedWithoutCache() throws IOException {
+        // announces 1000 bytes but closes the connection after 10
+        ServerSocket truncating = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread accepting = new Thread(() -> {
+            while (true) {
+                try (Socket socket = truncating.accept()) {
+                    ifNoneMatch.add("truncated");
+                    socket.getInputStream().read(new byte[4096]);
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.write(new byte[10]);
+                    out.flush();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        accepting.setDaemon(true);
+        accepting.start();
+        try (ImageRetrieveService service = new ImageRetrieveService(null, 0, 60000); ServerSocket closing = truncating) {
+            String url = "http://127.0.0.1:" + closing.getLocalPort() + "/truncated.jpg";
+            ImageRetrieveService.ImageFetchResponse streamed = service.fetchImage(new ImageRetrieveService.FetchImageRequest(url), true).block(Duration.ofSeconds(10));
+            try {
+                byte[] bytes = new byte[1000];
+                while (streamed.stream().read(bytes) != -1) {
+                }
+                fail();
+            } catch (IOException e) {
+                // the connection was closed before the whole body arrived
+            }
+            try {
+                service.fetchImage(new ImageRetrieveService.FetchImageRequest(url), true).block(Duration.ofSeconds(10));
+                fail();
+            } catch (RuntimeException e) {
+                assertThat(ifNoneMatch.size(), equalTo(1));
+            }
+        }
+    }
+
+    @Test
+    public void testUploadedImageIsStreamed() throws IOException {
+        try (ImageRetrieveService service = new ImageRetrieveService(null, 0, 0)) {
+            DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+            Flux<DataBuffer> body = Flux.just("not really ", "an image").map(chunk -> bufferFactory.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+            ImageRetrieveService.ImageFetchResponse received = service.receiveImage(body, -1).block();
+            assertThat(received.isStreaming(), equalTo(true));
+            byte[] bytes = new byte[64];
+            int length = 0;
+            for (int read; (read = received.stream().read(bytes, length, bytes.length - length)) != -1; ) {
+                length += read;
+            }
+            assertThat(new String(bytes, 0, length, StandardCharsets.UTF_8), equalTo("not really an image"));
+
+            Flux<DataBuffer> again = Flux.just("an image").map(chunk -> bufferFactory.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+            assertThat(body(service.receiveImageBytes(again, -1).block()), equalTo("an image"));
+        }
+    }
+
+    @Test
+    public void testTooLargeUploadIsRejected() throws IOException {
+        try (ImageRetrieveService service = new ImageRetrieveService(null, 0, 0)) {
+            service.receiveImage(Flux.empty(), Long.MAX_VALUE).block();
+            fail();
+        } catch (RuntimeException e) {
+            assertThat(Exceptions.unwrap(e) instanceof ImageLimitExceededException, equalTo(true));
+        }
+    }
+
+    private ImageRetrieveService.ImageFetchResponse fetch(ImageRetrieveService service, String path) {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + path;
+        return service.fetchImage(new ImageRetrieveService.FetchImageRequest(url)).block(Duration.ofSeconds(10));
+    }
+
+    private static String body(ImageRetrieveService.ImageFetchResponse response) {
+        ByteBuffer body = response.body().duplicate();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
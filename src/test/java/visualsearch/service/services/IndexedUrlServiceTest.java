@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class IndexedUrlServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnknownUrlIsNotLookedUp() throws IOException {
+        ElasticService elasticService = mock(ElasticService.class);
+        try (IndexedUrlService indexedUrlService = new IndexedUrlService(elasticService, temporaryFolder.getRoot().toPath().resolve("urls"), 1000, 0.01)) {
+            indexedUrlService.add("http://a");
+            assertThat(indexedUrlService.findIndexed("http://b").block(), nullValue());
+            verify(elasticService, never()).search(any());
+        }
+    }
+
+    @Test
+    public void testKnownUrlIsConfirmedByElasticsearch() throws IOException {
+        ElasticService elasticService = mock(ElasticService.class);
+        // the first hit only contains the url, the second has it as alias
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"hits\":{\"total\":2,\"hits\":["
+                + "{\"_id\":\"1\",\"_source\":{\"imageUrl\":\"http://a/b\"}},"
+                + "{\"_id\":\"2\",\"_source\":{\"imageUrl\":\"http://c\",\"aliases\":[\"http://a\"]}}]}}", 200)))
+                .when(elasticService).search(any());
+        try (IndexedUrlService indexedUrlService = new IndexedUrlService(elasticService, temporaryFolder.getRoot().toPath().resolve("urls"), 1000, 0.01)) {
+            indexedUrlService.add("http://a");
+            assertThat(indexedUrlService.findIndexed("http://a").block(), equalTo("2"));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveIsNotIndexed() throws IOException {
+        ElasticService elasticService = mock(ElasticService.class);
+        doReturn(Mono.just(new ElasticService.ElasticResponse("{\"hits\":{\"total\":0,\"hits\":[]}}", 200)))
+                .when(elasticService).search(any());
+        try (IndexedUrlService indexedUrlService = new IndexedUrlService(elasticService, temporaryFolder.getRoot().toPath().resolve("urls"), 1000, 0.01)) {
+            indexedUrlService.add("http://a");
+            assertThat(indexedUrlService.findIndexed("http://a").block(), nullValue());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package visualsearch.service.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SearchCacheServiceTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger searches = new AtomicInteger();
+    private final Supplier<Mono<String>> search = () -> Mono.fromCallable(() -> "response " + searches.incrementAndGet());
+
+    @Test
+    public void testHitsAndMisses() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SearchCacheService cache = new SearchCacheService(meterRegistry, 10, 1000, 1000, 0, clock::get);
+        SearchCacheService.Key key = new SearchCacheService.Key(42L, 50, 10);
+        assertThat(cache.get(key, search).block(), equalTo("response 1"));
+        assertThat(cache.get(new SearchCacheService.Key(42L, 50, 10), search).block(), equalTo("response 1"));
+        assertThat(cache.get(new SearchCacheService.Key(42L, 51, 10), search).block(), equalTo("response 2"));
+        assertThat(cache.get(new SearchCacheService.Key(42L, 50, 20), search).block(), equalTo("response 3"));
+        assertThat(meterRegistry.get("search.cache.hits").counter().count(), equalTo(1.0));
+        assertThat(meterRegistry.get("search.cache.misses").counter().count(), equalTo(3.0));
+        assertThat(cache.size(), equalTo(3));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        SearchCacheService cache = new SearchCacheService(new SimpleMeterRegistry(), 2, 1000, 1000, 0, clock::get);
+        cache.get(new SearchCacheService.Key(1L, 50, 10), search).block();
+        cache.get(new SearchCacheService.Key(2L, 50, 10), search).block();
+        cache.get(new SearchCacheService.Key(1L, 50, 10), search).block();
+        cache.get(new SearchCacheService.Key(3L, 50, 10), search).block();
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.get(new SearchCacheService.Key(1L, 50, 10), search).block(), equalTo("response 1"));
+        assertThat(cache.get(new SearchCacheService.Key(2L, 50, 10), search).block(), equalTo("response 4"));
+    }
+
+    @Test
+    public void testServesStaleWhileRefreshing() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SearchCacheService cache = new SearchCacheService(meterRegistry, 10, 1000, 1000, 0, clock::get);
+        SearchCacheService.Key key = new SearchCacheService.Key(42L, 50, 10);
+        cache.get(key, search).block();
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+        // expired but within the stale window: the old response is returned and refreshed
+        assertThat(cache.get(key, search).block(), equalTo("response 1"));
+        assertThat(searches.get(), equalTo(2));
+        assertThat(cache.get(key, search).block(), equalTo("response 2"));
+        assertThat(meterRegistry.get("search.cache.stale").counter().count(), equalTo(1.0));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(2500));
+        // too old to be served
+        assertThat(cache.get(key, search).block(), equalTo("response 3"));
+    }
+
+    @Test
+    public void testWritesMakeEntriesStale() {
+        SearchCacheService cache = new SearchCacheService(new SimpleMeterRegistry(), 10, 1000, 1000, 0, clock::get);
+        SearchCacheService.Key key = new SearchCacheService.Key(42L, 50, 10);
+        cache.get(key, search).block();
+        cache.invalidate();
+        assertThat(cache.get(key, search).block(), equalTo("response 1"));
+        assertThat(cache.get(key, search).block(), equalTo("response 2"));
+    }
+
+    @Test
+    public void testEntriesExpireWhenWriteIsVisible() {
+        SearchCacheService cache = new SearchCacheService(new SimpleMeterRegistry(), 10, 1000, 0, 100, clock::get);
+        SearchCacheService.Key key = new SearchCacheService.Key(42L, 50, 10);
+        cache.invalidate();
+        cache.get(key, search).block();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(cache.get(key, search).block(), equalTo("response 1"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(cache.get(key, search).block(), equalTo("response 2"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(cache.get(key, search).block(), equalTo("response 2"));
+    }
+
+    @Test
+    public void testDisabled() {
+        SearchCacheService cache = new SearchCacheService(new SimpleMeterRegistry(), 0, 1000, 1000, 0, clock::get);
+        SearchCacheService.Key key = new SearchCacheService.Key(42L, 50, 10);
+        cache.get(key, search).block();
+        assertThat(cache.get(key, search).block(), equalTo("response 2"));
+        assertThat(cache.size(), equalTo(0));
+    }
+}
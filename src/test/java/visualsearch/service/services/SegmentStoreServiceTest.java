@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 a2tirb
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package visualsearch.service.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import visualsearch.store.HammingIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SegmentStoreServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testAddIsCommittedAndSearchable() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath();
+        try (SegmentStoreService service = new SegmentStoreService(true, path, 10)) {
+            service.start();
+            assertThat(service.add(0b1011L, "{\"imageUrl\":\"http://a\"}").block(Duration.ofSeconds(10)), equalTo("0"));
+            assertThat(Files.exists(path.resolve("commit")), equalTo(true));
+            assertThat(service.add(-1L, "{\"imageUrl\":\"http://b\"}").block(Duration.ofSeconds(10)), equalTo("1"));
+
+            HammingIndex.Result result = service.search(0L, 10, 10).block(Duration.ofSeconds(10));
+            assertThat(result.total, equalTo(1));
+            assertThat(result.hits.get(0).id, equalTo("0"));
+            assertThat(result.hits.get(0).imageUrl, equalTo("http://a"));
+            assertThat(result.hits.get(0).distance, equalTo(3));
+            // the scan does not run on the subscribing thread
+            Thread scanThread = service.search(0L, 10, 10).map(scanned -> Thread.currentThread()).block(Duration.ofSeconds(10));
+            assertThat(scanThread == Thread.currentThread(), equalTo(false));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package visualsearch.store;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class FeatureCacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        FeatureCache cache = new FeatureCache(10);
+        assertThat(cache.get("http://a"), nullValue());
+        cache.put("http://a", -1L, 1000 * 1000, 12345);
+        FeatureCache.Features features = cache.get("http://a");
+        assertThat(features.dHash, equalTo(-1L));
+        assertThat(features.numPixels, equalTo(1000 * 1000));
+        assertThat(features.receivedBytes, equalTo(12345));
+
+        cache.put("http://a", 42L, 1, 2);
+        assertThat(cache.get("http://a").dHash, equalTo(42L));
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void testEvictsUnreferencedFirst() {
+        FeatureCache cache = new FeatureCache(3);
+        cache.put("http://a", 1L, 1, 1);
+        cache.put("http://b", 2L, 1, 1);
+        cache.put("http://c", 3L, 1, 1);
+        cache.get("http://a");
+        cache.get("http://c");
+        cache.put("http://d", 4L, 1, 1);
+        assertThat(cache.size(), equalTo(3));
+        assertThat(cache.get("http://b"), nullValue());
+        assertThat(cache.get("http://a").dHash, equalTo(1L));
+        assertThat(cache.get("http://c").dHash, equalTo(3L));
+        assertThat(cache.get("http://d").dHash, equalTo(4L));
+    }
+
+    @Test
+    public void testEvictionKeepsTableConsistent() {
+        Random random = new Random(3);
+        FeatureCache cache = new FeatureCache(1000);
+        Map<String, Long> added = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String url = "http://images/" + random.nextInt(5000);
+            if (random.nextBoolean()) {
+                cache.get(url);
+            } else {
+                long hash = random.nextLong();
+                cache.put(url, hash, i, i);
+                added.put(url, hash);
+            }
+        }
+        assertThat(cache.size(), equalTo(1000));
+        int found = 0;
+        for (Map.Entry<String, Long> entry : added.entrySet()) {
+            FeatureCache.Features features = cache.get(entry.getKey());
+            if (features != null) {
+                assertThat(features.dHash, equalTo(entry.getValue()));
+                found++;
+            }
+        }
+        assertThat(found, equalTo(1000));
+    }
+}
@@ -0,0 +1,109 @@
+package visualsearch.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class HammingIndexTest {
+
+    // hashes close to a few centers so that small radii have matches
+    private static long[] randomHashes(Random random, int count) {
+        long[] centers = new long[20];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = random.nextLong();
+        }
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            long hash = centers[random.nextInt(centers.length)];
+            int flips = random.nextInt(20);
+            for (int j = 0; j < flips; j++) {
+                hash ^= 1L << random.nextInt(64);
+            }
+            hashes[i] = hash;
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testSameResultsAsBruteForce() {
+        Random random = new Random(42);
+        long[] hashes = randomHashes(random, 5000);
+        HammingIndex index = new HammingIndex();
+        for (int i = 0; i < hashes.length; i++) {
+            index.add(hashes[i], Integer.toString(i), "url" + i);
+        }
+        assertThat(index.size(), equalTo(hashes.length));
+        for (int maxDistance : new int[]{0, 3, 4, 7, 10, 11, 12, 20, 64}) {
+            for (int query = 0; query < 20; query++) {
+                long hash = hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64));
+                List<Integer> expected = new ArrayList<>();
+                for (int distance = 0; distance <= maxDistance; distance++) {
+                    for (int i = 0; i < hashes.length; i++) {
+                        if (Long.bitCount(hashes[i] ^ hash) == distance) {
+                            expected.add(i);
+                        }
+                    }
+                }
+                HammingIndex.Result result = index.search(hash, maxDistance, 15);
+                assertThat(result.total, equalTo(expected.size()));
+                assertThat(result.hits.size(), equalTo(Math.min(15, expected.size())));
+                for (int i = 0; i < result.hits.size(); i++) {
+                    HammingIndex.Hit hit = result.hits.get(i);
+                    assertThat(hit.id, equalTo(Integer.toString(expected.get(i))));
+                    assertThat(hit.imageUrl, equalTo("url" + expected.get(i)));
+                    assertThat(hit.distance, equalTo(Long.bitCount(hit.hash ^ hash)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTopK() {
+        HammingIndex index = new HammingIndex();
+        index.add(0b1111L, "four", null);
+        index.add(0L, "zero", null);
+        index.add(0b1L, "one", null);
+        index.add(-1L, "all", null);
+        HammingIndex.Result result = index.search(0L, 64, 3);
+        assertThat(result.total, equalTo(4));
+        assertThat(result.hits.get(0).id, equalTo("zero"));
+        assertThat(result.hits.get(1).id, equalTo("one"));
+        assertThat(result.hits.get(2).id, equalTo("four"));
+        assertThat(index.search(0L, 2, 10).total, equalTo(2));
+        // radii beyond the hash size match everything
+        assertThat(index.search(0L, 100, 10).total, equalTo(4));
+    }
+
+    @Test
+    public void testConcurrentAddAndSearch() throws InterruptedException {
+        HammingIndex index = new HammingIndex();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                index.add(i, Integer.toString(i), null);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            while (index.size() < 20000) {
+                HammingIndex.Result result = index.search(0L, 8, 5);
+                for (HammingIndex.Hit hit : result.hits) {
+                    if (Long.bitCount(hit.hash) > 8 || !hit.id.equals(Long.toString(hit.hash))) {
+                        failed.set(true);
+                    }
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertThat(failed.get(), equalTo(false));
+        assertThat(index.search(0L, 1, 100).total, equalTo(1 + 15));
+    }
+}
@@ -0,0 +1,95 @@
+package visualsearch.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ImageCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndRead() throws IOException {
+        ImageCache cache = ImageCache.open(temporaryFolder.getRoot().toPath(), 100);
+        assertThat(cache.get("http://a"), nullValue());
+        cache.put("http://a", bytes("image a"), "\"etag\"", null);
+        ImageCache.Entry entry = cache.get("http://a");
+        assertThat(entry.etag, equalTo("\"etag\""));
+        assertThat(entry.lastModified, nullValue());
+        assertThat(entry.hasValidators(), equalTo(true));
+        assertThat(string(cache.read(entry)), equalTo("image a"));
+
+        // replacing keeps one entry
+        cache.put("http://a", bytes("image a2"), null, null);
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.totalBytes(), equalTo(8L));
+        assertThat(string(cache.read(cache.get("http://a"))), equalTo("image a2"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        ImageCache cache = ImageCache.open(temporaryFolder.getRoot().toPath(), 20);
+        cache.put("http://a", bytes("0123456789"), null, null);
+        cache.put("http://b", bytes("0123456789"), null, null);
+        cache.get("http://a");
+        cache.put("http://c", bytes("0123456789"), null, null);
+        assertThat(cache.get("http://b"), nullValue());
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.totalBytes(), equalTo(20L));
+
+        // larger than the whole cache
+        assertThat(cache.put("http://d", bytes("012345678901234567890"), null, null), nullValue());
+        assertThat(cache.size(), equalTo(2));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        ImageCache cache = ImageCache.open(directory, 100);
+        cache.put("http://a", bytes("image a"), null, "Wed, 21 Oct 2015 07:28:00 GMT");
+        ImageCache.Writer aborted = cache.writer("http://b");
+        aborted.write(bytes("never committed"));
+        ImageCache.Writer crashed = cache.writer("http://c");
+        crashed.write(bytes("left behind"));
+
+        aborted.abort();
+        cache = ImageCache.open(directory, 100);
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.get("http://a").lastModified, equalTo("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertThat(string(cache.read(cache.get("http://a"))), equalTo("image a"));
+        assertThat(cache.get("http://b"), nullValue());
+        assertThat(cache.get("http://c"), nullValue());
+        assertThat(Files.list(directory).count(), equalTo(2L));
+    }
+
+    @Test
+    public void testTouch() throws IOException {
+        ImageCache cache = ImageCache.open(temporaryFolder.getRoot().toPath(), 100);
+        ImageCache.Entry entry = cache.put("http://a", bytes("image a"), "\"etag\"", null);
+        ImageCache.Entry touched = cache.touch(entry);
+        assertThat(cache.get("http://a"), equalTo(touched));
+        assertThat(touched.etag, equalTo("\"etag\""));
+        assertThat(touched.storedAtMillis >= entry.storedAtMillis, equalTo(true));
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
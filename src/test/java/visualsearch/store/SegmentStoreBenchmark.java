@@ -0,0 +1,47 @@
+package visualsearch.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how many hashes per second a full scan of a SegmentStore gets through, single threaded and on all cores.
+ * Not a unit test, run with ./gradlew segmentScanBenchmark -PnumHashes=100000000
+ */
+public class SegmentStoreBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numHashes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("segment-store-benchmark");
+        int cores = Runtime.getRuntime().availableProcessors();
+        Random random = new Random(0);
+        byte[] source = new byte[0];
+        try (SegmentStore store = SegmentStore.open(directory)) {
+            for (long i = store.size(); i < numHashes; i++) {
+                store.add(random.nextLong(), source);
+            }
+            store.commit();
+            System.out.println("Scanning " + store.size() + " hashes in " + directory);
+            for (int threads : new int[]{1, cores}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                // warm up
+                for (int i = 0; i < 3; i++) {
+                    store.search(random.nextLong(), 10, 10, pool);
+                }
+                int iterations = 10;
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    store.search(random.nextLong(), 10, 10, pool);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double hashesPerSecond = store.size() * iterations / seconds;
+                System.out.printf("%d threads: %.1f ms per search, %.0f million hashes/s, %.0f million hashes/s/core%n",
+                        threads, seconds * 1000 / iterations, hashesPerSecond / 1e6, hashesPerSecond / threads / 1e6);
+                pool.shutdown();
+            }
+        }
+    }
+}
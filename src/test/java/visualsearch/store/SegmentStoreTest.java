@@ -0,0 +1,120 @@
+package visualsearch.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class SegmentStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Test
+    public void testSameResultsAsBruteForce() throws IOException {
+        Random random = new Random(7);
+        // several segments, the first ones big enough to be split into leaves
+        long[] hashes = new long[SegmentStore.LEAF_SIZE * 5 / 2];
+        try (SegmentStore store = SegmentStore.open(temporaryFolder.getRoot().toPath(), SegmentStore.LEAF_SIZE + 1000)) {
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = random.nextLong();
+                assertThat(store.add(hashes[i], ("doc" + i).getBytes(StandardCharsets.UTF_8)), equalTo((long) i));
+            }
+            assertThat(store.size(), equalTo((long) hashes.length));
+            for (int maxDistance : new int[]{0, 10, 20, 25, 64}) {
+                long hash = hashes[random.nextInt(hashes.length)] ^ 0b101;
+                List<Integer> expected = new ArrayList<>();
+                for (int distance = 0; distance <= maxDistance; distance++) {
+                    for (int i = 0; i < hashes.length; i++) {
+                        if (Long.bitCount(hashes[i] ^ hash) == distance) {
+                            expected.add(i);
+                        }
+                    }
+                }
+                SegmentStore.Result result = store.search(hash, maxDistance, 10, pool);
+                assertThat(result.total, equalTo((long) expected.size()));
+                assertThat(result.hits.size(), equalTo(Math.min(10, expected.size())));
+                for (int i = 0; i < result.hits.size(); i++) {
+                    SegmentStore.Hit hit = result.hits.get(i);
+                    assertThat(hit.id, equalTo((long) expected.get(i)));
+                    assertThat(hit.distance, equalTo(Long.bitCount(hit.hash ^ hash)));
+                    assertThat(new String(hit.source, StandardCharsets.UTF_8), equalTo("doc" + expected.get(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testZeroHitsOnlyCounts() throws IOException {
+        try (SegmentStore store = SegmentStore.open(temporaryFolder.getRoot().toPath(), 10)) {
+            for (int i = 0; i < 25; i++) {
+                store.add(i % 2, ("doc" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            SegmentStore.Result result = store.search(0, 0, 0, pool);
+            assertThat(result.total, equalTo(13L));
+            assertThat(result.hits.size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testUncommittedDocumentsAreDiscardedOnOpen() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        SegmentStore crashed = SegmentStore.open(directory, 10);
+        for (int i = 0; i < 15; i++) {
+            crashed.add(i, ("committed" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        crashed.commit();
+        // fills the second segment and starts a third one that was never committed
+        for (int i = 15; i < 25; i++) {
+            crashed.add(i, ("lost" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(Files.exists(directory.resolve("segment-2.hashes")), equalTo(true));
+
+        // open again without closing, like after a crash
+        try (SegmentStore store = SegmentStore.open(directory, 10)) {
+            assertThat(store.size(), equalTo(15L));
+            assertThat(Files.exists(directory.resolve("segment-2.hashes")), equalTo(false));
+            assertThat(store.add(100, "new".getBytes(StandardCharsets.UTF_8)), equalTo(15L));
+            SegmentStore.Result result = store.search(14, 0, 10, pool);
+            assertThat(result.hits.size(), equalTo(1));
+            assertThat(new String(result.hits.get(0).source, StandardCharsets.UTF_8), equalTo("committed14"));
+            result = store.search(100, 0, 10, pool);
+            assertThat(new String(result.hits.get(0).source, StandardCharsets.UTF_8), equalTo("new"));
+            assertThat(store.search(20, 0, 10, pool).total, equalTo(0L));
+        }
+        try (SegmentStore store = SegmentStore.open(directory, 10)) {
+            assertThat(store.size(), equalTo(16L));
+        }
+    }
+
+    @Test
+    public void testCorruptCommitIsDetected() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (SegmentStore store = SegmentStore.open(directory, 10)) {
+            store.add(1, new byte[0]);
+        }
+        byte[] commit = Files.readAllBytes(directory.resolve(SegmentStore.COMMIT_FILE));
+        commit[9] ^= 1;
+        Files.write(directory.resolve(SegmentStore.COMMIT_FILE), commit);
+        try {
+            SegmentStore.open(directory, 10);
+            fail("corrupt commit should not be opened");
+        } catch (IOException e) {
+            assertThat(e.getMessage().startsWith("Checksum mismatch"), equalTo(true));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package visualsearch.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class UrlBloomFilterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testNoFalseNegativesAndFewFalsePositives() throws IOException {
+        try (UrlBloomFilter filter = UrlBloomFilter.open(tmp.getRoot().toPath().resolve("urls.bloom"), 10000, 0.01)) {
+            for (int i = 0; i < 10000; i++) {
+                filter.add("http://images/" + i);
+            }
+            for (int i = 0; i < 10000; i++) {
+                assertThat(filter.mightContain("http://images/" + i), equalTo(true));
+            }
+            int falsePositives = 0;
+            for (int i = 10000; i < 110000; i++) {
+                if (filter.mightContain("http://images/" + i)) {
+                    falsePositives++;
+                }
+            }
+            assertThat(falsePositives, lessThan(2000));
+        }
+    }
+
+    @Test
+    public void testReopenKeepsUrlsAndSizes() throws IOException {
+        Path path = tmp.getRoot().toPath().resolve("urls.bloom");
+        long numBits;
+        try (UrlBloomFilter filter = UrlBloomFilter.open(path, 1000, 0.01)) {
+            filter.add("http://a");
+            numBits = filter.numBits();
+        }
+        // the sizes in the file win over the requested ones
+        try (UrlBloomFilter filter = UrlBloomFilter.open(path, 1000000, 0.001)) {
+            assertThat(filter.numBits(), equalTo(numBits));
+            assertThat(filter.mightContain("http://a"), equalTo(true));
+            assertThat(filter.mightContain("http://b"), equalTo(false));
+        }
+    }
+}